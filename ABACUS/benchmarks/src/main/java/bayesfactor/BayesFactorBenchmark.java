@@ -0,0 +1,135 @@
+package bayesfactor;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import benchmarks.SyntheticPanel;
+import benchmarks.Workers;
+import utilities.Data;
+
+/**
+ * The per SNP Bayes factor, each operation testing {@link #snps} SNPs
+ * shared between {@link #threads} threads:
+ * <ul>
+ * <li>{@link BatchLaplaceApproximation}, in runs of
+ *  {@link BatchLaplaceApproximation#snpsPerBatch} SNPs as ABACUS hands them
+ *  out: probabilities of long and the test</li>
+ * <li>{@link ProbabilityLong#fill}, the probabilities of long alone</li>
+ * </ul>
+ * Painted lengths and donors are drawn for at most {@link #DISTINCT_SNPS}
+ * SNPs and reused, so that memory does not grow with the SNP count.  In
+ * package {@code bayesfactor} to reach the package private batch.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BayesFactorBenchmark {
+	private static final int DISTINCT_SNPS = 256;
+
+	@Param({"200", "1000"})
+	public int haplotypes;
+
+	@Param({"2000", "10000"})
+	public int snps;
+
+	@Param({"1", "4"})
+	public int threads;
+
+	private float[][] average;
+	private double[][] lengths;
+	private int[][] viterbi;
+	private double[][] means;
+	private long[][] alleles;
+	private int snpsPerBatch;
+	private Workers workers;
+
+	@Setup(Level.Trial)
+	public void setUp () throws IOException {
+		int distinct = Math.min(DISTINCT_SNPS, snps);
+		Data data = SyntheticPanel.create(haplotypes, distinct, 1);
+		Random random = new Random(3);
+		average = new float[haplotypes][haplotypes];
+		for (int i = 0; i < haplotypes; i++) {
+			for (int j = 0; j < haplotypes; j++) {
+				average[i][j] = i == j ? 0 : (float) (0.5 + random.nextDouble());
+			}
+		}
+		lengths = new double[distinct][haplotypes];
+		viterbi = new int[distinct][haplotypes];
+		means = new double[distinct][haplotypes];
+		alleles = new long[distinct][data.getHaplotype().wordsPerSnp()];
+		for (int snp = 0; snp < distinct; snp++) {
+			for (int haplotype = 0; haplotype < haplotypes; haplotype++) {
+				int donor = random.nextInt(haplotypes - 1);
+				viterbi[snp][haplotype] = (donor >= haplotype ? donor + 1 : donor) + 1;
+				lengths[snp][haplotype] = -Math.log(random.nextDouble());
+				means[snp][haplotype] = average[haplotype][viterbi[snp][haplotype] - 1];
+			}
+			data.getHaplotype().copyColumn(snp, alleles[snp]);
+		}
+		snpsPerBatch = BatchLaplaceApproximation.snpsPerBatch(haplotypes);
+		workers = new Workers(threads);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown () {
+		workers.shutdown();
+	}
+
+	@Benchmark
+	public double batchLaplaceApproximation () throws Exception {
+		return workers.run((snps + snpsPerBatch - 1) / snpsPerBatch, new Workers.Task() {
+			@Override
+			public double run (int run) {
+				int first = run * snpsPerBatch;
+				int size = Math.min(snpsPerBatch, snps - first);
+				BatchLaplaceApproximation batch = new BatchLaplaceApproximation(size, haplotypes,
+						ABACUSFlags.SIGMA_BETA, ABACUSFlags.K);
+				for (int snp = first; snp < first + size; snp++) {
+					int k = snp % lengths.length;
+					batch.add(snp, lengths[k], viterbi[k], alleles[k], average);
+				}
+				return batch.getBF()[0].getBFAdj();
+			}
+		});
+	}
+
+	@Benchmark
+	public double probabilityLong () throws Exception {
+		return workers.run(snps, new Workers.Task() {
+			private final ThreadLocal<double[]> probabilityLong = new ThreadLocal<double[]>() {
+				@Override
+				protected double[] initialValue () {
+					return new double[haplotypes];
+				}
+			};
+
+			@Override
+			public double run (int snp) {
+				int k = snp % lengths.length;
+				double[] out = probabilityLong.get();
+				ProbabilityLong.fill(lengths[k], means[k], out);
+				return out[0];
+			}
+		});
+	}
+}
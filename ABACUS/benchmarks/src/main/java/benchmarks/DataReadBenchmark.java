@@ -0,0 +1,62 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import utilities.Data;
+
+/**
+ * Parsing a text .hap/.map pair with {@link Data#read(String, String, int)},
+ * the threads parsing chunks of the .hap file.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DataReadBenchmark {
+	@Param({"200", "1000"})
+	public int haplotypes;
+
+	@Param({"2000", "10000"})
+	public int snps;
+
+	@Param({"1", "4"})
+	public int threads;
+
+	private File directory;
+	private String[] paths;
+
+	@Setup(Level.Trial)
+	public void setUp () throws IOException {
+		directory = SyntheticPanel.temporaryDirectory();
+		paths = SyntheticPanel.write(haplotypes, snps, 1, directory, "panel");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown () {
+		SyntheticPanel.delete(directory);
+	}
+
+	@Benchmark
+	public Data read () {
+		return Data.read(paths[0], paths[1], threads);
+	}
+}
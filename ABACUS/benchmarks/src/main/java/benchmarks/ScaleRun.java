@@ -0,0 +1,85 @@
+package benchmarks;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+
+/**
+ * Runs one main class in this JVM and then records, in its first
+ * argument, the wall time, the peak resident set size and the time spent
+ * in garbage collection.  {@link ScaleSuite} starts one per phase so that
+ * each phase is measured in a JVM of its own.  Exits with status 1 if the
+ * main class threw, as painting and ABACUS do themselves when they fail.
+ * <p>
+ * Usage: {@code ScaleRun result-file main-class [arguments...]}
+ *
+ */
+public class ScaleRun {
+	static final String WALL_SECONDS = "wall_seconds";
+	static final String PEAK_RSS_MB = "peak_rss_mb";
+	static final String GC_SECONDS = "gc_seconds";
+	static final String GC_COLLECTIONS = "gc_collections";
+
+	public static void main (String[] args) throws Exception {
+		String[] mainArgs = Arrays.copyOfRange(args, 2, args.length);
+		long start = System.nanoTime();
+		boolean failed = false;
+		try {
+			Class.forName(args[1]).getMethod("main", String[].class).invoke(null, (Object) mainArgs);
+		} catch (InvocationTargetException e) {
+			e.getCause().printStackTrace();
+			failed = true;
+		}
+		double wallSeconds = (System.nanoTime() - start) / 1E9;
+		long gcMillis = 0;
+		long gcCollections = 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			gcMillis += Math.max(0, collector.getCollectionTime());
+			gcCollections += Math.max(0, collector.getCollectionCount());
+		}
+		BufferedWriter result = new BufferedWriter(new FileWriter(args[0]));
+		try {
+			result.write(WALL_SECONDS + " " + wallSeconds);
+			result.newLine();
+			result.write(PEAK_RSS_MB + " " + peakResidentMegabytes());
+			result.newLine();
+			result.write(GC_SECONDS + " " + gcMillis / 1E3);
+			result.newLine();
+			result.write(GC_COLLECTIONS + " " + gcCollections);
+			result.newLine();
+		} finally {
+			result.close();
+		}
+		System.exit(failed ? 1 : 0);
+	}
+
+	/**
+	 * @return {@code double} VmHWM of this process, or -1 where there is
+	 *  no /proc
+	 */
+	private static double peakResidentMegabytes () throws IOException {
+		File status = new File("/proc/self/status");
+		if (!status.isFile()) {
+			return -1;
+		}
+		BufferedReader reader = new BufferedReader(new FileReader(status));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("VmHWM:")) {
+					return Long.parseLong(line.replaceAll("[^0-9]", "")) / 1024.0;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,294 @@
+package benchmarks;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import utilities.PaintingStore;
+import utilities.SimulatePanel;
+import utilities.SummaryMatrix;
+
+/**
+ * End to end scale regression suite.  For each panel size a synthetic
+ * panel is written with {@link SimulatePanel} (and kept for later runs),
+ * then painting and ABACUS are run on it, each in a JVM of its own
+ * through {@link ScaleRun}.  Painting uses a fixed tie seed so that the
+ * outputs are reproducible.
+ * <p>
+ * The report holds one JSON object per line: the wall time, peak RSS and
+ * GC time of every phase, and the SHA-256 of every output, so that the
+ * reports of two versions can be diffed directly.  A phase is "ok" only if
+ * it exited with status 0 and its outputs are complete: painting's summary
+ * matrices and store carry their magic and the expected size, and the
+ * .bayesfactor has a line for every SNP.  The summary matrices
+ * grow as the square of the haplotypes (40GB each at 100k), so the larger
+ * sizes need a machine to match.
+ * @param -sizes:1000,10000,100000,500000 haplotype counts
+ * @param -snps:2000
+ * @param -threads:cores
+ * @param -directory:./scale panels and outputs; painting flags cannot hold a '-'
+ * @param -report:directory/report.json
+ * @param -heap:size e.g. 64g, the -Xmx of each phase
+ * @param -seed:1 seeds both the panels and painting's ties
+ */
+public class ScaleSuite {
+	private static final String[] OUTPUTS = {".viterbiLengths.bin", ".viterbiCounts.bin", ".painting", ".bayesfactor"};
+
+	private final int numberOfSnps;
+	private final int threads;
+	private final File directory;
+	private final String heap;
+	private final long seed;
+
+	public ScaleSuite (int numberOfSnps, int threads, File directory, String heap, long seed) {
+		this.numberOfSnps = numberOfSnps;
+		this.threads = threads;
+		this.directory = directory;
+		this.heap = heap;
+		this.seed = seed;
+	}
+
+	public static void main (String[] args) throws Exception {
+		String sizes = "1000,10000,100000,500000";
+		int numberOfSnps = 2000;
+		int threads = Runtime.getRuntime().availableProcessors();
+		String directory = "./scale";
+		String report = "";
+		String heap = "";
+		long seed = 1;
+		for (String s : args) {
+			String value = s.split(":")[1];
+			if (s.contains("-sizes")) {
+				sizes = value;
+			} else if (s.contains("-snps")) {
+				numberOfSnps = Integer.parseInt(value);
+			} else if (s.contains("-threads")) {
+				threads = Integer.parseInt(value);
+			} else if (s.contains("-directory")) {
+				directory = value;
+			} else if (s.contains("-report")) {
+				report = value;
+			} else if (s.contains("-heap")) {
+				heap = value;
+			} else if (s.contains("-seed")) {
+				seed = Long.parseLong(value);
+			}
+		}
+		File output = new File(directory);
+		if (output.getAbsolutePath().contains("-")) {
+			throw new IOException("Painting cannot take paths containing '-': " + output.getAbsolutePath());
+		}
+		if (!output.isDirectory() && !output.mkdirs()) {
+			throw new IOException("Cannot create " + output);
+		}
+		if (report.isEmpty()) {
+			report = new File(output, "report.json").getPath();
+		}
+		List<Integer> haplotypes = new ArrayList<Integer>();
+		for (String size : sizes.split(",")) {
+			haplotypes.add(Integer.parseInt(size.trim()));
+		}
+		new ScaleSuite(numberOfSnps, threads, output, heap, seed).run(haplotypes, report);
+	}
+
+	/**
+	 * Runs every size in turn, writing the report as it goes.
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void run (List<Integer> sizes, String reportPath) throws IOException, InterruptedException {
+		BufferedWriter report = new BufferedWriter(new FileWriter(reportPath));
+		try {
+			Map<String, Object> header = new LinkedHashMap<String, Object>();
+			header.put("record", "suite");
+			header.put("java", System.getProperty("java.version"));
+			header.put("cores", Runtime.getRuntime().availableProcessors());
+			header.put("snps", numberOfSnps);
+			header.put("threads", threads);
+			header.put("heap", heap);
+			header.put("seed", seed);
+			write(report, header);
+			for (int numberOfHaplotypes : sizes) {
+				runSize(numberOfHaplotypes, report);
+			}
+		} finally {
+			report.close();
+		}
+		System.out.println("Scale report written to " + reportPath);
+	}
+
+	private void runSize (int numberOfHaplotypes, BufferedWriter report) throws IOException, InterruptedException {
+		String prefix = new File(directory, "panel" + numberOfHaplotypes + "x" + numberOfSnps).getPath();
+		String hap = prefix + ".hap";
+		String map = prefix + ".map";
+		if (!new File(hap).isFile() || !new File(map).isFile()) {
+			System.out.println("Simulating " + numberOfHaplotypes + " haplotypes at " + numberOfSnps + " SNPs");
+			long start = System.nanoTime();
+			SimulatePanel.of(numberOfHaplotypes, numberOfSnps, seed).write(prefix);
+			Map<String, Object> record = record(numberOfHaplotypes, "simulate");
+			record.put(ScaleRun.WALL_SECONDS, (System.nanoTime() - start) / 1E9);
+			write(report, record);
+		}
+		new File(prefix + ".panel").delete();
+		for (String extension : OUTPUTS) {
+			new File(prefix + extension).delete();
+		}
+
+		System.out.println("Painting " + numberOfHaplotypes + " haplotypes");
+		Map<String, Object> painting = phase(numberOfHaplotypes, "painting", prefix, "painting.PaintingMain",
+				"-haplotype_map=" + hap, "-genetic_map=" + map, "-number_of_threads=" + threads,
+				"-viterbi_text=false", "-text_summaries=false", "-painting_store=true", "-tie_seed=" + seed);
+		painting.put("ok", painting.get("exit").equals(0) &&
+				SummaryMatrix.isMatrix(SummaryMatrix.pathFor(prefix + ".viterbiLengths")) &&
+				SummaryMatrix.isMatrix(SummaryMatrix.pathFor(prefix + ".viterbiCounts")) &&
+				PaintingStore.find(prefix, numberOfHaplotypes, numberOfSnps) != null);
+		write(report, painting);
+
+		System.out.println("Testing " + numberOfHaplotypes + " haplotypes");
+		Map<String, Object> abacus = phase(numberOfHaplotypes, "abacus", prefix, "bayesfactor.ABACUSMain",
+				"--haplotype_map:" + hap, "--genetic_map:" + map, "--counts:" + prefix + ".viterbiCounts",
+				"--lengths:" + prefix + ".viterbiLengths", "--number_of_threads:" + threads);
+		abacus.put("ok", abacus.get("exit").equals(0) &&
+				countLines(new File(prefix + ".bayesfactor")) == numberOfSnps);
+		write(report, abacus);
+
+		for (String extension : OUTPUTS) {
+			Map<String, Object> checksum = record(numberOfHaplotypes, "checksum");
+			checksum.put("file", extension.substring(1));
+			checksum.put("sha256", sha256(new File(prefix + extension)));
+			write(report, checksum);
+		}
+		report.flush();
+	}
+
+	/**
+	 * Runs {@code mainClass} through {@link ScaleRun} in a new JVM, its
+	 * output going to {@code prefix.phase.log}.
+	 * @return {@code Map<String, Object>} the record of the phase
+	 */
+	private Map<String, Object> phase (int numberOfHaplotypes, String phase, String prefix, String mainClass,
+			String... args) throws IOException, InterruptedException {
+		File result = new File(prefix + "." + phase + ".result");
+		result.delete();
+		List<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		if (!heap.isEmpty()) {
+			command.add("-Xmx" + heap);
+		}
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(ScaleRun.class.getName());
+		command.add(result.getPath());
+		command.add(mainClass);
+		for (String arg : args) {
+			command.add(arg);
+		}
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.redirectErrorStream(true);
+		builder.redirectOutput(new File(prefix + "." + phase + ".log"));
+		int exit = builder.start().waitFor();
+
+		Map<String, Object> record = record(numberOfHaplotypes, phase);
+		record.put("exit", exit);
+		if (result.isFile()) {
+			BufferedReader reader = new BufferedReader(new FileReader(result));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] local = line.split(" ");
+					record.put(local[0], local[1].contains(".") ?
+							(Object) Double.parseDouble(local[1]) : (Object) Long.parseLong(local[1]));
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		return record;
+	}
+
+	private Map<String, Object> record (int numberOfHaplotypes, String phase) {
+		Map<String, Object> record = new LinkedHashMap<String, Object>();
+		record.put("record", phase);
+		record.put("haplotypes", numberOfHaplotypes);
+		record.put("snps", numberOfSnps);
+		return record;
+	}
+
+	private static void write (BufferedWriter report, Map<String, Object> record) throws IOException {
+		StringBuilder line = new StringBuilder("{");
+		for (Map.Entry<String, Object> entry : record.entrySet()) {
+			if (line.length() > 1) {
+				line.append(", ");
+			}
+			line.append('"').append(entry.getKey()).append("\": ");
+			Object value = entry.getValue();
+			if (value instanceof String) {
+				line.append('"').append(((String) value).replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+			} else {
+				line.append(value);
+			}
+		}
+		report.write(line.append('}').toString());
+		report.newLine();
+	}
+
+	/**
+	 * @return {@code long} lines in {@code file}, or -1 if it is missing
+	 */
+	static long countLines (File file) throws IOException {
+		if (!file.isFile()) {
+			return -1;
+		}
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			long lines = 0;
+			while (reader.readLine() != null) {
+				lines++;
+			}
+			return lines;
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * @return {@code String} hex SHA-256 of {@code file}, or "missing"
+	 */
+	static String sha256 (File file) throws IOException {
+		if (!file.isFile()) {
+			return "missing";
+		}
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		byte[] buffer = new byte[1 << 16];
+		InputStream input = new FileInputStream(file);
+		try {
+			int read;
+			while ((read = input.read(buffer)) > 0) {
+				digest.update(buffer, 0, read);
+			}
+		} finally {
+			input.close();
+		}
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest()) {
+			hex.append(String.format("%02x", b & 0xff));
+		}
+		return hex.toString();
+	}
+}
@@ -0,0 +1,85 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+
+import utilities.Data;
+import utilities.SimulatePanel;
+
+/**
+ * Seeded synthetic panels for the benchmarks, simulated by
+ * {@link SimulatePanel} so that paintings have blocks of realistic
+ * length rather than switching at every SNP.
+ *
+ */
+public final class SyntheticPanel {
+
+	private SyntheticPanel () {
+	}
+
+	/**
+	 * @param numberOfHaplotypes {@code int}
+	 * @param numberOfSnps {@code int}
+	 * @param seed {@code long}
+	 * @return {@link Data} the same for the same arguments
+	 * @throws IOException
+	 */
+	public static Data create (int numberOfHaplotypes, int numberOfSnps, long seed) throws IOException {
+		File directory = temporaryDirectory();
+		try {
+			String[] paths = write(numberOfHaplotypes, numberOfSnps, seed, directory, "panel");
+			return Data.read(paths[0], paths[1], 1);
+		} finally {
+			delete(directory);
+		}
+	}
+
+	/**
+	 * Writes the panel as {@code directory/name.hap} and
+	 * {@code directory/name.map}.
+	 * @return {@code String[]} the .hap and .map paths
+	 * @throws IOException
+	 */
+	public static String[] write (int numberOfHaplotypes, int numberOfSnps, long seed, File directory, String name)
+			throws IOException {
+		return SimulatePanel.of(numberOfHaplotypes, numberOfSnps, seed).write(new File(directory, name).getPath());
+	}
+
+	/**
+	 * Mutation parameter used by painting for {@code numberOfHaplotypes}.
+	 */
+	public static double wattersonsEstimate (int numberOfHaplotypes) {
+		double t = 0;
+		for (int i = 1; i < numberOfHaplotypes; i++) {
+			t += 1.0 / ((double) i);
+		}
+		return 1.0 / t;
+	}
+
+	/**
+	 * @return {@link File} empty temporary directory, deleted with its
+	 *  contents when the JVM exits
+	 * @throws IOException
+	 */
+	public static File temporaryDirectory () throws IOException {
+		File directory = File.createTempFile("abacus-benchmark", "");
+		if (!directory.delete() || !directory.mkdir()) {
+			throw new IOException("Cannot create " + directory);
+		}
+		directory.deleteOnExit();
+		return directory;
+	}
+
+	/**
+	 * Deletes {@code directory} and the files in it.
+	 */
+	public static void delete (File directory) {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+}
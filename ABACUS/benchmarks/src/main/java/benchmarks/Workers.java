@@ -0,0 +1,74 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Fixed pool that shares the items of one benchmark operation between its
+ * threads, as painting and ABACUS share recipients and SNPs.
+ *
+ */
+public final class Workers {
+	private final ExecutorService executor;
+	private final int threads;
+
+	/**
+	 * Work on a single item; returns something derived from the result so
+	 * that it cannot be optimised away.
+	 */
+	public interface Task {
+		double run (int item) throws Exception;
+	}
+
+	public Workers (int threads) {
+		this.threads = Math.max(1, threads);
+		this.executor = Executors.newFixedThreadPool(this.threads);
+	}
+
+	/**
+	 * Runs {@code task} on items {@code 0 .. count - 1}, thread {@code t}
+	 * taking every {@code threads}th item from {@code t}.
+	 * @return {@code double} sum of the task results
+	 */
+	public double run (final int count, final Task task) throws Exception {
+		if (threads == 1) {
+			double sum = 0;
+			for (int item = 0; item < count; item++) {
+				sum += task.run(item);
+			}
+			return sum;
+		}
+		List<Future<Double>> parts = new ArrayList<Future<Double>>();
+		for (int t = 0; t < threads; t++) {
+			final int first = t;
+			parts.add(executor.submit(new Callable<Double>() {
+				@Override
+				public Double call () throws Exception {
+					double sum = 0;
+					for (int item = first; item < count; item += threads) {
+						sum += task.run(item);
+					}
+					return sum;
+				}
+			}));
+		}
+		double sum = 0;
+		try {
+			for (Future<Double> part : parts) {
+				sum += part.get();
+			}
+		} catch (ExecutionException e) {
+			throw new Exception(e.getCause());
+		}
+		return sum;
+	}
+
+	public void shutdown () {
+		executor.shutdownNow();
+	}
+}
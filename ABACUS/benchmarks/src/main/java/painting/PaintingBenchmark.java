@@ -0,0 +1,168 @@
+package painting;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import benchmarks.SyntheticPanel;
+import benchmarks.Workers;
+import utilities.Data;
+
+/**
+ * The painting hot paths, each operation covering {@link #recipients}
+ * recipients shared between {@link #threads} threads:
+ * <ul>
+ * <li>{@link PaintingAlgorithm#call}, Viterbi painting and the .viterbi file</li>
+ * <li>{@link ViterbiKernel#paint}, the Viterbi recursion of one recipient</li>
+ * <li>{@link PaintingBatch#call}, recipients painted in lock-step batches
+ *  sized as painting sizes them, and their summaries</li>
+ * <li>{@link PaintingAlgorithm#getLengths} on a painted path</li>
+ * </ul>
+ * In package {@code painting} to reach the package private kernel.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PaintingBenchmark {
+	private static final double EFFECTIVE_POPULATION = 10000;
+	private static final int MEAN_BLOCK_SNPS = 100;
+
+	@Param({"200", "1000"})
+	public int haplotypes;
+
+	@Param({"2000", "10000"})
+	public int snps;
+
+	@Param({"1", "4"})
+	public int threads;
+
+	@Param({"16"})
+	public int recipients;
+
+	@Param({"0", "64"})
+	public int checkpointSpacing;
+
+	private File directory;
+	private Data data;
+	private PaintingAlgorithm[] algorithms;
+	private List<PaintingBatch> batches;
+	private int[][] paths;
+	private Workers workers;
+
+	@Setup(Level.Trial)
+	public void setUp () throws IOException {
+		directory = SyntheticPanel.temporaryDirectory();
+		data = SyntheticPanel.create(haplotypes, snps, 1);
+		double mutationParameter = SyntheticPanel.wattersonsEstimate(haplotypes);
+		String prefix = new File(directory, "panel").getPath();
+		Random random = new Random(2);
+		algorithms = new PaintingAlgorithm[recipients];
+		paths = new int[recipients][];
+		for (int recipient = 0; recipient < recipients; recipient++) {
+			int haplotypeIndex = recipient % haplotypes;
+			algorithms[recipient] = new PaintingAlgorithm(haplotypeIndex, data.getGeneticMap(),
+					data.getHaplotype(), EFFECTIVE_POPULATION, mutationParameter, haplotypes, snps, false,
+					checkpointSpacing, prefix);
+			paths[recipient] = path(random, haplotypeIndex);
+		}
+		int perBatch = ViterbiKernel.recipientsPerBatch(haplotypes, ViterbiKernel.L2_CACHE_BYTES);
+		batches = new ArrayList<PaintingBatch>();
+		for (int first = 0; first < recipients; first += perBatch) {
+			List<PaintingAlgorithm> batch = new ArrayList<PaintingAlgorithm>();
+			for (int recipient = first; recipient < Math.min(recipients, first + perBatch); recipient++) {
+				batch.add(algorithms[recipient]);
+			}
+			batches.add(new PaintingBatch(batch, data.getHaplotype(), checkpointSpacing, null, false));
+		}
+		workers = new Workers(threads);
+	}
+
+	/**
+	 * @return {@code int[]} 1-based donors in blocks of geometric length,
+	 *  never {@code recipient} itself
+	 */
+	private int[] path (Random random, int recipient) {
+		int[] path = new int[snps];
+		int donor = 0;
+		for (int snp = 0; snp < snps; snp++) {
+			if (snp == 0 || random.nextInt(MEAN_BLOCK_SNPS) == 0) {
+				do {
+					donor = random.nextInt(haplotypes);
+				} while (donor == recipient && haplotypes > 1);
+			}
+			path[snp] = donor + 1;
+		}
+		return path;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown () {
+		workers.shutdown();
+		SyntheticPanel.delete(directory);
+	}
+
+	@Benchmark
+	public double paint () throws Exception {
+		return workers.run(recipients, new Workers.Task() {
+			@Override
+			public double run (int recipient) throws Exception {
+				return algorithms[recipient].call().getNumber()[0];
+			}
+		});
+	}
+
+	@Benchmark
+	public double viterbiKernel () throws Exception {
+		return workers.run(recipients, new Workers.Task() {
+			@Override
+			public double run (int recipient) {
+				PaintingAlgorithm algorithm = algorithms[recipient];
+				int[] path = ViterbiKernel.local().paint(data.getHaplotype(), data.getHaplotype(),
+						algorithm.getHaplotypeIndex(), algorithm.excludedFrom(), algorithm.excludedTo(),
+						algorithm.transitions(), false, checkpointSpacing);
+				return path[snps - 1];
+			}
+		});
+	}
+
+	@Benchmark
+	public double paintingBatch () throws Exception {
+		return workers.run(batches.size(), new Workers.Task() {
+			@Override
+			public double run (int batch) throws Exception {
+				return batches.get(batch).call().get(0).getNumber()[0];
+			}
+		});
+	}
+
+	@Benchmark
+	public double getLengths () throws Exception {
+		return workers.run(recipients, new Workers.Task() {
+			@Override
+			public double run (int recipient) {
+				return algorithms[recipient].getLengths(paths[recipient]).getBlocks()[snps - 1];
+			}
+		});
+	}
+}
@@ -0,0 +1,221 @@
+package bayesfactor;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import utilities.PackedHaplotypeMatrix;
+
+/**
+ * {@link BatchLaplaceApproximation} on random SNPs: however the SNPs are
+ * split into batches, as runs over different {@code --first_snp} and
+ * {@code --last_snp} split them, each SNP's Bayes factor and estimate must
+ * be bit for bit the same, and the same as Newton's method from zero with
+ * a plain sweep over one SNP at a time.
+ *
+ */
+public class BatchLaplaceApproximationTest {
+	private static final int[] HAPLOTYPES = {1, 63, 64, 130};
+	private static final int SNPS = 37;
+	private static final int[] BATCHES = {1, 3, 4, 16, SNPS};
+
+	@Test
+	public void batchesAgree () {
+		for (int numberOfHaplotypes : HAPLOTYPES) {
+			Snps snps = new Snps(new Random(numberOfHaplotypes), numberOfHaplotypes);
+			BayesfactorOut[] whole = test(snps, 0, SNPS, SNPS);
+			for (int batch : BATCHES) {
+				for (int first = 0; first < batch; first++) {
+					assertSame(numberOfHaplotypes + " haplotypes, batches of " + batch + " from " + first,
+							whole, test(snps, first, SNPS, batch), first);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void matchesScalarNewton () {
+		for (int numberOfHaplotypes : HAPLOTYPES) {
+			Snps snps = new Snps(new Random(17 + numberOfHaplotypes), numberOfHaplotypes);
+			BayesfactorOut[] batch = test(snps, 0, SNPS,
+					BatchLaplaceApproximation.snpsPerBatch(numberOfHaplotypes));
+			for (int snp = 0; snp < SNPS; snp++) {
+				BayesfactorOut scalar = scalar(snps, snp);
+				String message = numberOfHaplotypes + " haplotypes, SNP " + snp;
+				assertEquals(message, Double.doubleToRawLongBits(scalar.getBFAdj()),
+						Double.doubleToRawLongBits(batch[snp].getBFAdj()));
+				assertEquals(message, Double.doubleToRawLongBits(scalar.getBetaAdj()),
+						Double.doubleToRawLongBits(batch[snp].getBetaAdj()));
+			}
+		}
+	}
+
+	/**
+	 * Tests SNPs {@code [from, to)} in consecutive batches of at most
+	 * {@code batchSize}, as ABACUSMain hands out runs.
+	 */
+	private static BayesfactorOut[] test (Snps snps, int from, int to, int batchSize) {
+		BayesfactorOut[] out = new BayesfactorOut[to - from];
+		for (int start = from; start < to; start += batchSize) {
+			int end = Math.min(to, start + batchSize);
+			BatchLaplaceApproximation batch = new BatchLaplaceApproximation(end - start, snps.numberOfHaplotypes,
+					ABACUSFlags.SIGMA_BETA, ABACUSFlags.K);
+			for (int snp = start; snp < end; snp++) {
+				batch.add(snp, snps.lengths[snp], snps.viterbi[snp], snps.alleles[snp], snps.average);
+			}
+			System.arraycopy(batch.getBF(), 0, out, start - from, end - start);
+		}
+		return out;
+	}
+
+	private static void assertSame (String message, BayesfactorOut[] whole, BayesfactorOut[] part, int from) {
+		for (int k = 0; k < part.length; k++) {
+			BayesfactorOut expected = whole[from + k];
+			assertEquals(message, expected.getSnp(), part[k].getSnp());
+			assertEquals(message + ", SNP " + expected.getSnp(), Double.doubleToRawLongBits(expected.getBFAdj()),
+					Double.doubleToRawLongBits(part[k].getBFAdj()));
+			assertEquals(message + ", SNP " + expected.getSnp(), Double.doubleToRawLongBits(expected.getBetaAdj()),
+					Double.doubleToRawLongBits(part[k].getBetaAdj()));
+		}
+	}
+
+	/**
+	 * Newton's method from zero for one SNP at a time, as the test was
+	 * before SNPs were batched.
+	 */
+	private static BayesfactorOut scalar (Snps snps, int snp) {
+		int numberOfHaplotypes = snps.numberOfHaplotypes;
+		double[] means = new double[numberOfHaplotypes];
+		for (int haplotype = 0; haplotype < numberOfHaplotypes; haplotype++) {
+			means[haplotype] = snps.average[haplotype][snps.viterbi[snp][haplotype] - 1];
+		}
+		double[] probabilityLong = new double[numberOfHaplotypes];
+		ProbabilityLong.fill(snps.lengths[snp], means, probabilityLong);
+		double[] sweep = new double[LaplaceApproximation.SWEEP_LENGTH];
+		double sigmaBeta = ABACUSFlags.SIGMA_BETA;
+
+		double muH1 = 0.0;
+		double betaH1 = 0.0;
+		boolean converged = false;
+		for (int i = 1; i < ABACUSFlags.K && !converged; i++) {
+			sweep(probabilityLong, snps.alleles[snp], muH1, betaH1, sigmaBeta, true, false, sweep);
+			double changeMu = LaplaceApproximation.changeMuH1(sweep);
+			double changeBeta = LaplaceApproximation.changeBetaH1(sweep);
+			muH1 += -1.0 * changeMu;
+			betaH1 += -1.0 * changeBeta;
+			converged = Math.abs(changeMu) <= LaplaceApproximation.TOLERANCE &&
+					Math.abs(changeBeta) <= LaplaceApproximation.TOLERANCE;
+		}
+		double muH0 = 0.0;
+		converged = false;
+		for (int i = 1; i < ABACUSFlags.K && !converged; i++) {
+			sweep(probabilityLong, snps.alleles[snp], muH0, 0.0, sigmaBeta, false, false, sweep);
+			double change = LaplaceApproximation.changeMuH0(sweep);
+			muH0 += -1.0 * change;
+			converged = Math.abs(change) <= LaplaceApproximation.TOLERANCE;
+		}
+		sweep(probabilityLong, snps.alleles[snp], muH1, betaH1, sigmaBeta, true, true, sweep);
+		double marginalH1 = LaplaceApproximation.marginalH1(sweep, muH1, betaH1, sigmaBeta);
+		sweep(probabilityLong, snps.alleles[snp], muH0, 0.0, sigmaBeta, false, true, sweep);
+		double marginalH0 = LaplaceApproximation.marginalH0(sweep, muH0);
+		return new BayesfactorOut(snp, Math.log10(Math.exp(marginalH1 - marginalH0)), betaH1);
+	}
+
+	/**
+	 * Fills {@code out} with the log posterior's score and observed
+	 * information (the second derivatives) at {@code (mu, beta)}, and if
+	 * asked the log likelihood, in one pass over the haplotypes.  The
+	 * beta terms are only gathered for H1.
+	 * @param out {@code double[]} of {@link LaplaceApproximation#SWEEP_LENGTH}
+	 */
+	private static void sweep (double[] probabilityLong, long[] alleles, double mu, double beta,
+			double sigmaBeta, boolean h1, boolean likelihood, double[] out) {
+		double p1 = LaplaceApproximation.logistic(mu + beta);
+		double p0 = LaplaceApproximation.logistic(mu);
+		double d1 = p1 * (1.0 - p1);
+		double d0 = p0 * (1.0 - p0);
+		double e1 = d1 * (1.0 - 2.0 * p1);
+		double e0 = d0 * (1.0 - 2.0 * p0);
+		double logLikelihood = 0.0;
+		double scoreMu = -1.0 * mu;
+		double scoreBeta = h1 ? -1.0 * beta / Math.pow(sigmaBeta, 2) : 0.0;
+		double informationMu = -1.0;
+		double informationMuBeta = 0.0;
+		double informationBeta = -1.0 / Math.pow(sigmaBeta, 2);
+		for (int i = 0; i < probabilityLong.length; i++) {
+			double probLong = probabilityLong[i];
+			double q = p1 * probLong + p0 * (1.0 - probLong);
+			double firstMu = d1 * probLong + d0 * (1.0 - probLong);
+			double secondMu = e1 * probLong + e0 * (1.0 - probLong);
+			double firstBeta = d1 * probLong;
+			double secondBeta = e1 * probLong;
+			double fI;
+			if ((alleles[i >>> 6] & (1L << i)) != 0) {
+				fI = q;
+			} else {
+				fI = 1.0 - q;
+				firstMu = -1.0 * firstMu;
+				secondMu = -1.0 * secondMu;
+				firstBeta = -1.0 * firstBeta;
+				secondBeta = -1.0 * secondBeta;
+			}
+			double inverse = 1.0 / fI;
+			double ratioMu = firstMu * inverse;
+			scoreMu += ratioMu;
+			informationMu += secondMu * inverse - ratioMu * ratioMu;
+			if (h1) {
+				double ratioBeta = firstBeta * inverse;
+				scoreBeta += ratioBeta;
+				informationBeta += secondBeta * inverse - ratioBeta * ratioBeta;
+				informationMuBeta += secondBeta * inverse - ratioMu * ratioBeta;
+			}
+			if (likelihood) {
+				logLikelihood += Math.log(fI);
+			}
+		}
+		out[LaplaceApproximation.LIKELIHOOD] = logLikelihood;
+		out[LaplaceApproximation.SCORE_MU] = scoreMu;
+		out[LaplaceApproximation.SCORE_BETA] = scoreBeta;
+		out[LaplaceApproximation.INFORMATION_MU] = informationMu;
+		out[LaplaceApproximation.INFORMATION_MU_BETA] = informationMuBeta;
+		out[LaplaceApproximation.INFORMATION_BETA] = informationBeta;
+	}
+
+	/**
+	 * Random paintings, with each SNP's alleles leaning on its haplotypes'
+	 * block lengths so that some SNPs have an effect to find.
+	 */
+	private static class Snps {
+		final int numberOfHaplotypes;
+		final double[][] lengths = new double[SNPS][];
+		final int[][] viterbi = new int[SNPS][];
+		final long[][] alleles = new long[SNPS][];
+		final float[][] average;
+
+		Snps (Random random, int numberOfHaplotypes) {
+			this.numberOfHaplotypes = numberOfHaplotypes;
+			average = new float[numberOfHaplotypes][numberOfHaplotypes];
+			for (float[] row : average) {
+				for (int j = 0; j < row.length; j++) {
+					row[j] = (float) Math.exp(2 * random.nextGaussian());
+				}
+			}
+			for (int snp = 0; snp < SNPS; snp++) {
+				lengths[snp] = new double[numberOfHaplotypes];
+				viterbi[snp] = new int[numberOfHaplotypes];
+				alleles[snp] = new long[PackedHaplotypeMatrix.wordsFor(numberOfHaplotypes)];
+				double effect = random.nextBoolean() ? 0.0 : 2.0 * random.nextGaussian();
+				for (int haplotype = 0; haplotype < numberOfHaplotypes; haplotype++) {
+					lengths[snp][haplotype] = Math.exp(2 * random.nextGaussian());
+					viterbi[snp][haplotype] = 1 + random.nextInt(numberOfHaplotypes);
+					double logit = effect * Math.log(lengths[snp][haplotype]);
+					if (random.nextDouble() < 1.0 / (1.0 + Math.exp(-logit))) {
+						alleles[snp][haplotype >>> 6] |= 1L << haplotype;
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package bayesfactor;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import jsc.distributions.Gamma;
+
+import org.junit.Test;
+
+/**
+ * {@link ProbabilityLong} against the general incomplete gamma function
+ * of {@code jsc.distributions.Gamma} it replaced, over block lengths and
+ * means from e^-12 to e^12: the CDF to a relative error of 1E-9, and the
+ * probability of long to an absolute error of 1E-10.
+ *
+ */
+public class ProbabilityLongTest {
+	private static final double CDF_TOLERANCE = 1E-9;
+	private static final double PROBABILITY_TOLERANCE = 1E-10;
+	private static final double LOG_RANGE = 12.0;
+	private static final int GRID = 241;
+	private static final int SAMPLES = 100000;
+
+	@Test
+	public void cdfOnGrid () {
+		for (int k = 0; k < GRID; k++) {
+			assertCdf(Math.exp(-LOG_RANGE + 2 * LOG_RANGE * k / (GRID - 1)));
+		}
+	}
+
+	/**
+	 * Either side of {@code r = 1}, where the series hands over to the
+	 * closed form.
+	 */
+	@Test
+	public void cdfAtTheSeriesBoundary () {
+		for (int k = -1000; k <= 1000; k++) {
+			assertCdf(1.0 + k * 1E-6);
+		}
+	}
+
+	@Test
+	public void probabilityAtRandom () {
+		Random random = new Random(15);
+		double[] lengths = new double[SAMPLES];
+		double[] means = new double[SAMPLES];
+		for (int i = 0; i < SAMPLES; i++) {
+			lengths[i] = Math.exp(LOG_RANGE * (2 * random.nextDouble() - 1));
+			means[i] = Math.exp(LOG_RANGE * (2 * random.nextDouble() - 1));
+		}
+		double[] probabilityLong = new double[SAMPLES];
+		ProbabilityLong.fill(lengths, means, probabilityLong);
+		for (int i = 0; i < SAMPLES; i++) {
+			assertEquals("length " + lengths[i] + ", mean " + means[i], reference(lengths[i], means[i]),
+					probabilityLong[i], PROBABILITY_TOLERANCE);
+		}
+	}
+
+	@Test
+	public void probabilityOfNoBlockIsZero () {
+		double[] probabilityLong = {-1, -1, -1, -1};
+		ProbabilityLong.fill(new double[] {0, 1, -1, 1}, new double[] {1, 0, 1, -1}, probabilityLong);
+		for (double probability : probabilityLong) {
+			assertEquals(0.0, probability, 0.0);
+		}
+	}
+
+	@Test
+	public void probabilityWithOffset () {
+		double[] lengths = {0.5, 2.0, 30.0};
+		double[] means = {1.0, 1.0, 2.0};
+		double[] probabilityLong = new double[5];
+		ProbabilityLong.fill(lengths, means, probabilityLong, 2);
+		assertEquals(0.0, probabilityLong[0], 0.0);
+		assertEquals(0.0, probabilityLong[1], 0.0);
+		for (int i = 0; i < lengths.length; i++) {
+			assertEquals(reference(lengths[i], means[i]), probabilityLong[2 + i], PROBABILITY_TOLERANCE);
+		}
+	}
+
+	/**
+	 * @param x {@code double} where the CDF is evaluated, as {@code 1 / scale}
+	 *  of the Gamma painting used
+	 */
+	private static void assertCdf (double x) {
+		double expected = new Gamma(2, 1.0 / x).cdf(1.0);
+		assertEquals("x " + x, expected, ProbabilityLong.gammaTwoCdf(x), CDF_TOLERANCE * expected);
+	}
+
+	/**
+	 * The probability of long as it was computed from jsc before,
+	 * with equal prior weights.
+	 */
+	private static double reference (double length, double mean) {
+		double eTheta = 0.5;
+		Gamma localDist = new Gamma(2, length / mean);
+		double logA = Math.log(mean) - 2.0 * Math.log(length) + Math.log(localDist.cdf(1.0)) + Math.log(eTheta);
+		double logB = -1.0 * Math.log(mean) - length / mean + Math.log(1 - eTheta);
+		return Math.exp(-1.0 * Math.log(1 + Math.exp(logB - logA)));
+	}
+}
@@ -0,0 +1,157 @@
+package painting;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import utilities.Data;
+
+/**
+ * A painting interrupted after some of its batches were recorded in the
+ * {@link PaintingManifest}, with a torn last line and a partial file
+ * half written, and then run again with {@code -resume=true}, must leave
+ * exactly the files, byte for byte, of the same painting run through in
+ * one go.
+ *
+ */
+public class PaintingResumeTest {
+	private static final int HAPLOTYPES = 40;
+	private static final int SNPS = 200;
+	private static final int BATCH = 4;
+	private static final long TIE_SEED = 3;
+	private static final int[] RECORDED = {0, 8, 12, 28};
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void resumedMatchesUninterrupted () throws IOException {
+		File haplotype = new File(folder.getRoot(), "panel.hap");
+		File map = new File(folder.getRoot(), "panel.map");
+		writePanel(haplotype, map);
+		String prefix = new File(folder.getRoot(), "panel").getPath();
+		String[] args = {"-haplotype_map=" + haplotype.getPath(), "-genetic_map=" + map.getPath(),
+				"-tie_seed=" + TIE_SEED, "-batch_size=" + BATCH, "-binary_panel=false", "-number_of_threads=2"};
+
+		PaintingMain.main(args);
+		Map<String, byte[]> uninterrupted = outputs(haplotype, map);
+		assertEquals(2 + 2 + HAPLOTYPES, uninterrupted.size());
+		for (String name : uninterrupted.keySet()) {
+			new File(folder.getRoot(), name).delete();
+		}
+
+		interrupt(prefix, haplotype, map);
+		String[] resume = new String[args.length + 1];
+		System.arraycopy(args, 0, resume, 0, args.length);
+		resume[args.length] = "-resume=true";
+		PaintingMain.main(resume);
+		Map<String, byte[]> resumed = outputs(haplotype, map);
+		assertEquals(uninterrupted.keySet(), resumed.keySet());
+		for (String name : uninterrupted.keySet()) {
+			assertArrayEquals(name, uninterrupted.get(name), resumed.get(name));
+		}
+		assertFalse(new File(PaintingManifest.pathFor(prefix)).exists());
+	}
+
+	/**
+	 * Leaves the manifest as a run killed while painting would: the
+	 * batches from {@link #RECORDED} recorded with their .viterbi files,
+	 * a last line cut short and the partial file of a batch being written.
+	 */
+	private static void interrupt (String prefix, File haplotype, File map) throws IOException {
+		Data data = Data.read(haplotype.getPath(), map.getPath());
+		ViterbiKernel.setTieSeed(TIE_SEED);
+		PaintingManifest manifest = PaintingManifest.open(prefix, PaintingManifest.key(haplotype.getPath(),
+				map.getPath(), 10000, false, TIE_SEED), HAPLOTYPES, SNPS, false, true);
+		try {
+			for (int first : RECORDED) {
+				List<PaintingAlgorithm> batch = new ArrayList<PaintingAlgorithm>();
+				for (int h = first; h < first + BATCH; h++) {
+					batch.add(new PaintingAlgorithm(h, data.getGeneticMap(), data.getHaplotype(), 10000,
+							PaintingMain.wattersonsEstimate(HAPLOTYPES), HAPLOTYPES, SNPS, false, 0, prefix));
+				}
+				new PaintingBatch(batch, data.getHaplotype(), 0, null, true, manifest).call();
+			}
+		} finally {
+			manifest.close();
+		}
+		File directory = new File(PaintingManifest.pathFor(prefix));
+		FileOutputStream torn = new FileOutputStream(new File(directory, "manifest"), true);
+		try {
+			torn.write("16 4".getBytes(Charset.forName("US-ASCII")));
+		} finally {
+			torn.close();
+		}
+		FileOutputStream partial = new FileOutputStream(new File(directory, "16.partial"));
+		try {
+			partial.write(new byte[8 * HAPLOTYPES + 5]);
+		} finally {
+			partial.close();
+		}
+	}
+
+	/**
+	 * @return {@link Map} of the name and contents of every file in the
+	 *  folder but the panel, the map and the resume directory
+	 */
+	private Map<String, byte[]> outputs (File haplotype, File map) throws IOException {
+		Map<String, byte[]> outputs = new TreeMap<String, byte[]>();
+		File[] files = folder.getRoot().listFiles();
+		for (File file : files) {
+			if (file.isFile() && !file.equals(haplotype) && !file.equals(map)) {
+				outputs.put(file.getName(), Files.readAllBytes(file.toPath()));
+			}
+		}
+		return outputs;
+	}
+
+	/**
+	 * Writes a .hap of mosaics of a few founders, with a few mutations, and its map.
+	 */
+	private static void writePanel (File haplotype, File map) throws IOException {
+		Random random = new Random(21);
+		boolean[][] founders = new boolean[5][SNPS];
+		for (boolean[] founder : founders) {
+			for (int snp = 0; snp < SNPS; snp++) {
+				founder[snp] = random.nextBoolean();
+			}
+		}
+		int[] founder = new int[HAPLOTYPES];
+		PrintWriter hap = new PrintWriter(new FileWriter(haplotype));
+		PrintWriter centiMorgans = new PrintWriter(new FileWriter(map));
+		try {
+			for (int snp = 0; snp < SNPS; snp++) {
+				StringBuilder line = new StringBuilder("rs" + snp + " id " + (1000 + 100 * snp) + " A G");
+				for (int h = 0; h < HAPLOTYPES; h++) {
+					if (snp == 0 || random.nextInt(30) == 0) {
+						founder[h] = random.nextInt(founders.length);
+					}
+					boolean allele = founders[founder[h]][snp] ^ random.nextInt(100) == 0;
+					line.append(allele ? " 1" : " 0");
+				}
+				hap.println(line);
+				centiMorgans.println(0.01 * snp);
+			}
+		} finally {
+			hap.close();
+			centiMorgans.close();
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package painting;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The text written by {@link SummaryWriter} must be, byte for byte, each
+ * value's {@link Float#toString(float)} followed by a space, whether the
+ * value takes the whole number shortcut or not: zeros of either sign,
+ * whole numbers either side of 10^7, fractions either side of 10^-3 and
+ * 10^7, subnormals, infinities and NaN, and random bit patterns.
+ *
+ */
+public class SummaryWriterTest {
+	private static final int RANDOM_VALUES = 100000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void specialValues () throws IOException {
+		assertText(new float[] {
+				0.0f, -0.0f, 1.0f, -1.0f, 2.0f, 7.0f, 10.0f, 99.0f, 100.0f, 12345.0f, -12345.0f,
+				9999999.0f, 1E7f, -1E7f, 10000001.0f, 16777216.0f, 16777218.0f, 1E8f,
+				(float) Integer.MAX_VALUE, (float) Integer.MIN_VALUE, 1E10f, -1E10f,
+				Math.nextAfter(1E7f, 0), Math.nextAfter(1E7f, Double.POSITIVE_INFINITY),
+				Math.nextAfter(9999999.0f, 0), 9999998.5f, 1E7f - 0.5f,
+				1E-3f, Math.nextAfter(1E-3f, 0), Math.nextAfter(1E-3f, 1), -1E-3f,
+				1E-7f, Math.nextAfter(1E-7f, 0), Math.nextAfter(1E-7f, 1), 1E-4f,
+				0.5f, 1.5f, -1.5f, 0.1f, 1.0E-5f, 123456.7f, 0.3333333f,
+				Float.MIN_VALUE, -Float.MIN_VALUE, 2 * Float.MIN_VALUE, Float.MIN_NORMAL,
+				Math.nextAfter(Float.MIN_NORMAL, 0), -Math.nextAfter(Float.MIN_NORMAL, 0),
+				Float.intBitsToFloat(0x00400000), Float.MAX_VALUE, -Float.MAX_VALUE,
+				Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NaN,
+				Float.intBitsToFloat(0x7fc00001), Float.intBitsToFloat(0xffc00000)});
+	}
+
+	@Test
+	public void wholeNumbers () throws IOException {
+		float[] values = new float[RANDOM_VALUES];
+		Random random = new Random(5);
+		for (int i = 0; i < values.length; i++) {
+			values[i] = i < 10000 ? i : random.nextInt(20000000) - 5000000;
+		}
+		assertText(values);
+	}
+
+	@Test
+	public void randomBits () throws IOException {
+		float[] values = new float[RANDOM_VALUES];
+		Random random = new Random(9);
+		for (int i = 0; i < values.length; i++) {
+			values[i] = Float.intBitsToFloat(random.nextInt());
+		}
+		assertText(values);
+	}
+
+	/**
+	 * Writes {@code values} as the one row of both text matrices and
+	 * compares each file with the text {@link Float#toString(float)} gives.
+	 */
+	private void assertText (float[] values) throws IOException {
+		String prefix = new File(folder.getRoot(), "summary").getPath();
+		SummaryWriter writer = new SummaryWriter(prefix, values.length, true, false);
+		try {
+			writer.write(new PaintingSummaries(values, values));
+		} finally {
+			writer.close();
+		}
+		StringBuilder expected = new StringBuilder();
+		for (float value : values) {
+			expected.append(Float.toString(value)).append(' ');
+		}
+		expected.append(System.getProperty("line.separator"));
+		Charset ascii = Charset.forName("US-ASCII");
+		for (String extension : new String[] {".viterbiLengths", ".viterbiCounts"}) {
+			byte[] written = Files.readAllBytes(new File(prefix + extension).toPath());
+			assertEquals(extension, expected.toString(), new String(written, ascii));
+		}
+	}
+}
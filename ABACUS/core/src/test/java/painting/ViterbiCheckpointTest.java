@@ -0,0 +1,142 @@
+package painting;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import utilities.GeneticMap;
+import utilities.PackedHaplotypeMatrix;
+
+/**
+ * Checkpointed traceback in {@link ViterbiKernel} against keeping every
+ * backpointer row (spacing 0): with a checkpoint every SNP, every few
+ * SNPs, or fewer checkpoints than segments, each recipient must get the
+ * same path, and so the same pairwise lengths and counts.  The panel is
+ * made of three copies of the same haplotypes, so each recipient has two
+ * identical best donors, every maximum is tied, and the seeded tie
+ * breaking is exercised at every SNP.
+ *
+ */
+public class ViterbiCheckpointTest {
+	private static final int HAPLOTYPES = 48;
+	private static final int SNPS = 301;
+	private static final int COPY = HAPLOTYPES / 3;
+	private static final int FOUNDERS = 6;
+	private static final int[] SPACINGS = {1, 2, 7, 17, SNPS - 2, SNPS, 10 * SNPS};
+	private static final double EFFECTIVE_POPULATION = 10000;
+	private static final double MUTATION = 0.01;
+	private static final int BATCH = 5;
+
+	private static PackedHaplotypeMatrix haplotype;
+	private static GeneticMap geneticMap;
+
+	@BeforeClass
+	public static void setUp () {
+		ViterbiKernel.setTieSeed(11);
+		Random random = new Random(7);
+		boolean[][] founders = new boolean[FOUNDERS][SNPS];
+		for (boolean[] founder : founders) {
+			for (int snp = 0; snp < SNPS; snp++) {
+				founder[snp] = random.nextBoolean();
+			}
+		}
+		// Mosaics of the founders with a few mutations; h + N/3 and h + 2N/3 repeat h.
+		boolean[][] alleles = new boolean[HAPLOTYPES][SNPS];
+		for (int h = 0; h < COPY; h++) {
+			int founder = random.nextInt(FOUNDERS);
+			for (int snp = 0; snp < SNPS; snp++) {
+				if (random.nextInt(40) == 0) {
+					founder = random.nextInt(FOUNDERS);
+				}
+				alleles[h][snp] = founders[founder][snp] ^ random.nextInt(100) == 0;
+			}
+			alleles[h + COPY] = alleles[h];
+			alleles[h + 2 * COPY] = alleles[h];
+		}
+		haplotype = new PackedHaplotypeMatrix(SNPS, HAPLOTYPES);
+		long[] column = new long[PackedHaplotypeMatrix.wordsFor(HAPLOTYPES)];
+		int[] positions = new int[SNPS];
+		double[] centiMorgans = new double[SNPS];
+		String[] rsid = new String[SNPS];
+		for (int snp = 0; snp < SNPS; snp++) {
+			Arrays.fill(column, 0L);
+			for (int h = 0; h < HAPLOTYPES; h++) {
+				if (alleles[h][snp]) {
+					PackedHaplotypeMatrix.set(column, h);
+				}
+			}
+			haplotype.setColumn(snp, column);
+			positions[snp] = 1000 + 100 * snp;
+			centiMorgans[snp] = 0.01 * snp + 0.005 * random.nextDouble();
+			rsid[snp] = "rs" + snp;
+		}
+		geneticMap = new GeneticMap(positions, centiMorgans, rsid);
+	}
+
+	@Test
+	public void haploidPathsAgree () {
+		comparePaths(false);
+	}
+
+	@Test
+	public void diploidPathsAgree () {
+		comparePaths(true);
+	}
+
+	@Test
+	public void batchedSummariesAgree () throws IOException {
+		List<PaintingSummaries> expected = paintBatches(0);
+		for (int spacing : SPACINGS) {
+			List<PaintingSummaries> checkpointed = paintBatches(spacing);
+			for (int h = 0; h < HAPLOTYPES; h++) {
+				String message = "haplotype " + h + ", spacing " + spacing;
+				assertArrayEquals("lengths of " + message, expected.get(h).getTotal(),
+						checkpointed.get(h).getTotal(), 0.0f);
+				assertArrayEquals("counts of " + message, expected.get(h).getNumber(),
+						checkpointed.get(h).getNumber(), 0.0f);
+			}
+		}
+	}
+
+	private static void comparePaths (boolean diploid) {
+		for (int h = 0; h < HAPLOTYPES; h++) {
+			int[] expected = paint(algorithm(h, diploid, 0), 0);
+			for (int spacing : SPACINGS) {
+				assertArrayEquals("haplotype " + h + ", spacing " + spacing, expected,
+						paint(algorithm(h, diploid, spacing), spacing));
+			}
+		}
+	}
+
+	private static int[] paint (PaintingAlgorithm algorithm, int spacing) {
+		return ViterbiKernel.local().paint(haplotype, haplotype, algorithm.getHaplotypeIndex(),
+				algorithm.excludedFrom(), algorithm.excludedTo(), algorithm.transitions(), false, spacing);
+	}
+
+	/**
+	 * Paints every haplotype in batches of {@link #BATCH}, as painting does.
+	 */
+	private static List<PaintingSummaries> paintBatches (int spacing) throws IOException {
+		List<PaintingSummaries> summaries = new ArrayList<PaintingSummaries>();
+		for (int first = 0; first < HAPLOTYPES; first += BATCH) {
+			List<PaintingAlgorithm> batch = new ArrayList<PaintingAlgorithm>();
+			for (int h = first; h < Math.min(HAPLOTYPES, first + BATCH); h++) {
+				batch.add(algorithm(h, false, spacing));
+			}
+			summaries.addAll(new PaintingBatch(batch, haplotype, spacing, null, false).call());
+		}
+		return summaries;
+	}
+
+	private static PaintingAlgorithm algorithm (int h, boolean diploid, int spacing) {
+		return new PaintingAlgorithm(h, geneticMap, haplotype, EFFECTIVE_POPULATION, MUTATION, HAPLOTYPES, SNPS,
+				diploid, spacing, "");
+	}
+}
@@ -0,0 +1,70 @@
+package utilities;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * {@link CombineSummaries#combine} run in place, with the output also one
+ * of the inputs: the matrix being read must not be truncated while it is
+ * still mapped, whether the other inputs are text or binary.
+ *
+ */
+public class CombineSummariesTest {
+	private static final float[][] FIRST = {{0, 1, 2}, {1, 0, 3}, {2, 3, 0}};
+	private static final float[][] SECOND = {{0, 0.5f, 4}, {0.5f, 0, 1E-3f}, {4, 1E-3f, 0}};
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void inPlaceWithTextInput () throws IOException, InterruptedException {
+		String first = write("first", FIRST);
+		String second = write("second", SECOND);
+		String total = new File(folder.getRoot(), "total").getPath();
+		CombineSummaries.combine(Arrays.asList(first, second), total, true, 1);
+		CombineSummaries.combine(Arrays.asList(total, second), total, true, 2);
+		assertMatrix(total, CombineSummaries.getTArray(CombineSummaries.getTArray(FIRST, SECOND), SECOND));
+	}
+
+	@Test
+	public void inPlaceWithBinaryInputs () throws IOException, InterruptedException {
+		String total = new File(folder.getRoot(), "total").getPath();
+		CombineSummaries.combine(Arrays.asList(write("first", FIRST), write("second", SECOND)), total, false, 1);
+		CombineSummaries.combine(Arrays.asList(total, total), total, true, 2);
+		float[][] once = CombineSummaries.getTArray(FIRST, SECOND);
+		assertMatrix(total, CombineSummaries.getTArray(once, once));
+		assertFalse(new File(SummaryMatrix.pathFor(total) + ".tmp").exists());
+	}
+
+	private String write (String name, float[][] matrix) throws IOException {
+		String path = new File(folder.getRoot(), name).getPath();
+		CombineSummaries.writeArray(path, matrix);
+		return path;
+	}
+
+	private static void assertMatrix (String path, float[][] expected) throws IOException {
+		SummaryMatrix binary = SummaryMatrix.find(path, expected.length);
+		try {
+			float[] row = new float[expected.length];
+			for (int i = 0; i < expected.length; i++) {
+				binary.readRow(i, row);
+				assertArrayEquals("binary row " + i, expected[i], row, 0.0f);
+			}
+		} finally {
+			binary.close();
+		}
+		float[][] text = CombineSummaries.readArray(path);
+		for (int i = 0; i < expected.length; i++) {
+			assertArrayEquals("text row " + i, expected[i], text[i], 0.0f);
+		}
+	}
+
+}
@@ -0,0 +1,93 @@
+package utilities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * {@link HapLineReader} must split a line into the same tokens when it
+ * counts the haplotypes as when it parses the alleles, whatever the runs
+ * of spaces, and must reject any allele other than 0 or 1.
+ *
+ */
+public class HapLineReaderTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void runsOfSpaces () throws IOException {
+		String text = "  rs1 id  100 A G 1  0 1 1 \r\n" +
+				"\n" +
+				"rs2   id 200 A G 0 0  1 0   \n" +
+				"rs3 id 300 A G 1 1 1 0";
+		long[][] columns = read(text, 4, 3);
+		assertEquals(Long.parseLong("1101", 2), columns[0][0]);
+		assertEquals(Long.parseLong("0100", 2), columns[1][0]);
+		assertEquals(Long.parseLong("0111", 2), columns[2][0]);
+	}
+
+	@Test
+	public void rejectsOtherAlleles () throws IOException {
+		for (String allele : new String[] {"2", "01", "-1", "x", "1.0", "\t1"}) {
+			try {
+				read("rs1 id 100 A G 1 0 1\nrs2 id 200 A G 1 " + allele + " 0\n", 3, 2);
+				fail("allele " + allele + " was read");
+			} catch (IOException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("rs2"));
+			}
+		}
+	}
+
+	@Test
+	public void rejectsWrongCounts () throws IOException {
+		for (String line : new String[] {"rs2 id 200 A G 1 0", "rs2 id 200 A G 1 0 1 1"}) {
+			try {
+				read("rs1 id 100 A G 1 0 1\n" + line + "\n", 3, 2);
+				fail(line + " was read");
+			} catch (IOException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("rs2"));
+			}
+		}
+	}
+
+	/**
+	 * Counts the haplotypes of {@code text}, which must be
+	 * {@code numberOfHaplotypes}, and reads its {@code snps} SNPs.
+	 * @return {@code long[snps][]} packed alleles of each SNP
+	 */
+	private long[][] read (String text, int numberOfHaplotypes, int snps) throws IOException {
+		File file = folder.newFile();
+		FileOutputStream output = new FileOutputStream(file);
+		try {
+			output.write(text.getBytes(Charset.forName("US-ASCII")));
+		} finally {
+			output.close();
+		}
+		RandomAccessFile hap = new RandomAccessFile(file, "r");
+		try {
+			assertEquals(numberOfHaplotypes, HapLineReader.countHaplotypes(hap.getChannel()));
+			HapLineReader reader = new HapLineReader(hap.getChannel(), 0, hap.length(), numberOfHaplotypes);
+			long[][] columns = new long[snps][PackedHaplotypeMatrix.wordsFor(numberOfHaplotypes)];
+			for (int snp = 0; snp < snps; snp++) {
+				assertTrue(reader.next(columns[snp], 0));
+				assertEquals("rs" + (snp + 1), reader.rsid());
+				assertEquals(100 * (snp + 1), reader.snpPosition());
+			}
+			assertFalse(reader.next(new long[PackedHaplotypeMatrix.wordsFor(numberOfHaplotypes)], 0));
+			return columns;
+		} finally {
+			hap.close();
+		}
+	}
+}
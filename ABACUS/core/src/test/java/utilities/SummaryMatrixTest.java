@@ -0,0 +1,90 @@
+package utilities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * {@link SummaryMatrix} written with {@link SummaryMatrix#create},
+ * {@link SummaryMatrix#writeRow} and {@link SummaryMatrix#close}, then
+ * read back with {@link SummaryMatrix#open}: every value must come back
+ * with the same bits, zeros of either sign, subnormals and NaN payloads
+ * included, and a matrix that was never closed must not open.
+ *
+ */
+public class SummaryMatrixTest {
+	private static final int ROWS = 37;
+	private static final int COLUMNS = 53;
+	private static final float[] SPECIAL = {
+			0.0f, -0.0f, 1.0f, -1.0f, 1E7f, 1E-7f, Float.MIN_VALUE, -Float.MIN_VALUE,
+			Float.MIN_NORMAL, Float.intBitsToFloat(0x00400000), Float.MAX_VALUE,
+			Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NaN,
+			Float.intBitsToFloat(0x7fc00001), Float.intBitsToFloat(0xffc12345)};
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void roundTripKeepsBits () throws IOException {
+		String path = new File(folder.getRoot(), "summary" + SummaryMatrix.EXTENSION).getPath();
+		float[][] expected = values();
+		SummaryMatrix written = SummaryMatrix.create(path, ROWS, COLUMNS);
+		// In reverse, as rows are written in whatever order recipients finish.
+		for (int row = ROWS - 1; row >= 0; row--) {
+			written.writeRow(row, expected[row]);
+		}
+		written.close();
+
+		SummaryMatrix read = SummaryMatrix.open(path);
+		assertEquals(ROWS, read.rows());
+		assertEquals(COLUMNS, read.columns());
+		float[][] array = read.toArray();
+		for (int row = 0; row < ROWS; row++) {
+			for (int column = 0; column < COLUMNS; column++) {
+				assertEquals("row " + row + ", column " + column,
+						Integer.toHexString(Float.floatToRawIntBits(expected[row][column])),
+						Integer.toHexString(Float.floatToRawIntBits(array[row][column])));
+			}
+		}
+	}
+
+	@Test
+	public void unclosedDoesNotOpen () throws IOException {
+		String path = new File(folder.getRoot(), "partial" + SummaryMatrix.EXTENSION).getPath();
+		float[][] values = values();
+		SummaryMatrix written = SummaryMatrix.create(path, ROWS, COLUMNS);
+		for (int row = 0; row < ROWS; row++) {
+			written.writeRow(row, values[row]);
+		}
+		try {
+			SummaryMatrix.open(path);
+			fail(path + " opened before it was closed");
+		} catch (IOException e) {
+			// Expected: the magic is only written by close.
+		}
+		assertNull(SummaryMatrix.find(path, ROWS));
+	}
+
+	/**
+	 * @return {@code float[ROWS][COLUMNS]} the special values, then random bits
+	 */
+	private static float[][] values () {
+		Random random = new Random(13);
+		float[][] values = new float[ROWS][COLUMNS];
+		for (int row = 0; row < ROWS; row++) {
+			for (int column = 0; column < COLUMNS; column++) {
+				int k = row * COLUMNS + column;
+				values[row][column] = k < SPECIAL.length ? SPECIAL[k] : Float.intBitsToFloat(random.nextInt());
+			}
+		}
+		return values;
+	}
+}
@@ -0,0 +1,123 @@
+package utilities;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * {@link MetricsRecorder} committing Java Flight Recorder events, so that
+ * a recording taken with {@code -XX:StartFlightRecording} shows each phase
+ * of the run alongside the JVM's own GC, I/O and thread events.  Phases
+ * are duration events; painted batches and tested runs are committed as
+ * they finish, their time held in a field.
+ * <p>
+ * Built by the {@code jfr} module with JDK 11 or later.  To record, put
+ * its jar beside the core jar, start the JVM with
+ * {@code -XX:StartFlightRecording=filename=run.jfr}, and give painting
+ * {@code -metrics=} or ABACUS {@code --metrics:}; the events are
+ * committed only while metrics are being written.
+ *
+ */
+class JfrMetricsRecorder extends MetricsRecorder {
+	private PhaseEvent phase;
+
+	JfrMetricsRecorder () {
+		// Fail here, and fall back, if the JVM has no flight recorder.
+		FlightRecorder.isAvailable();
+	}
+
+	@Override
+	String describe () {
+		return "JFR";
+	}
+
+	@Override
+	synchronized void beginPhase (String name) {
+		phase = new PhaseEvent();
+		phase.phase = name;
+		phase.begin();
+	}
+
+	@Override
+	synchronized void endPhase () {
+		if (phase != null) {
+			phase.commit();
+			phase = null;
+		}
+	}
+
+	@Override
+	void painted (int firstHaplotype, int haplotypes, int snps, long nanos) {
+		PaintEvent event = new PaintEvent();
+		if (event.shouldCommit()) {
+			event.firstHaplotype = firstHaplotype;
+			event.haplotypes = haplotypes;
+			event.snps = snps;
+			event.time = nanos;
+			event.commit();
+		}
+	}
+
+	@Override
+	void tested (int firstSnp, int snps, long newtonIterations, long nanos) {
+		BayesFactorEvent event = new BayesFactorEvent();
+		if (event.shouldCommit()) {
+			event.firstSnp = firstSnp;
+			event.snps = snps;
+			event.newtonIterations = newtonIterations;
+			event.time = nanos;
+			event.commit();
+		}
+	}
+
+	@Name("abacus.Phase")
+	@Label("Phase")
+	@Category("ABACUS")
+	@Description("A phase of painting or ABACUS")
+	static class PhaseEvent extends Event {
+		@Label("Phase")
+		String phase;
+	}
+
+	@Name("abacus.PaintBatch")
+	@Label("Paint Batch")
+	@Category("ABACUS")
+	@Description("Recipients painted together in one column pass")
+	static class PaintEvent extends Event {
+		@Label("First Haplotype")
+		int firstHaplotype;
+
+		@Label("Haplotypes")
+		int haplotypes;
+
+		@Label("SNPs")
+		int snps;
+
+		@Label("Paint Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long time;
+	}
+
+	@Name("abacus.BayesFactorRun")
+	@Label("Bayes Factor Run")
+	@Category("ABACUS")
+	@Description("Consecutive SNPs tested together")
+	static class BayesFactorEvent extends Event {
+		@Label("First SNP")
+		int firstSnp;
+
+		@Label("SNPs")
+		int snps;
+
+		@Label("Newton Iterations")
+		long newtonIterations;
+
+		@Label("Test Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long time;
+	}
+}
@@ -0,0 +1,102 @@
+package painting;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link ViterbiStep} on the JDK Vector API.  Each vector of states does
+ * the stay/jump compare and blend, the emission add and the running
+ * maximum across all lanes at once; each lane keeps its own maximum and
+ * tie count, which are combined at the end of the range.  The arithmetic
+ * per state is exactly that of {@link ScalarViterbiStep}, so values,
+ * stay bits, maximum and tie count are bit for bit the same.
+ * <p>
+ * Compile with JDK 16 or later and {@code --add-modules jdk.incubator.vector}
+ * against the classes of {@code src}; run with the same module flag.
+ *
+ */
+class VectorViterbiStep extends ViterbiStep {
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+	private static final int LANES = SPECIES.length();
+	private static final long LANE_BITS = LANES == 64 ? -1L : (1L << LANES) - 1;
+
+	@Override
+	protected boolean isSupported () {
+		return LANES > 1;
+	}
+
+	@Override
+	String describe () {
+		return "vector (" + LANES + " lanes)";
+	}
+
+	@Override
+	void step (double[] current, double[] next, int from, int to, double jump, double logStay,
+			double logMatch, double logMismatch, long[] matchWords, long[] row) {
+		DoubleVector jumps = DoubleVector.broadcast(SPECIES, jump);
+		DoubleVector mismatches = DoubleVector.broadcast(SPECIES, logMismatch);
+		DoubleVector ones = DoubleVector.broadcast(SPECIES, 1.0);
+		DoubleVector laneMax = DoubleVector.broadcast(SPECIES, Double.NEGATIVE_INFINITY);
+		DoubleVector laneCount = DoubleVector.zero(SPECIES);
+		int i = from;
+		int bound = from + SPECIES.loopBound(to - from);
+		for (; i < bound; i += LANES) {
+			DoubleVector stay = DoubleVector.fromArray(SPECIES, current, i).add(logStay);
+			VectorMask<Double> stays = stay.sub(jumps).compare(VectorOperators.GT, 0.0);
+			VectorMask<Double> matches = VectorMask.fromLong(SPECIES, bits(matchWords, i));
+			DoubleVector value = jumps.blend(stay, stays).add(mismatches.blend(logMatch, matches));
+			value.intoArray(next, i);
+			setBits(row, i, stays.toLong());
+
+			VectorMask<Double> greater = value.compare(VectorOperators.GT, laneMax);
+			VectorMask<Double> equal = value.compare(VectorOperators.EQ, laneMax);
+			laneMax = laneMax.blend(value, greater);
+			laneCount = laneCount.add(ones, equal).blend(ones, greater);
+		}
+		if (i > from) {
+			double rangeMax = laneMax.reduceLanes(VectorOperators.MAX);
+			int rangeCount = (int) laneCount.reduceLanes(VectorOperators.ADD,
+					laneMax.compare(VectorOperators.EQ, rangeMax));
+			if (rangeMax > max) {
+				max = rangeMax;
+				maxCount = rangeCount;
+			} else if (rangeMax == max) {
+				maxCount += rangeCount;
+			}
+		}
+		for (; i < to; i++) {
+			double stay = current[i] + logStay;
+			double value;
+			if (stay - jump > 0) {
+				value = stay + ScalarViterbiStep.emmision(matchWords, i, logMatch, logMismatch);
+				row[i >>> 6] |= 1L << i;
+			} else {
+				value = jump + ScalarViterbiStep.emmision(matchWords, i, logMatch, logMismatch);
+			}
+			next[i] = value;
+			track(value);
+		}
+	}
+
+	/**
+	 * @return the {@link #LANES} bits of {@code words} starting at bit {@code i}
+	 */
+	private static long bits (long[] words, int i) {
+		int shift = i & 63;
+		long bits = words[i >>> 6] >>> shift;
+		if (shift + LANES > 64) {
+			bits |= words[(i >>> 6) + 1] << (64 - shift);
+		}
+		return bits & LANE_BITS;
+	}
+
+	private static void setBits (long[] words, int i, long bits) {
+		int shift = i & 63;
+		words[i >>> 6] |= bits << shift;
+		if (shift + LANES > 64) {
+			words[(i >>> 6) + 1] |= bits >>> (64 - shift);
+		}
+	}
+}
@@ -29,18 +29,54 @@ public class ABACUSFlags {
 			"./genotypes_test.viterbiLengths",
 			"Location of lengths file for population structure adjustment.");
 	
+	private static final String OWN_COUNTS_FLAG_NAME = "own_counts";
+	private StringFlag ownCountsFlag = new StringFlag(OWN_COUNTS_FLAG_NAME,
+			"",
+			"Counts of the tested chromosome alone; when given, counts are genome wide and this is left out.");
+	
+	private static final String OWN_LENGTHS_FLAG_NAME = "own_lengths";
+	private StringFlag ownLengthsFlag = new StringFlag(OWN_LENGTHS_FLAG_NAME,
+			"",
+			"Lengths of the tested chromosome alone; when given, lengths are genome wide and this is left out.");
+	
 	private static final String NUMBER_OF_THREADS_FLAG_NAME = "number_of_threads";
 	private IntegerFlag numberOfThreadsFlag = new IntegerFlag(NUMBER_OF_THREADS_FLAG_NAME,
 			2,
 			"Number of threads to run ABACUS.");
 	
+	private static final String WINDOW_SIZE_FLAG_NAME = "window_size";
+	private IntegerFlag windowSizeFlag = new IntegerFlag(WINDOW_SIZE_FLAG_NAME,
+			1000,
+			"Number of SNPs read and tested per window.");
+	
+	private static final String FIRST_SNP_FLAG_NAME = "first_snp";
+	private IntegerFlag firstSnpFlag = new IntegerFlag(FIRST_SNP_FLAG_NAME,
+			0,
+			"Index of the first SNP to test.");
+	
+	private static final String LAST_SNP_FLAG_NAME = "last_snp";
+	private IntegerFlag lastSnpFlag = new IntegerFlag(LAST_SNP_FLAG_NAME,
+			-1,
+			"Index of the last SNP to test, -1 for the end of the chromosome.");
+	
+	private static final String METRICS_FLAG_NAME = "metrics";
+	private StringFlag metricsFlag = new StringFlag(METRICS_FLAG_NAME,
+			"",
+			"File to write run time metrics to, one JSON line per interval; none when empty.");
+	
+	private static final String METRICS_INTERVAL_FLAG_NAME = "metrics_interval";
+	private IntegerFlag metricsIntervalFlag = new IntegerFlag(METRICS_INTERVAL_FLAG_NAME,
+			10,
+			"Seconds between lines of the metrics file.");
+	
 	private static final Set<String> FLAG_NAMES = ImmutableSet.of(HAPLOTYPE_FLAG_NAME,
 			GENETIC_MAP_FLAG_NAME, COUNTS_FLAG_NAME, LENGTHS_FLAG_NAME,
-			NUMBER_OF_THREADS_FLAG_NAME);
+			OWN_COUNTS_FLAG_NAME, OWN_LENGTHS_FLAG_NAME,
+			NUMBER_OF_THREADS_FLAG_NAME, WINDOW_SIZE_FLAG_NAME, FIRST_SNP_FLAG_NAME,
+			LAST_SNP_FLAG_NAME, METRICS_FLAG_NAME, METRICS_INTERVAL_FLAG_NAME);
 
 	public static final double SIGMA_BETA = 1.0;
 	public static final int K = 10;
-	public static final int NUMBER_OF_LOOPS = 100;
 	
 	public static ABACUSFlags makeFlags(String[] strings) throws Exception {
 		ABACUSFlags flags = new ABACUSFlags();
@@ -57,8 +93,22 @@ public class ABACUSFlags {
 				continue;
 				case LENGTHS_FLAG_NAME : flags.setLengths(flag[1]);
 				continue;
+				case OWN_COUNTS_FLAG_NAME : flags.setOwnCounts(flag[1]);
+				continue;
+				case OWN_LENGTHS_FLAG_NAME : flags.setOwnLengths(flag[1]);
+				continue;
 				case NUMBER_OF_THREADS_FLAG_NAME : flags.setTheads(Integer.parseInt(flag[1]));
 				continue;
+				case WINDOW_SIZE_FLAG_NAME : flags.setWindowSize(Integer.parseInt(flag[1]));
+				continue;
+				case FIRST_SNP_FLAG_NAME : flags.setFirstSnp(Integer.parseInt(flag[1]));
+				continue;
+				case LAST_SNP_FLAG_NAME : flags.setLastSnp(Integer.parseInt(flag[1]));
+				continue;
+				case METRICS_FLAG_NAME : flags.setMetrics(flag.length > 1 ? flag[1] : "");
+				continue;
+				case METRICS_INTERVAL_FLAG_NAME : flags.setMetricsInterval(Integer.parseInt(flag[1]));
+				continue;
 				default : throw new Exception("Flag " + flag[0] + " is not a valid name.\n");
 				}
 			}
@@ -83,10 +133,38 @@ public class ABACUSFlags {
 		lengthsFlag.setValue(lengths);
 	}
 	
+	private void setOwnCounts(String counts) {
+		ownCountsFlag.setValue(counts);
+	}
+	
+	private void setOwnLengths(String lengths) {
+		ownLengthsFlag.setValue(lengths);
+	}
+	
 	private void setTheads(int threads) {
 		numberOfThreadsFlag.setValue(threads);
 	}
 	
+	private void setWindowSize(int windowSize) {
+		windowSizeFlag.setValue(windowSize);
+	}
+	
+	private void setFirstSnp(int firstSnp) {
+		firstSnpFlag.setValue(firstSnp);
+	}
+	
+	private void setLastSnp(int lastSnp) {
+		lastSnpFlag.setValue(lastSnp);
+	}
+	
+	private void setMetrics(String metrics) {
+		metricsFlag.setValue(metrics);
+	}
+	
+	private void setMetricsInterval(int metricsInterval) {
+		metricsIntervalFlag.setValue(metricsInterval);
+	}
+	
 	public String getHaplotype() {
 		return haplotypeFlag.getValue();
 	}
@@ -99,9 +177,30 @@ public class ABACUSFlags {
 	public String getLengthsPath() {
 		return lengthsFlag.getValue();
 	}
+	public String getOwnCountsPath() {
+		return ownCountsFlag.getValue();
+	}
+	public String getOwnLengthsPath() {
+		return ownLengthsFlag.getValue();
+	}
 	public Integer getNumberOfThreads() {
 		return numberOfThreadsFlag.getValue();
 	}
+	public Integer getWindowSize() {
+		return windowSizeFlag.getValue();
+	}
+	public Integer getFirstSnp() {
+		return firstSnpFlag.getValue();
+	}
+	public Integer getLastSnp() {
+		return lastSnpFlag.getValue();
+	}
+	public String getMetrics() {
+		return metricsFlag.getValue();
+	}
+	public Integer getMetricsInterval() {
+		return metricsIntervalFlag.getValue();
+	}
 	
 	void printDialogue() {
 		System.out.println("Commencing ABACUS on:");
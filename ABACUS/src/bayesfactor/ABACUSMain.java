@@ -2,6 +2,7 @@ package bayesfactor;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -9,12 +10,23 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import utilities.Data;
+import utilities.Metrics;
+import utilities.PaintingStore;
+import utilities.PanelFile;
+import utilities.SnpSource;
+import utilities.SnpWindow;
+import utilities.SummaryMatrix;
+import utilities.SummaryRows;
 
 public class ABACUSMain {
 	/**
@@ -23,85 +35,350 @@ public class ABACUSMain {
 	 * @param -lengths:pathtolengthfile
 	 * @param -counts:pathtocountfile
 	 * @param -cores:numberOfThreads
+	 * @param -first_snp:0 -last_snp:-1 range of SNPs to test, so a chromosome can be split
+	 *  across processes
 	 * @param -debug
+	 * @param -own_lengths:path -own_counts:path summaries of this chromosome
+	 *  alone, making -lengths and -counts genome wide totals from which
+	 *  they are subtracted (leave one chromosome out)
+	 * @param -metrics:path -metrics_interval:10 write run time metrics, as painting does
+	 * The summaries are mapped from the binary matrices painting writes
+	 * beside the text ones (path.bin), or given directly, when present.
+	 * The painting is read from prefix.painting when painting wrote one no
+	 * older than its inputs and summaries, and from the per haplotype
+	 * .viterbi files otherwise.
 	 */
 	public static void main (String[] args) {
+		boolean failed = false;
 		try {
 			ABACUSFlags flags = ABACUSFlags.makeFlags(args);
 			flags.printDialogue();
+			if (!flags.getMetrics().isEmpty()) {
+				Metrics.start(flags.getMetrics(), flags.getMetricsInterval());
+			}
+			Metrics.phase("parse", null, -1);
 			String prefix = flags.getHaplotype().split(".hap")[0];
-			Data data = Data.read(flags.getHaplotype(), flags.getGeneticMap());
+			SnpSource source = Data.stream(flags.getHaplotype(), flags.getGeneticMap(), flags.getWindowSize());
+			Metrics.add(Metrics.Counter.BYTES_READ,
+					new File(flags.getHaplotype()).length() + new File(flags.getGeneticMap()).length());
 			System.out.println("Finished data import, starting ABACUS!");
-			ArrayList<Integer> start = new ArrayList<Integer>();
-			ArrayList<Integer> end = new ArrayList<Integer>();
-			int numberOfHaplotypes = data.numberOfHaplotypes();
-			int numberOfSnps = data.numberOfSnps();
-			int size = numberOfSnps / ABACUSFlags.NUMBER_OF_LOOPS; 
-			for (int loop = 0; loop < ABACUSFlags.NUMBER_OF_LOOPS - 1; loop++) {
-				start.add(loop, loop * size);
-				end.add(loop, (loop + 1) * size);
-			}
-			start.add(ABACUSFlags.NUMBER_OF_LOOPS - 1, (ABACUSFlags.NUMBER_OF_LOOPS - 1) * size);
-			end.add(ABACUSFlags.NUMBER_OF_LOOPS - 1, numberOfSnps);
-			
-			float[][] counts = readArray(flags.getCountsPath(), numberOfHaplotypes);
-			float[][] lengths = readArray(flags.getLengthsPath(), numberOfHaplotypes);
+			int numberOfHaplotypes = source.numberOfHaplotypes();
+			int numberOfSnps = source.numberOfSnps();
 			
-			LaplacePair arrayAndMean = getPairArray(lengths, counts);
+			SummaryRows lengths = openSummary(flags.getLengthsPath(), numberOfHaplotypes);
+			SummaryRows counts = openSummary(flags.getCountsPath(), numberOfHaplotypes);
+			SummaryRows ownLengths = null;
+			SummaryRows ownCounts = null;
+			if (!flags.getOwnLengthsPath().isEmpty() || !flags.getOwnCountsPath().isEmpty()) {
+				System.out.println("Leaving this chromosome out of the genome wide averages");
+				ownLengths = openSummary(flags.getOwnLengthsPath(), numberOfHaplotypes);
+				ownCounts = openSummary(flags.getOwnCountsPath(), numberOfHaplotypes);
+			}
+			LaplacePair arrayAndMean = getPairArray(numberOfHaplotypes, lengths, counts, ownLengths, ownCounts);
 			
 			float[][] average = arrayAndMean.getArray();
 			
-			Map<Integer, BufferedReader> readers = new HashMap<Integer, BufferedReader>();
+			PaintingStore store = PaintingStore.find(prefix, numberOfHaplotypes, numberOfSnps, flags.getHaplotype(),
+					flags.getGeneticMap(), prefix + PanelFile.EXTENSION, prefix + ".viterbiLengths",
+					prefix + ".viterbiCounts", SummaryMatrix.pathFor(prefix + ".viterbiLengths"),
+					SummaryMatrix.pathFor(prefix + ".viterbiCounts"));
+			if (store != null) {
+				System.out.println("Reading painting store " + PaintingStore.pathFor(prefix));
+			}
+			test(source, store, prefix, average, flags.getNumberOfThreads(), flags.getWindowSize(),
+					flags.getFirstSnp(), flags.getLastSnp());
+			System.out.println("ABACUS Complete!");
+		} catch (IOException e) {
+			e.printStackTrace();
+			failed = true;
+		} catch (Exception e) {
+			e.printStackTrace();
+			failed = true;
+		} finally {
+			Metrics.stop();
+		}
+		if (failed) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Tests every SNP of {@code source} in {@code [firstSnp, lastSnp]},
+	 * writing prefix.bayesfactor.  Closes {@code source} and {@code store}.
+	 * <p>
+	 * The calling thread only reads: it hands runs of consecutive SNPs,
+	 * sized by {@link BatchLaplaceApproximation#snpsPerBatch}, to one pool
+	 * of {@code numberOfThreads} workers and queues each run's result, and
+	 * a writer thread writes the results in SNP order as they complete.
+	 * The queue is bounded, so the reader stays at most
+	 * {@link #PENDING_PER_THREAD} runs per worker ahead of the writer.
+	 * Each run is tested as one {@link BatchLaplaceApproximation}.
+	 * @param source {@link SnpSource} of the panel
+	 * @param store {@link PaintingStore} holding the painting, or {@code null}
+	 *  to read the .viterbi files of {@code prefix}
+	 * @param average {@code float[][]} pairwise genome wide average lengths
+	 * @param lastSnp {@code int} last SNP tested, -1 for the end
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static void test (SnpSource source, PaintingStore store, String prefix, float[][] average,
+			int numberOfThreads, int windowSize, int firstSnp, int lastSnp) throws IOException, InterruptedException {
+		int numberOfHaplotypes = source.numberOfHaplotypes();
+		int numberOfSnps = source.numberOfSnps();
+		if (lastSnp < 0) {
+			lastSnp = Integer.MAX_VALUE;
+		}
+		Map<Integer, BufferedReader> readers = new HashMap<Integer, BufferedReader>();
+		if (store == null) {
 			for (int haplotypeIndex = 0; haplotypeIndex < numberOfHaplotypes; haplotypeIndex++) {
 				String path = prefix + "_" + haplotypeIndex + ".viterbi";
 				readers.put(haplotypeIndex, new BufferedReader(new FileReader(path)));
 			}
-			BufferedWriter stochasticPair = new BufferedWriter(new FileWriter(prefix + ".bayesfactor"));
-			for (int loop = 0; loop < ABACUSFlags.NUMBER_OF_LOOPS; loop++) {
-				ExecutorService executor = Executors.newFixedThreadPool(flags.getNumberOfThreads());
-				List<Future<BayesfactorOut>> list = new ArrayList<Future<BayesfactorOut>>();
-				for (int snp = start.get(loop); snp < end.get(loop); snp++) {
-					double[] snpLength = new double[numberOfHaplotypes];
-					int[] viterbi = new int[numberOfHaplotypes];
-					for (int haplotypeIndex = 0; haplotypeIndex < numberOfHaplotypes; haplotypeIndex++) {
-						String str = readers.get(haplotypeIndex).readLine();
-						String[] tmp = str.split(" ");
-						snpLength[haplotypeIndex] = Double.parseDouble(tmp[3]);
-						viterbi[haplotypeIndex] = Integer.parseInt(tmp[2]);
+		}
+		int snpsPerRun = BatchLaplaceApproximation.snpsPerBatch(numberOfHaplotypes);
+		int total = numberOfSnps < 0 ? -1 : Math.max(0, Math.min(numberOfSnps - 1, lastSnp) - firstSnp + 1);
+		Metrics.phase("test", Metrics.Counter.SNPS_TESTED, total);
+		BlockingQueue<PendingRun> pending = new ArrayBlockingQueue<PendingRun>(PENDING_PER_THREAD * numberOfThreads);
+		ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
+		ExecutorService writerThread = Executors.newSingleThreadExecutor();
+		Future<Void> writer = writerThread.submit(new BayesfactorWriter(prefix + ".bayesfactor", pending, total,
+				windowSize));
+		try {
+			SnpWindow window = new SnpWindow(windowSize, source.wordsPerSnp());
+			SnpRun run = new SnpRun(store, average);
+			while (window.firstSnp() + window.size() <= lastSnp && source.read(window)) {
+				for (int index = 0; index < window.size(); index++) {
+					int snp = window.firstSnp() + index;
+					if (store != null && snp >= store.numberOfSnps()) {
+						throw new IOException("The painting store holds only " + store.numberOfSnps() + " SNPs.");
+					}
+					double[] snpLength = null;
+					int[] viterbi = null;
+					if (store == null) {
+						snpLength = new double[numberOfHaplotypes];
+						viterbi = new int[numberOfHaplotypes];
+						for (int haplotypeIndex = 0; haplotypeIndex < numberOfHaplotypes; haplotypeIndex++) {
+							String str = readers.get(haplotypeIndex).readLine();
+							if (snp < firstSnp || snp > lastSnp) {
+								continue;
+							}
+							String[] tmp = str.split(" ");
+							snpLength[haplotypeIndex] = Double.parseDouble(tmp[3]);
+							viterbi[haplotypeIndex] = Integer.parseInt(tmp[2]);
+						}
+					}
+					if (snp < firstSnp || snp > lastSnp) {
+						continue;
+					}
+					long[] alleles = new long[window.wordsPerSnp()];
+					window.copyColumn(index, alleles);
+					run.add(snp, window.rsid(index), window.position(index), alleles, snpLength, viterbi);
+					if (run.size() == snpsPerRun) {
+						put(pending, new PendingRun(run, executor.submit(run)), writer);
+						run = new SnpRun(store, average);
 					}
-					ProbabilityModel worker = new ProbabilityModel(snpLength, viterbi,
-							data.getHaplotype()[snp], average, snp, ABACUSFlags.SIGMA_BETA,
-							ABACUSFlags.K); 
-					Future<BayesfactorOut> submit = executor.submit(worker);
-					list.add(submit);
 				}
-				for (Future<BayesfactorOut> future : list) {
+			}
+			if (run.size() > 0) {
+				put(pending, new PendingRun(run, executor.submit(run)), writer);
+			}
+			put(pending, PendingRun.END, writer);
+			writer.get();
+		} catch (ExecutionException e) {
+			throw new IOException("Writing " + prefix + ".bayesfactor failed.", e.getCause());
+		} finally {
+			executor.shutdownNow();
+			writerThread.shutdownNow();
+			source.close();
+			for (BufferedReader reader : readers.values()) {
+				reader.close();
+			}
+			if (store != null) {
+				store.close();
+			}
+		}
+	}
+
+	/**
+	 * Runs that may be queued for the writer per worker thread.
+	 */
+	private static final int PENDING_PER_THREAD = 4;
+
+	/**
+	 * Queues {@code run} for the writer, giving up if the writer has stopped.
+	 */
+	private static void put (BlockingQueue<PendingRun> pending, PendingRun run, Future<Void> writer)
+			throws InterruptedException, ExecutionException {
+		while (!pending.offer(run, 100, TimeUnit.MILLISECONDS)) {
+			if (writer.isDone()) {
+				writer.get();
+				throw new ExecutionException(new IllegalStateException("The writer stopped early."));
+			}
+		}
+	}
+
+	/**
+	 * Consecutive SNPs tested together by one worker.  With a
+	 * {@link PaintingStore} the worker reads the painting itself; otherwise
+	 * it is read by the caller from the .viterbi files.
+	 */
+	private static class SnpRun implements Callable<BayesfactorOut[]> {
+		private final PaintingStore store;
+		private final float[][] average;
+		private final List<Integer> snps = new ArrayList<Integer>();
+		private final List<String> rsids = new ArrayList<String>();
+		private final List<Integer> positions = new ArrayList<Integer>();
+		private final List<long[]> alleles = new ArrayList<long[]>();
+		private final List<double[]> lengths = new ArrayList<double[]>();
+		private final List<int[]> viterbi = new ArrayList<int[]>();
+
+		SnpRun (PaintingStore store, float[][] average) {
+			this.store = store;
+			this.average = average;
+		}
+
+		void add (int snp, String rsid, int position, long[] snpAlleles, double[] snpLengths, int[] snpViterbi) {
+			snps.add(snp);
+			rsids.add(rsid);
+			positions.add(position);
+			alleles.add(snpAlleles);
+			lengths.add(snpLengths);
+			viterbi.add(snpViterbi);
+		}
+
+		int size () {
+			return snps.size();
+		}
+
+		@Override
+		public BayesfactorOut[] call () {
+			long start = Metrics.enabled() ? System.nanoTime() : 0;
+			int numberOfHaplotypes = average.length;
+			BatchLaplaceApproximation batch = new BatchLaplaceApproximation(snps.size(), numberOfHaplotypes,
+					ABACUSFlags.SIGMA_BETA, ABACUSFlags.K);
+			double[] snpLength = new double[numberOfHaplotypes];
+			int[] snpViterbi = new int[numberOfHaplotypes];
+			for (int i = 0; i < snps.size(); i++) {
+				if (store != null) {
+					store.read(snps.get(i), snpViterbi, snpLength);
+					batch.add(snps.get(i), snpLength, snpViterbi, alleles.get(i), average);
+				} else {
+					batch.add(snps.get(i), lengths.get(i), viterbi.get(i), alleles.get(i), average);
+				}
+			}
+			BayesfactorOut[] out = batch.getBF();
+			if (start != 0) {
+				if (store != null) {
+					Metrics.add(Metrics.Counter.BYTES_READ, 8L * numberOfHaplotypes * snps.size());
+				}
+				Metrics.tested(snps.get(0), snps.size(), batch.newtonIterations(), System.nanoTime() - start);
+			}
+			return out;
+		}
+	}
+
+	/**
+	 * A run handed to the workers, in the order it is to be written.
+	 */
+	private static class PendingRun {
+		static final PendingRun END = new PendingRun(null, null);
+
+		final SnpRun run;
+		final Future<BayesfactorOut[]> result;
+
+		PendingRun (SnpRun run, Future<BayesfactorOut[]> result) {
+			this.run = run;
+			this.result = result;
+		}
+	}
+
+	/**
+	 * Writes each queued run's Bayes factors as soon as it and every run
+	 * before it have been tested, reporting progress as it goes.  If a run
+	 * fails the runs still queued are cancelled, the partial file is
+	 * deleted and the failure is thrown, so that it fails the command.
+	 */
+	private static class BayesfactorWriter implements Callable<Void> {
+		private final String path;
+		private final BlockingQueue<PendingRun> pending;
+		private final int total;
+		private final int reportEvery;
+		private int written = 0;
+		private int percent = 0;
+
+		BayesfactorWriter (String path, BlockingQueue<PendingRun> pending, int total, int reportEvery) {
+			this.path = path;
+			this.pending = pending;
+			this.total = total;
+			this.reportEvery = Math.max(1, reportEvery);
+		}
+
+		@Override
+		public Void call () throws IOException, InterruptedException {
+			BufferedWriter stochasticPair = new BufferedWriter(new FileWriter(path));
+			boolean complete = false;
+			try {
+				PendingRun run;
+				while ((run = pending.take()) != PendingRun.END) {
 					try {
-						BayesfactorOut threadOutput = future.get();
-						int snp = threadOutput.getSnp();
-						stochasticPair.write(data.getRsid().get(snp) +
-								" " + data.getSnps().get(snp) +
-								" " + threadOutput.getBFAdj() +
-								" " + threadOutput.getBetaAdj());
-						stochasticPair.newLine();
-					} catch (InterruptedException e) {
-						e.printStackTrace();
+						BayesfactorOut[] threadOutput = run.result.get();
+						long start = Metrics.enabled() ? System.nanoTime() : 0;
+						long bytes = 0;
+						for (int i = 0; i < threadOutput.length; i++) {
+							String line = run.run.rsids.get(i) +
+									" " + run.run.positions.get(i) +
+									" " + threadOutput[i].getBFAdj() +
+									" " + threadOutput[i].getBetaAdj();
+							stochasticPair.write(line);
+							stochasticPair.newLine();
+							bytes += line.length() + 1;
+							progress();
+						}
+						if (start != 0) {
+							Metrics.wrote(bytes, System.nanoTime() - start);
+						}
 					} catch (ExecutionException e) {
-						e.printStackTrace();
+						cancel();
+						throw new IOException("Testing the SNPs from " + run.run.rsids.get(0) + " failed.",
+								e.getCause());
 					}
 				}
-				System.out.println(((int) (loop * 100.0 / ABACUSFlags.NUMBER_OF_LOOPS) + 1) + "%");
-				executor.shutdownNow();
+				if (total <= 0) {
+					System.out.println(written + " SNPs");
+				}
+				complete = true;
+			} finally {
+				stochasticPair.close();
+				if (!complete) {
+					new File(path).delete();
+				}
+			}
+			return null;
+		}
+
+		private void cancel () {
+			PendingRun run;
+			while ((run = pending.poll()) != null) {
+				if (run != PendingRun.END) {
+					run.result.cancel(true);
+				}
+			}
+		}
+
+		private void progress () {
+			written++;
+			if (total > 0) {
+				int done = (int) (written * 100L / total);
+				if (done > percent) {
+					percent = done;
+					System.out.println(percent + "%");
+				}
+			} else if (written % reportEvery == 0) {
+				System.out.println(written + " SNPs");
 			}
-			System.out.println("ABACUS Complete!");
-			stochasticPair.close();
-		} catch (IOException e) {
-			e.printStackTrace();
-		} catch (Exception e) {
-			e.printStackTrace();
 		}
 	}
-	
+
 	public static float[][] readArray(String path, int numberOfHaplotypes) throws IOException {
 		BufferedReader textReader = new BufferedReader(new FileReader(path));
 		int haplotype = 0;
@@ -119,20 +396,108 @@ public class ABACUSMain {
 	}
 		
 	public static LaplacePair getPairArray(float[][] lengths, float[][] counts) {
-		float[][] average = new float[lengths.length][lengths.length];
+		float[][] average = new float[lengths.length][];
 		double[] genomeWideMean = new double[lengths.length];
 		float mean = 0;
 		for (int i = 0; i < lengths.length; i++) {
+			average[i] = getAverageRow(lengths[i], counts[i]);
 			for (int j = 0; j < lengths.length; j++) {
-				if (!Float.isNaN(lengths[i][j]) && !Float.isNaN(counts[i][j]) && counts[i][j] > 0) {
-					average[i][j] = lengths[i][j] / counts[i][j];
+				mean += average[i][j];
+			}
+		}
+		for (int i = 0; i < lengths.length; i++) {
+			genomeWideMean[i] = mean;
+		}
+		return new LaplacePair(average, genomeWideMean);
+	}
+
+	/**
+	 * As {@link #getPairArray(float[][], float[][])}, reading one row at a
+	 * time from the mapped matrices so that only the averages are held.
+	 */
+	public static LaplacePair getPairArray(SummaryMatrix lengths, SummaryMatrix counts) throws IOException {
+		return getPairArray(lengths.rows(), SummaryRows.of(lengths), SummaryRows.of(counts), null, null);
+	}
+
+	/**
+	 * As {@link #getPairArray(float[][], float[][])}, streaming the rows so
+	 * that only the averages are held.  With {@code ownLengths} and
+	 * {@code ownCounts} the first two are genome wide totals, and each row
+	 * is averaged over the total less this chromosome's own; as floats the
+	 * difference can round slightly below zero, so it is clamped at zero.
+	 * Closes the rows.
+	 * @param ownLengths {@link SummaryRows} or {@code null}
+	 * @param ownCounts {@link SummaryRows} or {@code null}
+	 * @throws IOException
+	 */
+	public static LaplacePair getPairArray(int numberOfHaplotypes, SummaryRows lengths, SummaryRows counts,
+			SummaryRows ownLengths, SummaryRows ownCounts) throws IOException {
+		float[][] average = new float[numberOfHaplotypes][];
+		double[] genomeWideMean = new double[numberOfHaplotypes];
+		float[] lengthsRow = new float[numberOfHaplotypes];
+		float[] countsRow = new float[numberOfHaplotypes];
+		float[] ownLengthsRow = new float[numberOfHaplotypes];
+		float[] ownCountsRow = new float[numberOfHaplotypes];
+		float mean = 0;
+		try {
+			for (int i = 0; i < numberOfHaplotypes; i++) {
+				lengths.next(lengthsRow);
+				counts.next(countsRow);
+				if (ownLengths != null) {
+					ownLengths.next(ownLengthsRow);
+					ownCounts.next(ownCountsRow);
+					leaveOut(lengthsRow, ownLengthsRow);
+					leaveOut(countsRow, ownCountsRow);
+				}
+				average[i] = getAverageRow(lengthsRow, countsRow);
+				for (int j = 0; j < numberOfHaplotypes; j++) {
 					mean += average[i][j];
 				}
 			}
+		} finally {
+			lengths.close();
+			counts.close();
+			if (ownLengths != null) {
+				ownLengths.close();
+				ownCounts.close();
+			}
 		}
-		for (int i = 0; i < lengths.length; i++) {
+		for (int i = 0; i < numberOfHaplotypes; i++) {
 			genomeWideMean[i] = mean;
 		}
 		return new LaplacePair(average, genomeWideMean);
 	}
+
+	private static void leaveOut(float[] total, float[] own) {
+		for (int j = 0; j < total.length; j++) {
+			total[j] = Math.max(0, total[j] - own[j]);
+		}
+	}
+
+	private static SummaryRows openSummary(String path, int numberOfHaplotypes) throws IOException {
+		SummaryRows rows = SummaryRows.open(path, numberOfHaplotypes);
+		if (rows.isBinary()) {
+			System.out.println("Mapping the binary summary matrix for " + path);
+		}
+		Metrics.add(Metrics.Counter.BYTES_READ,
+				rows.isBinary() ? 4L * numberOfHaplotypes * numberOfHaplotypes : new File(path).length());
+		return rows;
+	}
+
+	/**
+	 * Average length of the blocks one recipient copied from each donor;
+	 * zero where it never copied from that donor.
+	 * @param lengths {@code float[]} total lengths, one row of .viterbiLengths
+	 * @param counts {@code float[]} number of blocks, one row of .viterbiCounts
+	 * @return {@code float[]}
+	 */
+	public static float[] getAverageRow(float[] lengths, float[] counts) {
+		float[] average = new float[lengths.length];
+		for (int j = 0; j < lengths.length; j++) {
+			if (!Float.isNaN(lengths[j]) && !Float.isNaN(counts[j]) && counts[j] > 0) {
+				average[j] = lengths[j] / counts[j];
+			}
+		}
+		return average;
+	}
 }
\ No newline at end of file
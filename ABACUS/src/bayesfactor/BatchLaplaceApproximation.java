@@ -0,0 +1,280 @@
+package bayesfactor;
+
+import utilities.PackedHaplotypeMatrix;
+
+/**
+ * Tests a batch of consecutive SNPs together.  The probabilities of long
+ * and the packed alleles are held haplotype by haplotype, with the SNPs of
+ * the batch side by side, and the Newton iterations of every SNP advance
+ * in lock-step: each iteration is one pass over the haplotypes whose inner
+ * loop runs across the SNPs still iterating, accumulating each SNP's score
+ * and observed information in its own slot.  {@link #snpsPerBatch} sizes
+ * a batch to fit in L2.
+ * <p>
+ * Every SNP starts from zero and its sums run over the haplotypes in
+ * order whatever else is in the batch, so a SNP's estimates and
+ * Bayes factor do not depend on which SNPs share its batch: a run over
+ * {@code --first_snp}/{@code --last_snp} gives the same results, bit for
+ * bit, as the same SNPs in a run over the whole panel.
+ *
+ */
+class BatchLaplaceApproximation {
+	static final long L2_CACHE_BYTES = 1L << 20;
+	static final int MINIMUM_BATCH = 4;
+	static final int MAXIMUM_BATCH = 64;
+
+	private final int capacity;
+	private final int numberOfHaplotypes;
+	private final int wordsPerSnp;
+	private final double sigmaBeta;
+	private final int K;
+	private final int[] snps;
+	/** probabilityLong[haplotype * capacity + snp] */
+	private final double[] probabilityLong;
+	/** alleles[word * capacity + snp] */
+	private final long[] alleles;
+	private final double[] means;
+	private final double[] row;
+
+	private final double[] p1;
+	private final double[] p0;
+	private final double[] d1;
+	private final double[] d0;
+	private final double[] e1;
+	private final double[] e0;
+	private final double[] logLikelihood;
+	private final double[] scoreMu;
+	private final double[] scoreBeta;
+	private final double[] informationMu;
+	private final double[] informationMuBeta;
+	private final double[] informationBeta;
+	private final double[] sweep = new double[LaplaceApproximation.SWEEP_LENGTH];
+	private int size = 0;
+	private long newtonIterations = 0;
+
+	BatchLaplaceApproximation (int capacity, int numberOfHaplotypes, double sigmaBeta, int K) {
+		this.capacity = capacity;
+		this.numberOfHaplotypes = numberOfHaplotypes;
+		this.wordsPerSnp = PackedHaplotypeMatrix.wordsFor(numberOfHaplotypes);
+		this.sigmaBeta = sigmaBeta;
+		this.K = K;
+		this.snps = new int[capacity];
+		this.probabilityLong = new double[capacity * numberOfHaplotypes];
+		this.alleles = new long[capacity * wordsPerSnp];
+		this.means = new double[numberOfHaplotypes];
+		this.row = new double[numberOfHaplotypes];
+		this.p1 = new double[capacity];
+		this.p0 = new double[capacity];
+		this.d1 = new double[capacity];
+		this.d0 = new double[capacity];
+		this.e1 = new double[capacity];
+		this.e0 = new double[capacity];
+		this.logLikelihood = new double[capacity];
+		this.scoreMu = new double[capacity];
+		this.scoreBeta = new double[capacity];
+		this.informationMu = new double[capacity];
+		this.informationMuBeta = new double[capacity];
+		this.informationBeta = new double[capacity];
+	}
+
+	/**
+	 * @param numberOfHaplotypes {@code int}
+	 * @return {@code int} SNPs whose probabilities and alleles fit in L2,
+	 *  between {@link #MINIMUM_BATCH} and {@link #MAXIMUM_BATCH}
+	 */
+	static int snpsPerBatch (int numberOfHaplotypes) {
+		long perSnp = 8L * numberOfHaplotypes + 8L * PackedHaplotypeMatrix.wordsFor(numberOfHaplotypes);
+		return (int) Math.max(MINIMUM_BATCH, Math.min(MAXIMUM_BATCH, L2_CACHE_BYTES / perSnp));
+	}
+
+	int size () {
+		return size;
+	}
+
+	/**
+	 * @return {@code long} Newton steps taken so far, over every SNP
+	 */
+	long newtonIterations () {
+		return newtonIterations;
+	}
+
+	/**
+	 * Adds a SNP to the batch.  The arrays are not kept.
+	 * @param snp {@code int} index of the SNP
+	 * @param lengths {@code double[]} block length of each haplotype
+	 * @param viterbi {@code int[]} 1-based donor of each haplotype
+	 * @param snpAlleles {@code long[]} packed alleles
+	 * @param average {@code float[][]} pairwise genome wide average lengths
+	 */
+	void add (int snp, double[] lengths, int[] viterbi, long[] snpAlleles, float[][] average) {
+		for (int haplotype = 0; haplotype < numberOfHaplotypes; haplotype++) {
+			means[haplotype] = average[haplotype][viterbi[haplotype] - 1];
+		}
+		ProbabilityLong.fill(lengths, means, row);
+		for (int haplotype = 0; haplotype < numberOfHaplotypes; haplotype++) {
+			probabilityLong[haplotype * capacity + size] = row[haplotype];
+		}
+		for (int word = 0; word < wordsPerSnp; word++) {
+			alleles[word * capacity + size] = snpAlleles[word];
+		}
+		snps[size++] = snp;
+	}
+
+	/**
+	 * @return {@link BayesfactorOut}{@code []} one per SNP, in the order added
+	 */
+	BayesfactorOut[] getBF () {
+		double[] muH1 = new double[size];
+		double[] betaH1 = new double[size];
+		double[] muH0 = new double[size];
+		int[] all = new int[size];
+		for (int snp = 0; snp < size; snp++) {
+			all[snp] = snp;
+		}
+		newtonH1(muH1, betaH1, all.clone());
+		newtonH0(muH0, all.clone());
+
+		BayesfactorOut[] out = new BayesfactorOut[size];
+		sweep(all, size, muH1, betaH1, true, true);
+		double[] marginalH1 = new double[size];
+		for (int snp = 0; snp < size; snp++) {
+			marginalH1[snp] = LaplaceApproximation.marginalH1(gather(snp), muH1[snp], betaH1[snp], sigmaBeta);
+		}
+		sweep(all, size, muH0, null, false, true);
+		for (int snp = 0; snp < size; snp++) {
+			double marginalH0 = LaplaceApproximation.marginalH0(gather(snp), muH0[snp]);
+			double logEBF = marginalH1[snp] - marginalH0;
+			double log10BF = Math.log10(Math.exp(logEBF));
+			out[snp] = new BayesfactorOut(snps[snp], log10BF, betaH1[snp]);
+		}
+		return out;
+	}
+
+	/**
+	 * Runs Newton's method under H1 for every SNP from zero, in lock-step,
+	 * for at most {@code K - 1} steps.  A SNP leaves {@code active} once a
+	 * step moves neither estimate by more than
+	 * {@link LaplaceApproximation#TOLERANCE}.
+	 */
+	private void newtonH1 (double[] mu, double[] beta, int[] active) {
+		int count = size;
+		for (int i = 1; i < K && count > 0; i++) {
+			sweep(active, count, mu, beta, true, false);
+			newtonIterations += count;
+			int still = 0;
+			for (int k = 0; k < count; k++) {
+				int snp = active[k];
+				double[] snpSweep = gather(snp);
+				double changeMu = LaplaceApproximation.changeMuH1(snpSweep);
+				double changeBeta = LaplaceApproximation.changeBetaH1(snpSweep);
+				mu[snp] += -1.0 * changeMu;
+				beta[snp] += -1.0 * changeBeta;
+				if (Math.abs(changeMu) > LaplaceApproximation.TOLERANCE ||
+						Math.abs(changeBeta) > LaplaceApproximation.TOLERANCE) {
+					active[still++] = snp;
+				}
+			}
+			count = still;
+		}
+	}
+
+	/**
+	 * Runs Newton's method under H0 for every SNP from zero, in lock-step,
+	 * for at most {@code K - 1} steps.
+	 */
+	private void newtonH0 (double[] mu, int[] active) {
+		int count = size;
+		for (int i = 1; i < K && count > 0; i++) {
+			sweep(active, count, mu, null, false, false);
+			newtonIterations += count;
+			int still = 0;
+			for (int k = 0; k < count; k++) {
+				int snp = active[k];
+				double change = LaplaceApproximation.changeMuH0(gather(snp));
+				mu[snp] += -1.0 * change;
+				if (Math.abs(change) > LaplaceApproximation.TOLERANCE) {
+					active[still++] = snp;
+				}
+			}
+			count = still;
+		}
+	}
+
+	/**
+	 * Gathers the log posterior's score and observed information (the
+	 * second derivatives), and if asked the log likelihood, for the first
+	 * {@code count} SNPs of {@code active} in one pass over the haplotypes,
+	 * leaving each SNP's sums in its slot of the accumulators.  The beta
+	 * terms are only gathered for H1.
+	 * @param beta {@code double[]} or {@code null} for H0
+	 */
+	private void sweep (int[] active, int count, double[] mu, double[] beta, boolean h1, boolean likelihood) {
+		for (int k = 0; k < count; k++) {
+			int snp = active[k];
+			double b = h1 ? beta[snp] : 0.0;
+			p1[snp] = LaplaceApproximation.logistic(mu[snp] + b);
+			p0[snp] = LaplaceApproximation.logistic(mu[snp]);
+			d1[snp] = p1[snp] * (1.0 - p1[snp]);
+			d0[snp] = p0[snp] * (1.0 - p0[snp]);
+			e1[snp] = d1[snp] * (1.0 - 2.0 * p1[snp]);
+			e0[snp] = d0[snp] * (1.0 - 2.0 * p0[snp]);
+			logLikelihood[snp] = 0.0;
+			scoreMu[snp] = -1.0 * mu[snp];
+			scoreBeta[snp] = h1 ? -1.0 * b / Math.pow(sigmaBeta, 2) : 0.0;
+			informationMu[snp] = -1.0;
+			informationMuBeta[snp] = 0.0;
+			informationBeta[snp] = -1.0 / Math.pow(sigmaBeta, 2);
+		}
+		for (int i = 0; i < numberOfHaplotypes; i++) {
+			int row = i * capacity;
+			int word = (i >>> 6) * capacity;
+			long bit = 1L << i;
+			for (int k = 0; k < count; k++) {
+				int snp = active[k];
+				double probLong = probabilityLong[row + snp];
+				double q = p1[snp] * probLong + p0[snp] * (1.0 - probLong);
+				double firstMu = d1[snp] * probLong + d0[snp] * (1.0 - probLong);
+				double secondMu = e1[snp] * probLong + e0[snp] * (1.0 - probLong);
+				double firstBeta = d1[snp] * probLong;
+				double secondBeta = e1[snp] * probLong;
+				double fI;
+				if ((alleles[word + snp] & bit) != 0) {
+					fI = q;
+				} else {
+					fI = 1.0 - q;
+					firstMu = -1.0 * firstMu;
+					secondMu = -1.0 * secondMu;
+					firstBeta = -1.0 * firstBeta;
+					secondBeta = -1.0 * secondBeta;
+				}
+				double inverse = 1.0 / fI;
+				double ratioMu = firstMu * inverse;
+				scoreMu[snp] += ratioMu;
+				informationMu[snp] += secondMu * inverse - ratioMu * ratioMu;
+				if (h1) {
+					double ratioBeta = firstBeta * inverse;
+					scoreBeta[snp] += ratioBeta;
+					informationBeta[snp] += secondBeta * inverse - ratioBeta * ratioBeta;
+					informationMuBeta[snp] += secondBeta * inverse - ratioMu * ratioBeta;
+				}
+				if (likelihood) {
+					logLikelihood[snp] += Math.log(fI);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return {@code double[]} {@code snp}'s sums laid out for
+	 *  {@link LaplaceApproximation}, in a buffer reused by every call
+	 */
+	private double[] gather (int snp) {
+		sweep[LaplaceApproximation.LIKELIHOOD] = logLikelihood[snp];
+		sweep[LaplaceApproximation.SCORE_MU] = scoreMu[snp];
+		sweep[LaplaceApproximation.SCORE_BETA] = scoreBeta[snp];
+		sweep[LaplaceApproximation.INFORMATION_MU] = informationMu[snp];
+		sweep[LaplaceApproximation.INFORMATION_MU_BETA] = informationMuBeta[snp];
+		sweep[LaplaceApproximation.INFORMATION_BETA] = informationBeta[snp];
+		return sweep;
+	}
+}
@@ -0,0 +1,110 @@
+package bayesfactor;
+
+/**
+ * Posterior probability that each haplotype's block at a SNP is long,
+ * evaluated directly from the closed form of the shape 2 Gamma CDF
+ * rather than through a general incomplete gamma function.
+ * <p>
+ * With block length {@code l}, local mean {@code m}, {@code t = l / m}
+ * and {@code r = 1 / t}, the odds of the block being short are
+ * <pre>
+ *  odds = t^2 exp(-t) / P(2, r)
+ *  P(2, r) = 1 - exp(-r) (1 + r)
+ *          = r^2 exp(-r) sum r^n / (n + 2)!
+ * </pre>
+ * for equal prior weights, and the probability of long is
+ * {@code 1 / (1 + odds)}.  Below {@code r = 1} the CDF is taken from the
+ * series, which keeps full relative precision where the closed form
+ * cancels; there the odds reduce to {@code t^4 exp(r - t) / sum}.
+ * Agrees with {@code jsc.distributions.Gamma(2, l / m).cdf(1.0)} to a
+ * relative error of 1E-9, and with the probabilities computed from it
+ * to an absolute error of 1E-10.
+ *
+ */
+final class ProbabilityLong {
+	/**
+	 * Above this {@code t} the odds are below 1E-280 and the probability is 1.
+	 */
+	private static final double CERTAINLY_LONG = 700.0;
+	private static final double[] SERIES = series(18);
+
+	private ProbabilityLong () {
+	}
+
+	/**
+	 * Fills {@code probabilityLong} for every haplotype.  Haplotypes with a
+	 * non positive length or mean are given 0.  Allocates nothing.
+	 * @param lengths {@code double[]} block length of each haplotype
+	 * @param means {@code double[]} genome wide average length of each
+	 *  haplotype's block from its donor
+	 * @param probabilityLong {@code double[]} receives the probabilities
+	 */
+	static void fill (double[] lengths, double[] means, double[] probabilityLong) {
+		fill(lengths, means, probabilityLong, 0);
+	}
+
+	/**
+	 * As {@link #fill(double[], double[], double[])}, writing from
+	 * {@code offset} of {@code probabilityLong}.
+	 */
+	static void fill (double[] lengths, double[] means, double[] probabilityLong, int offset) {
+		for (int i = 0; i < lengths.length; i++) {
+			double length = lengths[i];
+			double mean = means[i];
+			if (length > 0 & mean > 0) {
+				probabilityLong[offset + i] = 1.0 / (1.0 + oddsShort(length / mean));
+			} else {
+				probabilityLong[offset + i] = 0.0;
+			}
+		}
+	}
+
+	/**
+	 * @param ratio {@code double} block length over local mean, positive
+	 * @return {@code double} odds of the block being short rather than long
+	 */
+	static double oddsShort (double ratio) {
+		if (ratio > CERTAINLY_LONG) {
+			return 0.0;
+		}
+		double r = 1.0 / ratio;
+		if (r >= 1.0) {
+			return ratio * ratio * Math.exp(-ratio) / (1.0 - Math.exp(-r) * (1.0 + r));
+		}
+		double squared = ratio * ratio;
+		return squared * squared * Math.exp(r - ratio) / series(r);
+	}
+
+	/**
+	 * @param x {@code double} positive
+	 * @return {@code double} CDF at {@code x} of a Gamma with shape 2 and
+	 *  scale 1
+	 */
+	static double gammaTwoCdf (double x) {
+		if (x >= 1.0) {
+			return 1.0 - Math.exp(-x) * (1.0 + x);
+		}
+		return x * x * Math.exp(-x) * series(x);
+	}
+
+	/**
+	 * @return {@code double} sum of x^n / (n + 2)!, for x below 1
+	 */
+	private static double series (double x) {
+		double sum = SERIES[SERIES.length - 1];
+		for (int n = SERIES.length - 2; n >= 0; n--) {
+			sum = sum * x + SERIES[n];
+		}
+		return sum;
+	}
+
+	private static double[] series (int terms) {
+		double[] coefficients = new double[terms];
+		double factorial = 2.0;
+		for (int n = 0; n < terms; n++) {
+			coefficients[n] = 1.0 / factorial;
+			factorial *= n + 3;
+		}
+		return coefficients;
+	}
+}
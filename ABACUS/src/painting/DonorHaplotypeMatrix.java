@@ -0,0 +1,60 @@
+package painting;
+
+import java.util.Arrays;
+import java.util.List;
+
+import utilities.HaplotypeMatrix;
+import utilities.PackedHaplotypeMatrix;
+
+/**
+ * View of a subset of a panel's haplotypes, in donor order, so that a
+ * recipient can be painted against a chosen donor set.  Gathers each
+ * column on demand into a scratch buffer, so an instance must only be
+ * used by one thread.
+ *
+ */
+class DonorHaplotypeMatrix implements HaplotypeMatrix {
+	private final HaplotypeMatrix panel;
+	private final int[] donors;
+	private final long[] panelColumn;
+
+	DonorHaplotypeMatrix (HaplotypeMatrix panel, List<Integer> donors) {
+		this.panel = panel;
+		this.donors = new int[donors.size()];
+		for (int i = 0; i < this.donors.length; i++) {
+			this.donors[i] = donors.get(i);
+		}
+		this.panelColumn = new long[panel.wordsPerSnp()];
+	}
+
+	@Override
+	public int numberOfSnps () {
+		return panel.numberOfSnps();
+	}
+
+	@Override
+	public int numberOfHaplotypes () {
+		return donors.length;
+	}
+
+	@Override
+	public int wordsPerSnp () {
+		return PackedHaplotypeMatrix.wordsFor(donors.length);
+	}
+
+	@Override
+	public boolean get (int snp, int haplotype) {
+		return panel.get(snp, donors[haplotype]);
+	}
+
+	@Override
+	public void copyColumn (int snp, long[] destination) {
+		panel.copyColumn(snp, panelColumn);
+		Arrays.fill(destination, 0, wordsPerSnp(), 0L);
+		for (int i = 0; i < donors.length; i++) {
+			if (PackedHaplotypeMatrix.isSet(panelColumn, donors[i])) {
+				PackedHaplotypeMatrix.set(destination, i);
+			}
+		}
+	}
+}
@@ -11,11 +11,11 @@ package painting;
 public class LengthsFromPainting {
 	private int index;
 	private float[] blocks;
-	private short[] path;
+	private int[] path;
 	private float[] lengths;
 	private float[] counts;
  
-	public LengthsFromPainting (int index, float[] blocks, short[] path, float[] lengths, float[] counts) {
+	public LengthsFromPainting (int index, float[] blocks, int[] path, float[] lengths, float[] counts) {
 		this.index = index;
 		this.blocks = blocks;
 		this.path = path;
@@ -30,7 +30,7 @@ public class LengthsFromPainting {
 		return blocks;
 	}
 	
-	public short[] getPath () {
+	public int[] getPath () {
 		return path;
 	}
 
@@ -0,0 +1,87 @@
+package painting;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import utilities.HaplotypeMatrix;
+import utilities.Metrics;
+import utilities.PaintingStore;
+import utilities.TransitionTable;
+
+/**
+ * Paints a block of recipients together so each donor column is read once
+ * per SNP for the whole block rather than once per recipient.  Returns
+ * the summaries in the order of the recipients, and records the time
+ * taken with {@link Metrics} when they are enabled.  When the run can be
+ * resumed the recipients, which must be consecutive, are recorded in its
+ * {@link PaintingManifest} instead of the store, and nothing is returned.
+ *
+ */
+public class PaintingBatch implements Callable<List<PaintingSummaries>> {
+	private final List<PaintingAlgorithm> recipients;
+	private final HaplotypeMatrix haplotype;
+	private final int checkpointSpacing;
+	private final PaintingStore store;
+	private final boolean viterbiText;
+	private final PaintingManifest manifest;
+
+	/**
+	 * @param store {@link PaintingStore} receiving each path, or {@code null}
+	 * @param viterbiText {@code boolean} write each path's .viterbi text file
+	 */
+	public PaintingBatch (List<PaintingAlgorithm> recipients, HaplotypeMatrix haplotype, int checkpointSpacing,
+			PaintingStore store, boolean viterbiText) {
+		this(recipients, haplotype, checkpointSpacing, store, viterbiText, null);
+	}
+
+	/**
+	 * @param manifest {@link PaintingManifest} recording the batch, or {@code null}
+	 */
+	PaintingBatch (List<PaintingAlgorithm> recipients, HaplotypeMatrix haplotype, int checkpointSpacing,
+			PaintingStore store, boolean viterbiText, PaintingManifest manifest) {
+		this.recipients = recipients;
+		this.haplotype = haplotype;
+		this.checkpointSpacing = checkpointSpacing;
+		this.store = store;
+		this.viterbiText = viterbiText;
+		this.manifest = manifest;
+	}
+
+	public List<PaintingSummaries> call () throws IOException {
+		long start = Metrics.enabled() ? System.nanoTime() : 0;
+		int batch = recipients.size();
+		int[] recipient = new int[batch];
+		int[] excludedFrom = new int[batch];
+		int[] excludedTo = new int[batch];
+		TransitionTable[] transitions = new TransitionTable[batch];
+		for (int b = 0; b < batch; b++) {
+			PaintingAlgorithm algorithm = recipients.get(b);
+			recipient[b] = algorithm.getHaplotypeIndex();
+			excludedFrom[b] = algorithm.excludedFrom();
+			excludedTo[b] = algorithm.excludedTo();
+			transitions[b] = algorithm.transitions();
+		}
+		int[][] vPath = ViterbiKernel.local().paint(haplotype, haplotype, recipient, excludedFrom,
+				excludedTo, transitions, false, checkpointSpacing);
+		List<PaintingSummaries> summaries = new ArrayList<PaintingSummaries>(batch);
+		if (manifest != null) {
+			List<LengthsFromPainting> outputs = new ArrayList<LengthsFromPainting>(batch);
+			for (int b = 0; b < batch; b++) {
+				LengthsFromPainting output = recipients.get(b).getLengths(vPath[b]);
+				recipients.get(b).summarise(output, null, viterbiText);
+				outputs.add(output);
+			}
+			manifest.record(recipient[0], outputs, viterbiText);
+		} else {
+			for (int b = 0; b < batch; b++) {
+				summaries.add(recipients.get(b).summarise(vPath[b], store, viterbiText));
+			}
+		}
+		if (start != 0) {
+			Metrics.painted(recipient[0], batch, haplotype.numberOfSnps(), System.nanoTime() - start);
+		}
+		return summaries;
+	}
+}
@@ -1,19 +1,30 @@
 package painting;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 import com.google.common.collect.ImmutableSet;
 
+import bayesfactor.ABACUSMain;
 import utilities.Data;
+import utilities.MatrixSnpSource;
+import utilities.Metrics;
+import utilities.PaintingStore;
+import utilities.PanelFile;
+import utilities.ReadAheadSnpSource;
+import utilities.SummaryMatrix;
+import utilities.SummaryRows;
 
 /**
  * Creates the Viterbi Path for each haplotype in the sample.
@@ -24,6 +35,34 @@ import utilities.Data;
  * @param -cores:12 number of cores
  * @param -diploid default haploid
  * @param -ancestry default to output maps, add if require just summary matrices
+ * @param -checkpoint_spacing=0 SNPs between stored Viterbi states, 0 keeps every
+ *  backpointer, auto uses the square root of the number of SNPs
+ * @param -batch_size=auto recipients painted together per column pass, auto
+ *  fits their state vectors in L2
+ * @param -vector_kernel=true use the JDK Vector API kernel when it is available
+ * @param -in_flight=0 batches painting or awaiting output at once, 0 for twice the threads
+ * @param -painting_store=false also write the SNP major binary .painting store read by ABACUS
+ * @param -run_abacus=false feed the painting straight into ABACUS in this process, writing
+ *  .bayesfactor; the paths are held in memory, or in a temporary store in -spill_directory
+ *  when they do not fit or that flag is given
+ * @param -lengths= -counts= genome wide summaries the averages of -run_abacus are taken
+ *  from, as --lengths and --counts of ABACUS; without them only this chromosome's are used
+ * @param -leave_out=false subtract the summaries this run writes from -lengths and -counts,
+ *  so that this chromosome is left out of its own averages, as --own_lengths of ABACUS
+ * @param -viterbi_text=true write the per haplotype .viterbi text files
+ * @param -text_summaries=true write the .viterbiLengths and .viterbiCounts text matrices
+ * @param -binary_summaries=true write them as binary .viterbiLengths.bin and .viterbiCounts.bin
+ *  matrices, which ABACUS and CombineSummaries map in preference to the text
+ * @param -tie_seed=auto break ties between Viterbi maxima at random, or from generators
+ *  seeded by this number so that repeated runs paint identically
+ * @param -resume=false record each painted batch in prefix.resume (see {@link PaintingManifest}),
+ *  so that if the run fails, running it again paints only the haplotypes not yet painted
+ * @param -binary_panel=true convert the .hap/.map pair to a binary .panel on first use and
+ *  read that (see {@link PanelFile}); the text is read instead if the panel cannot be written
+ * @param -panel_directory= directory the .panel is kept in, beside the .hap when empty
+ * @param -metrics= file to write run time metrics to, one JSON line per interval (see
+ *  {@link Metrics}); none when empty
+ * @param -metrics_interval=10 seconds between lines of -metrics
  * 
  * @author Chris Gamble, DPhil Candidate in
  *  Statistical Genetics, University Of Oxford,
@@ -33,6 +72,7 @@ import utilities.Data;
 public class PaintingMain {
 	
 	public static void main (String[] args) {
+		boolean failed = false;
 		try {
 			// Set flags.
 			Flags flags = new Flags();
@@ -40,57 +80,204 @@ public class PaintingMain {
 				flags.setFlags(s);
 			}
 			flags.printDialogue();
+			if (flags.getRunAbacus()) {
+				checkAverages(flags);
+			}
+			if (!flags.getMetrics().isEmpty()) {
+				Metrics.start(flags.getMetrics(), flags.getMetricsInterval());
+			}
+			Metrics.phase("parse", null, -1);
 			String prefix = flags.getHaplotype().split(".hap")[0];
-			BufferedWriter lengths = new BufferedWriter(new 
-					FileWriter(prefix + ".viterbiLengths"));
-			BufferedWriter counts = new BufferedWriter(new 
-					FileWriter(prefix + ".viterbiCounts"));
-			
-			Data data = Data.read(flags.getHaplotype(), flags.getGeneticMap());
+			String panel = flags.getHaplotype();
+			if (flags.getBinaryPanel()) {
+				try {
+					panel = PanelFile.ensure(flags.getHaplotype(), flags.getGeneticMap(), flags.getWindowSize(),
+							flags.getPanelDirectory());
+				} catch (IOException e) {
+					System.out.println("Cannot write a binary panel, reading the text instead: " + e.getMessage());
+				}
+			}
+			Data data = Data.read(panel, flags.getGeneticMap());
+			if (data == null) {
+				throw new IOException("Cannot read the panel " + panel + ".");
+			}
+			Metrics.add(Metrics.Counter.BYTES_READ, new File(panel).length() + new File(flags.getGeneticMap()).length());
 			int numberOfHaplotypes = data.numberOfHaplotypes();
 			int numberOfSnps = data.numberOfSnps();
 			System.out.println("Number of SNPS " + numberOfSnps);
 			System.out.println("Number of Haplotypes " + numberOfHaplotypes);
+			SummaryWriter output = new SummaryWriter(prefix, numberOfHaplotypes, flags.getTextSummaries(),
+					flags.getBinarySummaries());
 			double mutationParameter = wattersonsEstimate(numberOfHaplotypes);
+			int checkpointSpacing = flags.getCheckpointSpacing();
+			if (checkpointSpacing < 0) {
+				checkpointSpacing = (int) Math.ceil(Math.sqrt(numberOfSnps));
+			}
+			if (checkpointSpacing > 0) {
+				System.out.println("Checkpointing the Viterbi traceback every " + checkpointSpacing + " SNPs");
+			}
 			System.out.println("Finished data import, starting painting!");
 
+			int batchSize = flags.getBatchSize();
+			if (batchSize < 1) {
+				batchSize = ViterbiKernel.recipientsPerBatch(numberOfHaplotypes, ViterbiKernel.L2_CACHE_BYTES);
+			}
+			// Keep every thread busy even when the batches are large.
+			batchSize = Math.max(1, Math.min(batchSize, numberOfHaplotypes / flags.getNumberOfThreads()));
+			System.out.println("Painting " + batchSize + " haplotypes per column pass");
+			ViterbiStep.setVectorEnabled(flags.getVectorKernel());
+			if (flags.getTieSeed() >= 0) {
+				ViterbiKernel.setTieSeed(flags.getTieSeed());
+			}
+			System.out.println("Using the " + ViterbiStep.create().describe() + " Viterbi kernel");
+
+			// At most inFlight batches are painting or waiting to be written, so
+			// summary memory stays bounded; rows are written in recipient order.
+			int inFlight = flags.getInFlight() > 0 ? flags.getInFlight() : 2 * flags.getNumberOfThreads();
+			PaintingStore store = null;
+			if (flags.getPaintingStore()) {
+				store = PaintingStore.create(PaintingStore.pathFor(prefix), numberOfSnps, numberOfHaplotypes);
+			} else {
+				// A store left by an earlier painting would no longer match the .viterbi files.
+				File stale = new File(PaintingStore.pathFor(prefix));
+				if (stale.isFile()) {
+					System.out.println("Deleting the earlier painting store " + stale.getPath());
+					if (!stale.delete()) {
+						throw new IOException("Cannot delete " + stale.getPath());
+					}
+				}
+				if (flags.getRunAbacus()) {
+					store = temporaryStore(flags.getSpillDirectory(), numberOfSnps, numberOfHaplotypes);
+				}
+			}
+			// Without genome wide summaries the averages come from this chromosome's rows as they are written.
+			float[][] average = flags.getRunAbacus() && flags.getLengths().isEmpty() ?
+					new float[numberOfHaplotypes][] : null;
+			PaintingManifest manifest = null;
+			if (flags.getResume()) {
+				manifest = PaintingManifest.open(prefix, PaintingManifest.key(flags.getHaplotype(), flags.getGeneticMap(),
+						flags.getEffectivePopulation(), flags.getDiploid(), flags.getTieSeed()),
+						numberOfHaplotypes, numberOfSnps, store != null, flags.getViterbiText());
+				System.out.println("Recording progress in " + manifest.directory().getPath() + ", " +
+						manifest.numberPainted() + " of " + numberOfHaplotypes + " haplotypes already painted");
+			}
+			// Runs of at most batchSize consecutive recipients still to paint, as {first, end}.
+			List<int[]> batches = new ArrayList<int[]>();
+			for (int first = 0; first < numberOfHaplotypes; first++) {
+				if (manifest != null && manifest.isPainted(first)) {
+					continue;
+				}
+				int end = first + 1;
+				while (end < Math.min(first + batchSize, numberOfHaplotypes) &&
+						(manifest == null || !manifest.isPainted(end))) {
+					end++;
+				}
+				batches.add(new int[] {first, end});
+				first = end - 1;
+			}
+			int numberOfBatches = batches.size();
+			Metrics.phase("paint", Metrics.Counter.HAPLOTYPES_PAINTED,
+					numberOfHaplotypes - (manifest == null ? 0 : manifest.numberPainted()));
 			ExecutorService executor = Executors.newFixedThreadPool(flags.getNumberOfThreads());
-			List<Future<PaintingSummaries>> list = new ArrayList<Future<PaintingSummaries>>();
-			for (int haplotypeIndex = 0; haplotypeIndex < numberOfHaplotypes; haplotypeIndex++) {
-				PaintingAlgorithm worker = new PaintingAlgorithm(haplotypeIndex, data.getMap(), 
-						data.getSnps(), data.getRsid(), data.getHaplotype(), 
-						flags.getEffectivePopulation(), mutationParameter, numberOfHaplotypes,
-						numberOfSnps, flags.getDiploid(), prefix);
-				Future<PaintingSummaries> submit = executor.submit(worker);
-				list.add(submit);
-			}
-			int outputLines = 0;
-			for (Future<PaintingSummaries> future : list) {
-				try {
-					outputLines++;
-					System.out.print(outputLines + " ");
-					PaintingSummaries threadOutput = future.get();
-					lengths.write(arrayToString(threadOutput.getTotal()));
-					lengths.newLine();
-					counts.write(arrayToString(threadOutput.getNumber()));
-					counts.newLine();
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				} catch (ExecutionException e) {
-					e.printStackTrace();
-				} catch (NullPointerException e) {
-					e.printStackTrace();
+			CompletionService<List<PaintingSummaries>> completion =
+					new ExecutorCompletionService<List<PaintingSummaries>>(executor);
+			Map<Future<List<PaintingSummaries>>, Integer> running = new HashMap<>();
+			Map<Integer, List<PaintingSummaries>> finished = new HashMap<>();
+			int submitted = 0;
+			int written = 0;
+			int outputLines = manifest == null ? 0 : manifest.numberPainted();
+			try {
+				while (written < numberOfBatches) {
+					while (submitted < numberOfBatches && running.size() + finished.size() < inFlight) {
+						List<PaintingAlgorithm> batch = new ArrayList<PaintingAlgorithm>();
+						int[] range = batches.get(submitted);
+						for (int haplotypeIndex = range[0]; haplotypeIndex < range[1]; haplotypeIndex++) {
+							batch.add(new PaintingAlgorithm(haplotypeIndex, data.getGeneticMap(),
+									data.getHaplotype(), 
+									flags.getEffectivePopulation(), mutationParameter, numberOfHaplotypes,
+									numberOfSnps, flags.getDiploid(), checkpointSpacing, prefix));
+						}
+						running.put(completion.submit(new PaintingBatch(batch, data.getHaplotype(), checkpointSpacing,
+								store, flags.getViterbiText(), manifest)), submitted);
+						submitted++;
+					}
+					Future<List<PaintingSummaries>> future = completion.take();
+					int index = running.remove(future);
+					try {
+						finished.put(index, future.get());
+					} catch (ExecutionException e) {
+						int[] range = batches.get(index);
+						throw new IOException("Painting haplotypes " + range[0] + " to " + (range[1] - 1) + " failed" +
+								(manifest == null ? "." : "; run again to paint only those not yet painted."),
+								e.getCause());
+					}
+					while (finished.containsKey(written)) {
+						List<PaintingSummaries> batchOutput = finished.remove(written);
+						int[] range = batches.get(written);
+						for (int haplotypeIndex = range[0]; haplotypeIndex < range[1]; haplotypeIndex++) {
+							outputLines++;
+							System.out.print(outputLines + " ");
+							if (manifest == null) {
+								write(output, average, haplotypeIndex, batchOutput.get(haplotypeIndex - range[0]));
+							}
+						}
+						written++;
+					}
+				}
+				if (manifest != null) {
+					System.out.println();
+					System.out.println("Assembling the summaries from " + manifest.directory().getPath());
+					Metrics.phase("assemble", null, -1);
+					int[] donors = new int[numberOfSnps];
+					float[] blocks = new float[numberOfSnps];
+					PaintingManifest.Rows rows = manifest.rows();
+					try {
+						for (int haplotypeIndex = 0; haplotypeIndex < numberOfHaplotypes; haplotypeIndex++) {
+							write(output, average, haplotypeIndex, rows.next(donors, blocks));
+							if (store != null) {
+								store.write(haplotypeIndex, donors, blocks);
+							}
+						}
+					} finally {
+						rows.close();
+					}
+				}
+			} finally {
+				executor.shutdownNow();
+				output.close();
+				if (manifest != null) {
+					manifest.close();
 				}
 			}
 			System.out.println();
+			if (store != null && flags.getPaintingStore()) {
+				store.close();
+				System.out.println("Wrote painting store " + PaintingStore.pathFor(prefix));
+			}
 			System.out.println("Painting complete!");
-			executor.shutdownNow();
-			lengths.close();
-			counts.close();
+			if (flags.getRunAbacus()) {
+				System.out.println("Starting ABACUS!");
+				if (average == null) {
+					average = genomeWideAverages(flags, prefix, numberOfHaplotypes);
+				}
+				ABACUSMain.test(new ReadAheadSnpSource(new MatrixSnpSource(data), flags.getWindowSize(), 2),
+						store, prefix, average, flags.getNumberOfThreads(), flags.getWindowSize(), 0, -1);
+				System.out.println("ABACUS Complete!");
+			}
+			if (manifest != null) {
+				manifest.delete();
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
+			failed = true;
 		} catch (Exception e) {
 			e.printStackTrace();
+			failed = true;
+		} finally {
+			Metrics.stop();
+		}
+		if (failed) {
+			System.exit(1);
 		}
 	}
 
@@ -100,15 +287,60 @@ public class PaintingMain {
 		private static final String EFFECTIVE_POPULATION_FLAG = "effective_population";
 		private static final String NUMBER_OF_THREADS_FLAG = "number_of_threads";
 		private static final String DIPLOID_FLAG = "is_diploid";
+		private static final String WINDOW_SIZE_FLAG = "window_size";
+		private static final String CHECKPOINT_SPACING_FLAG = "checkpoint_spacing";
+		private static final String BATCH_SIZE_FLAG = "batch_size";
+		private static final String VECTOR_KERNEL_FLAG = "vector_kernel";
+		private static final String IN_FLIGHT_FLAG = "in_flight";
+		private static final String PAINTING_STORE_FLAG = "painting_store";
+		private static final String RUN_ABACUS_FLAG = "run_abacus";
+		private static final String VITERBI_TEXT_FLAG = "viterbi_text";
+		private static final String SPILL_DIRECTORY_FLAG = "spill_directory";
+		private static final String TEXT_SUMMARIES_FLAG = "text_summaries";
+		private static final String BINARY_SUMMARIES_FLAG = "binary_summaries";
+		private static final String TIE_SEED_FLAG = "tie_seed";
+		private static final String METRICS_FLAG = "metrics";
+		private static final String METRICS_INTERVAL_FLAG = "metrics_interval";
+		private static final String RESUME_FLAG = "resume";
+		private static final String LENGTHS_FLAG = "lengths";
+		private static final String COUNTS_FLAG = "counts";
+		private static final String LEAVE_OUT_FLAG = "leave_out";
+		private static final String BINARY_PANEL_FLAG = "binary_panel";
+		private static final String PANEL_DIRECTORY_FLAG = "panel_directory";
+		private static final String AUTOMATIC = "auto";
 		
 		private static final Set<String> FLAG_NAMES = ImmutableSet.of(HAPLOTYPE_FLAG,
-				GENETIC_MAP_FLAG, EFFECTIVE_POPULATION_FLAG, NUMBER_OF_THREADS_FLAG, DIPLOID_FLAG);
+				GENETIC_MAP_FLAG, EFFECTIVE_POPULATION_FLAG, NUMBER_OF_THREADS_FLAG, DIPLOID_FLAG,
+				WINDOW_SIZE_FLAG, CHECKPOINT_SPACING_FLAG, BATCH_SIZE_FLAG, VECTOR_KERNEL_FLAG,
+				IN_FLIGHT_FLAG, PAINTING_STORE_FLAG, RUN_ABACUS_FLAG, VITERBI_TEXT_FLAG, SPILL_DIRECTORY_FLAG,
+				TEXT_SUMMARIES_FLAG, BINARY_SUMMARIES_FLAG, TIE_SEED_FLAG, METRICS_FLAG, METRICS_INTERVAL_FLAG,
+				RESUME_FLAG, LENGTHS_FLAG, COUNTS_FLAG, LEAVE_OUT_FLAG, BINARY_PANEL_FLAG, PANEL_DIRECTORY_FLAG);
 		
 		private String haplotype = "./genotypes_test.haplotype";
 		private String geneticMap = "./genotypes_test.map";
 		private int effectivePopulation = 10000;
 		private int numberOfThreads = 2;
 		private boolean diploid = false;
+		private int windowSize = 1000;
+		private int checkpointSpacing = 0;
+		private int batchSize = 0;
+		private boolean vectorKernel = true;
+		private int inFlight = 0;
+		private boolean paintingStore = false;
+		private boolean runAbacus = false;
+		private boolean viterbiText = true;
+		private String spillDirectory = "";
+		private boolean textSummaries = true;
+		private boolean binarySummaries = true;
+		private long tieSeed = -1;
+		private String metrics = "";
+		private int metricsInterval = 10;
+		private boolean resume = false;
+		private String lengths = "";
+		private String counts = "";
+		private boolean leaveOut = false;
+		private boolean binaryPanel = true;
+		private String panelDirectory = "";
 
 		public void setFlags(String s) throws Exception {
 			// -<flag_name>=value
@@ -125,6 +357,47 @@ public class PaintingMain {
 				return;
 				case DIPLOID_FLAG : diploid = Boolean.parseBoolean(flag[1]);
 				return;
+				case WINDOW_SIZE_FLAG : windowSize = Integer.parseInt(flag[1]);
+				return;
+				case CHECKPOINT_SPACING_FLAG : checkpointSpacing = flag[1].equals(AUTOMATIC) ?
+						-1 : Integer.parseInt(flag[1]);
+				return;
+				case BATCH_SIZE_FLAG : batchSize = flag[1].equals(AUTOMATIC) ? 0 : Integer.parseInt(flag[1]);
+				return;
+				case VECTOR_KERNEL_FLAG : vectorKernel = Boolean.parseBoolean(flag[1]);
+				return;
+				case IN_FLIGHT_FLAG : inFlight = Integer.parseInt(flag[1]);
+				return;
+				case PAINTING_STORE_FLAG : paintingStore = Boolean.parseBoolean(flag[1]);
+				return;
+				case RUN_ABACUS_FLAG : runAbacus = Boolean.parseBoolean(flag[1]);
+				return;
+				case VITERBI_TEXT_FLAG : viterbiText = Boolean.parseBoolean(flag[1]);
+				return;
+				case SPILL_DIRECTORY_FLAG : spillDirectory = flag[1];
+				return;
+				case TEXT_SUMMARIES_FLAG : textSummaries = Boolean.parseBoolean(flag[1]);
+				return;
+				case BINARY_SUMMARIES_FLAG : binarySummaries = Boolean.parseBoolean(flag[1]);
+				return;
+				case TIE_SEED_FLAG : tieSeed = flag[1].equals(AUTOMATIC) ? -1 : Long.parseLong(flag[1]);
+				return;
+				case METRICS_FLAG : metrics = flag.length > 1 ? flag[1] : "";
+				return;
+				case METRICS_INTERVAL_FLAG : metricsInterval = Integer.parseInt(flag[1]);
+				return;
+				case RESUME_FLAG : resume = Boolean.parseBoolean(flag[1]);
+				return;
+				case LENGTHS_FLAG : lengths = flag.length > 1 ? flag[1] : "";
+				return;
+				case COUNTS_FLAG : counts = flag.length > 1 ? flag[1] : "";
+				return;
+				case LEAVE_OUT_FLAG : leaveOut = Boolean.parseBoolean(flag[1]);
+				return;
+				case BINARY_PANEL_FLAG : binaryPanel = Boolean.parseBoolean(flag[1]);
+				return;
+				case PANEL_DIRECTORY_FLAG : panelDirectory = flag.length > 1 ? flag[1] : "";
+				return;
 				default : throw new Exception("Flag " + flag[0] + " is not a valid name.\n");
 				}
 			}
@@ -145,6 +418,66 @@ public class PaintingMain {
 		public boolean getDiploid() {
 			return diploid;
 		}
+		public int getWindowSize() {
+			return windowSize;
+		}
+		public int getCheckpointSpacing() {
+			return checkpointSpacing;
+		}
+		public int getBatchSize() {
+			return batchSize;
+		}
+		public boolean getVectorKernel() {
+			return vectorKernel;
+		}
+		public int getInFlight() {
+			return inFlight;
+		}
+		public boolean getPaintingStore() {
+			return paintingStore;
+		}
+		public boolean getRunAbacus() {
+			return runAbacus;
+		}
+		public boolean getViterbiText() {
+			return viterbiText;
+		}
+		public String getSpillDirectory() {
+			return spillDirectory;
+		}
+		public boolean getTextSummaries() {
+			return textSummaries;
+		}
+		public boolean getBinarySummaries() {
+			return binarySummaries;
+		}
+		public long getTieSeed() {
+			return tieSeed;
+		}
+		public String getMetrics() {
+			return metrics;
+		}
+		public int getMetricsInterval() {
+			return metricsInterval;
+		}
+		public boolean getResume() {
+			return resume;
+		}
+		public String getLengths() {
+			return lengths;
+		}
+		public String getCounts() {
+			return counts;
+		}
+		public boolean getLeaveOut() {
+			return leaveOut;
+		}
+		public boolean getBinaryPanel() {
+			return binaryPanel;
+		}
+		public String getPanelDirectory() {
+			return panelDirectory;
+		}
 		
 		public void printDialogue() {
 			System.out.println("Commencing most likely painting algorithm for:");
@@ -161,15 +494,88 @@ public class PaintingMain {
 		}
 	}
 	
-	private static String arrayToString (float[] values) {
-		String str = "";
-		for (float d : values) {
-			str += d + " ";
+	/**
+	 * Checks the summaries the averages of a fused run are taken from before
+	 * any painting is done.
+	 * @throws Exception if they cannot be used
+	 */
+	private static void checkAverages (Flags flags) throws Exception {
+		if (flags.getLengths().isEmpty() != flags.getCounts().isEmpty()) {
+			throw new Exception("-run_abacus needs both -lengths and -counts, or neither.");
+		}
+		if (flags.getLengths().isEmpty()) {
+			if (flags.getLeaveOut()) {
+				throw new Exception("-leave_out needs the genome wide -lengths and -counts to leave this " +
+						"chromosome out of.");
+			}
+			System.out.println("**************************************************************************");
+			System.out.println("WARNING: -run_abacus without -lengths and -counts averages the copying");
+			System.out.println("lengths over this chromosome alone, not the genome.  Unless the panel");
+			System.out.println("covers the whole genome, give the genome wide summaries (see");
+			System.out.println("utilities.CombineSummaries) and -leave_out=true.");
+			System.out.println("**************************************************************************");
+			return;
+		}
+		for (String path : new String[] {flags.getLengths(), flags.getCounts()}) {
+			if (!new File(path).isFile() && !new File(SummaryMatrix.pathFor(path)).isFile()) {
+				throw new Exception("Cannot locate the summary matrix " + path + ".");
+			}
+		}
+		if (flags.getLeaveOut() && !flags.getTextSummaries() && !flags.getBinarySummaries()) {
+			throw new Exception("-leave_out needs this chromosome's summaries; set -text_summaries " +
+					"or -binary_summaries.");
+		}
+	}
+
+	/**
+	 * Averages for a fused run from the genome wide summaries, less this
+	 * chromosome's own, just written, when leaving it out.
+	 */
+	private static float[][] genomeWideAverages (Flags flags, String prefix, int numberOfHaplotypes)
+			throws IOException {
+		System.out.println("Averaging over the genome wide summaries " + flags.getLengths() + " and " +
+				flags.getCounts());
+		SummaryRows lengths = SummaryRows.open(flags.getLengths(), numberOfHaplotypes);
+		SummaryRows counts = SummaryRows.open(flags.getCounts(), numberOfHaplotypes);
+		SummaryRows ownLengths = null;
+		SummaryRows ownCounts = null;
+		if (flags.getLeaveOut()) {
+			System.out.println("Leaving this chromosome out of the genome wide averages");
+			ownLengths = SummaryRows.open(prefix + ".viterbiLengths", numberOfHaplotypes);
+			ownCounts = SummaryRows.open(prefix + ".viterbiCounts", numberOfHaplotypes);
+		}
+		return ABACUSMain.getPairArray(numberOfHaplotypes, lengths, counts, ownLengths, ownCounts).getArray();
+	}
+
+	/**
+	 * Holds the painting of a fused run on the heap if it fits comfortably,
+	 * otherwise in a temporary file.
+	 */
+	private static PaintingStore temporaryStore (String spillDirectory, int numberOfSnps,
+			int numberOfHaplotypes) throws IOException {
+		long bytes = PaintingStore.bytesFor(numberOfSnps, numberOfHaplotypes);
+		if (spillDirectory.isEmpty() && bytes < Runtime.getRuntime().maxMemory() / 4) {
+			System.out.println("Holding the painting in memory");
+			return PaintingStore.allocate(numberOfSnps, numberOfHaplotypes);
+		}
+		File directory = new File(spillDirectory.isEmpty() ? System.getProperty("java.io.tmpdir") : spillDirectory);
+		System.out.println("Spilling the painting to " + directory.getPath());
+		return PaintingStore.temporary(directory, numberOfSnps, numberOfHaplotypes);
+	}
+
+	/**
+	 * Writes one recipient's summary rows and, for a fused run without
+	 * genome wide summaries, its average lengths.
+	 */
+	private static void write (SummaryWriter output, float[][] average, int haplotypeIndex,
+			PaintingSummaries summaries) throws IOException {
+		output.write(summaries);
+		if (average != null) {
+			average[haplotypeIndex] = ABACUSMain.getAverageRow(summaries.getTotal(), summaries.getNumber());
 		}
-		return str;
 	}
 
-	private static double wattersonsEstimate (int numberOfHaplotypes) {
+	static double wattersonsEstimate (int numberOfHaplotypes) {
 		double t = 0;
 		for (int i = 1; i < numberOfHaplotypes; i++) {
 			t += 1.0 / ((double) i);
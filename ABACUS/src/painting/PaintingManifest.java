@@ -0,0 +1,342 @@
+package painting;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Durable record of the recipients a painting run has finished, so that a
+ * run that dies can be restarted without repainting them.  Each batch
+ * writes its recipients' summary rows (and paths, when the run keeps a
+ * {@link utilities.PaintingStore}) to a partial file of its own and then
+ * appends a line to the manifest; only once every recipient is painted
+ * are the partial files read back, in order, into the outputs.
+ * <p>
+ * The manifest is keyed by the size and modification time of the .hap
+ * and map files and by every parameter that changes a recipient's path,
+ * so that opening it costs nothing however large the panel; replacing
+ * either file changes its time, and so the key.  A manifest under another
+ * key is discarded whole; a batch whose partial file is missing or of the
+ * wrong size, or whose .viterbi files are now wanted but were not
+ * written, is painted again.
+ * <p>
+ * Layout of prefix.resume:
+ * <pre>
+ * manifest        "key ...", then one "first count viterbiText" line per batch,
+ *                 each synced after the batch's partial file
+ * first.partial   per recipient (little endian): float[N] lengths, float[N] counts,
+ *                 then, with paths, int[L] donors and float[L] block lengths
+ * </pre>
+ *
+ */
+class PaintingManifest implements Closeable {
+	static final String EXTENSION = ".resume";
+	static final int VERSION = 1;
+
+	private static final String MANIFEST = "manifest";
+	private static final String PARTIAL = ".partial";
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private final File directory;
+	private final int numberOfHaplotypes;
+	private final int numberOfSnps;
+	private final boolean paths;
+	private final BitSet painted = new BitSet();
+	private final Map<Integer, Integer> batches = new TreeMap<Integer, Integer>();
+	private FileOutputStream manifest;
+
+	private PaintingManifest (File directory, int numberOfHaplotypes, int numberOfSnps, boolean paths) {
+		this.directory = directory;
+		this.numberOfHaplotypes = numberOfHaplotypes;
+		this.numberOfSnps = numberOfSnps;
+		this.paths = paths;
+	}
+
+	/**
+	 * @param prefix {@code String} prefix of the painting's outputs
+	 * @return {@code String} directory of its manifest and partial files
+	 */
+	static String pathFor (String prefix) {
+		return prefix + EXTENSION;
+	}
+
+	/**
+	 * Opens the manifest of {@code prefix}, keeping the batches recorded
+	 * under {@code key} that are still usable and starting afresh if there
+	 * are none.
+	 * @param key {@code String} from {@link #key}
+	 * @param paths {@code boolean} whether partial files hold the paths
+	 * @param viterbiText {@code boolean} whether recipients need their .viterbi files
+	 * @throws IOException
+	 */
+	static PaintingManifest open (String prefix, String key, int numberOfHaplotypes, int numberOfSnps,
+			boolean paths, boolean viterbiText) throws IOException {
+		File directory = new File(pathFor(prefix));
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create " + directory);
+		}
+		File file = new File(directory, MANIFEST);
+		PaintingManifest opened = new PaintingManifest(directory, numberOfHaplotypes, numberOfSnps, paths);
+		Map<Integer, String> kept = new TreeMap<Integer, String>();
+		if (file.isFile()) {
+			BufferedReader reader = new BufferedReader(new FileReader(file));
+			try {
+				String line = reader.readLine();
+				if (line != null && line.equals("key " + key)) {
+					while ((line = reader.readLine()) != null) {
+						opened.keep(line, viterbiText, kept);
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		// Rewrite the manifest with only the batches kept, so that stale
+		// lines cannot be mistaken for the batches that replace them.
+		File rewritten = new File(directory, MANIFEST + ".tmp");
+		FileOutputStream output = new FileOutputStream(rewritten);
+		try {
+			StringBuilder text = new StringBuilder("key ").append(key).append('\n');
+			for (String line : kept.values()) {
+				text.append(line).append('\n');
+			}
+			output.write(text.toString().getBytes(ASCII));
+			output.getFD().sync();
+		} finally {
+			output.close();
+		}
+		if (!rewritten.renameTo(file) && !(file.delete() && rewritten.renameTo(file))) {
+			throw new IOException("Cannot replace " + file);
+		}
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File partial : files) {
+				String name = partial.getName();
+				if (name.endsWith(PARTIAL) && !opened.batches.containsKey(partialIndex(name))) {
+					partial.delete();
+				}
+			}
+		}
+		opened.manifest = new FileOutputStream(file, true);
+		return opened;
+	}
+
+	/**
+	 * Keeps the batch of one manifest line if it is whole and does not
+	 * overlap any kept before it.
+	 */
+	private void keep (String line, boolean viterbiText, Map<Integer, String> kept) {
+		String[] fields = line.trim().split(" ");
+		if (fields.length != 3) {
+			return;
+		}
+		int first;
+		int count;
+		try {
+			first = Integer.parseInt(fields[0]);
+			count = Integer.parseInt(fields[1]);
+		} catch (NumberFormatException e) {
+			return;
+		}
+		int overlap = painted.nextSetBit(Math.max(0, first));
+		if (first < 0 || count < 1 || first + count > numberOfHaplotypes || (viterbiText && !fields[2].equals("1")) ||
+				(overlap >= 0 && overlap < first + count) || partial(first).length() != count * bytesPerRecipient()) {
+			return;
+		}
+		painted.set(first, first + count);
+		batches.put(first, count);
+		kept.put(first, line.trim());
+	}
+
+	/**
+	 * @return {@code String} the parameters that change a recipient's path,
+	 *  and the size and modification time of the .hap and map files
+	 * @param tieSeed {@code long} seed of ties, or -1 if they are random
+	 */
+	static String key (String haplotype, String map, int effectivePopulation, boolean diploid, long tieSeed) {
+		return "version " + VERSION + " effective_population " + effectivePopulation + " diploid " + diploid +
+				" tie_seed " + tieSeed + " haplotype " + describe(new File(haplotype)) + " map " +
+				describe(new File(map));
+	}
+
+	private static String describe (File file) {
+		return file.length() + " " + file.lastModified();
+	}
+
+	synchronized boolean isPainted (int haplotype) {
+		return painted.get(haplotype);
+	}
+
+	synchronized int numberPainted () {
+		return painted.cardinality();
+	}
+
+	File directory () {
+		return directory;
+	}
+
+	/**
+	 * Writes the partial file of a batch of consecutive recipients, syncs
+	 * it and then records the batch in the manifest.  Safe to call from
+	 * several threads at once for different batches.
+	 * @param first {@code int} first recipient of the batch
+	 * @param outputs {@link List} of {@link LengthsFromPainting}, one per recipient in order
+	 * @param viterbiText {@code boolean} whether their .viterbi files were written
+	 * @throws IOException
+	 */
+	void record (int first, List<LengthsFromPainting> outputs, boolean viterbiText) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) bytesPerRecipient()).order(ByteOrder.LITTLE_ENDIAN);
+		RandomAccessFile file = new RandomAccessFile(partial(first), "rw");
+		try {
+			file.setLength(0);
+			FileChannel channel = file.getChannel();
+			for (LengthsFromPainting output : outputs) {
+				buffer.clear();
+				buffer.asFloatBuffer().put(output.getLengths(), 0, numberOfHaplotypes);
+				buffer.position(4 * numberOfHaplotypes);
+				buffer.asFloatBuffer().put(output.getCounts(), 0, numberOfHaplotypes);
+				if (paths) {
+					buffer.position(8 * numberOfHaplotypes);
+					buffer.asIntBuffer().put(output.getPath(), 0, numberOfSnps);
+					buffer.position(8 * numberOfHaplotypes + 4 * numberOfSnps);
+					buffer.asFloatBuffer().put(output.getBlocks(), 0, numberOfSnps);
+				}
+				buffer.rewind();
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+			channel.force(true);
+		} finally {
+			file.close();
+		}
+		byte[] line = (first + " " + outputs.size() + " " + (viterbiText ? 1 : 0) + "\n").getBytes(ASCII);
+		synchronized (manifest) {
+			manifest.write(line);
+			manifest.getFD().sync();
+		}
+		synchronized (this) {
+			painted.set(first, first + outputs.size());
+			batches.put(first, outputs.size());
+		}
+	}
+
+	/**
+	 * @return {@link Rows} reading back every recipient in order, once all
+	 *  are painted
+	 */
+	synchronized Rows rows () {
+		if (numberPainted() != numberOfHaplotypes) {
+			throw new IllegalStateException((numberOfHaplotypes - numberPainted()) + " haplotypes are not painted.");
+		}
+		return new Rows(batches.keySet().iterator());
+	}
+
+	@Override
+	public void close () throws IOException {
+		manifest.close();
+	}
+
+	/**
+	 * Closes the manifest and removes it with the partial files, once the
+	 * outputs are complete.
+	 */
+	void delete () throws IOException {
+		close();
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	private long bytesPerRecipient () {
+		return 8L * numberOfHaplotypes + (paths ? 8L * numberOfSnps : 0);
+	}
+
+	private File partial (int first) {
+		return new File(directory, first + PARTIAL);
+	}
+
+	private static int partialIndex (String name) {
+		try {
+			return Integer.parseInt(name.substring(0, name.length() - PARTIAL.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * The recipients of the partial files, in order.
+	 */
+	class Rows implements Closeable {
+		private final Iterator<Integer> firsts;
+		private final ByteBuffer buffer = ByteBuffer.allocate((int) bytesPerRecipient()).order(ByteOrder.LITTLE_ENDIAN);
+		private RandomAccessFile file;
+		private int remaining = 0;
+
+		private Rows (Iterator<Integer> firsts) {
+			this.firsts = firsts;
+		}
+
+		/**
+		 * Reads the next recipient.
+		 * @param donors {@code int[]} receives its path, if the partial files hold paths
+		 * @param blocks {@code float[]} receives its block lengths, likewise
+		 * @return {@link PaintingSummaries} its summary rows
+		 * @throws IOException
+		 */
+		PaintingSummaries next (int[] donors, float[] blocks) throws IOException {
+			if (remaining == 0) {
+				close();
+				int first = firsts.next();
+				file = new RandomAccessFile(partial(first), "r");
+				remaining = batches.get(first);
+			}
+			buffer.clear();
+			FileChannel channel = file.getChannel();
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0) {
+					throw new IOException("Partial painting in " + directory + " is truncated.");
+				}
+			}
+			remaining--;
+			float[] lengths = new float[numberOfHaplotypes];
+			float[] counts = new float[numberOfHaplotypes];
+			buffer.rewind();
+			buffer.asFloatBuffer().get(lengths);
+			buffer.position(4 * numberOfHaplotypes);
+			buffer.asFloatBuffer().get(counts);
+			if (paths) {
+				buffer.position(8 * numberOfHaplotypes);
+				buffer.asIntBuffer().get(donors, 0, numberOfSnps);
+				buffer.position(8 * numberOfHaplotypes + 4 * numberOfSnps);
+				buffer.asFloatBuffer().get(blocks, 0, numberOfSnps);
+			}
+			return new PaintingSummaries(lengths, counts);
+		}
+
+		@Override
+		public void close () throws IOException {
+			if (file != null) {
+				file.close();
+				file = null;
+			}
+		}
+	}
+}
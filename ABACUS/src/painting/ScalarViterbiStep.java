@@ -0,0 +1,35 @@
+package painting;
+
+/**
+ * Plain loop {@link ViterbiStep}, used wherever the Vector API is not
+ * available.
+ *
+ */
+class ScalarViterbiStep extends ViterbiStep {
+
+	@Override
+	String describe () {
+		return "scalar";
+	}
+
+	@Override
+	void step (double[] current, double[] next, int from, int to, double jump, double logStay,
+			double logMatch, double logMismatch, long[] matchWords, long[] row) {
+		for (int i = from; i < to; i++) {
+			double stay = current[i] + logStay;
+			double value;
+			if (stay - jump > 0) {
+				value = stay + emmision(matchWords, i, logMatch, logMismatch);
+				row[i >>> 6] |= 1L << i;
+			} else {
+				value = jump + emmision(matchWords, i, logMatch, logMismatch);
+			}
+			next[i] = value;
+			track(value);
+		}
+	}
+
+	static double emmision (long[] matchWords, int state, double logMatch, double logMismatch) {
+		return ((matchWords[state >>> 6] >>> state) & 1L) != 0 ? logMatch : logMismatch;
+	}
+}
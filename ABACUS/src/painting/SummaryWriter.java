@@ -0,0 +1,116 @@
+package painting;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import utilities.Metrics;
+import utilities.SummaryMatrix;
+
+/**
+ * Streams the rows of the .viterbiLengths and .viterbiCounts summary
+ * matrices to disk as recipients finish, as text and/or as binary
+ * {@link SummaryMatrix} files.  Each text value is written in the
+ * form of {@link Float#toString(float)}, followed by a space, straight
+ * into the buffered writer; whole numbers (every count, and the many
+ * zero lengths) are encoded without creating a {@code String}.  The
+ * binary matrices are only marked complete if every row was written.
+ *
+ */
+class SummaryWriter implements Closeable {
+	private static final int BUFFER_CHARS = 1 << 16;
+	private static final float PLAIN_LIMIT = 1E7f;
+
+	private final BufferedWriter lengths;
+	private final BufferedWriter counts;
+	private final SummaryMatrix lengthsMatrix;
+	private final SummaryMatrix countsMatrix;
+	private final char[] digits = new char[10];
+	private final int numberOfHaplotypes;
+	private int rows = 0;
+
+	/**
+	 * @param text {@code boolean} write prefix.viterbiLengths and prefix.viterbiCounts
+	 * @param binary {@code boolean} write the binary matrices beside them
+	 */
+	SummaryWriter (String prefix, int numberOfHaplotypes, boolean text, boolean binary) throws IOException {
+		this.numberOfHaplotypes = numberOfHaplotypes;
+		this.lengths = text ? new BufferedWriter(new FileWriter(prefix + ".viterbiLengths"), BUFFER_CHARS) : null;
+		this.counts = text ? new BufferedWriter(new FileWriter(prefix + ".viterbiCounts"), BUFFER_CHARS) : null;
+		this.lengthsMatrix = binary ? SummaryMatrix.create(SummaryMatrix.pathFor(prefix + ".viterbiLengths"),
+				numberOfHaplotypes, numberOfHaplotypes) : null;
+		this.countsMatrix = binary ? SummaryMatrix.create(SummaryMatrix.pathFor(prefix + ".viterbiCounts"),
+				numberOfHaplotypes, numberOfHaplotypes) : null;
+	}
+
+	/**
+	 * Appends one recipient's row to each matrix.
+	 * @param summaries {@link PaintingSummaries}
+	 * @throws IOException
+	 */
+	void write (PaintingSummaries summaries) throws IOException {
+		long start = Metrics.enabled() ? System.nanoTime() : 0;
+		long bytes = 0;
+		if (lengths != null) {
+			bytes += writeRow(lengths, summaries.getTotal());
+			bytes += writeRow(counts, summaries.getNumber());
+		}
+		if (lengthsMatrix != null) {
+			lengthsMatrix.writeRow(rows, summaries.getTotal());
+			countsMatrix.writeRow(rows, summaries.getNumber());
+			bytes += 8L * numberOfHaplotypes;
+		}
+		rows++;
+		if (start != 0) {
+			Metrics.wrote(bytes, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * @return {@code long} characters written
+	 */
+	private long writeRow (BufferedWriter writer, float[] values) throws IOException {
+		long characters = values.length + 1;
+		for (float value : values) {
+			characters += writeValue(writer, value);
+			writer.write(' ');
+		}
+		writer.newLine();
+		return characters;
+	}
+
+	private int writeValue (BufferedWriter writer, float value) throws IOException {
+		// Float.toString prints non-negative whole numbers below 10^7 as digits and ".0".
+		if (Float.floatToRawIntBits(value) >= 0 && value < PLAIN_LIMIT && value == (int) value) {
+			int remaining = (int) value;
+			int start = digits.length;
+			do {
+				digits[--start] = (char) ('0' + remaining % 10);
+				remaining /= 10;
+			} while (remaining > 0);
+			writer.write(digits, start, digits.length - start);
+			writer.write(".0");
+			return digits.length - start + 2;
+		}
+		String text = Float.toString(value);
+		writer.write(text);
+		return text.length();
+	}
+
+	@Override
+	public void close () throws IOException {
+		if (lengths != null) {
+			try {
+				lengths.close();
+			} finally {
+				counts.close();
+			}
+		}
+		// Marked complete after the text, so that they are at least as new.
+		if (lengthsMatrix != null && rows == numberOfHaplotypes) {
+			lengthsMatrix.close();
+			countsMatrix.close();
+		}
+	}
+}
@@ -0,0 +1,381 @@
+package painting;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import utilities.HaplotypeMatrix;
+import utilities.Metrics;
+import utilities.PackedHaplotypeMatrix;
+import utilities.TransitionTable;
+
+/**
+ * Worker local Li and Stephens [2003] Viterbi recursion.  One instance is
+ * kept per painting thread and all of its buffers (the state vectors, the
+ * packed columns and the backpointer rows) are reused from recipient to
+ * recipient, so the per SNP loop performs no allocation.  States are
+ * walked as primitive index ranges either side of the excluded block
+ * (the recipient itself, or both haplotypes of a diploid individual).
+ * <p>
+ * A batch of recipients is painted in lock step: each donor column is
+ * loaded once per SNP and then every recipient's state vector is advanced
+ * while it is in cache.  {@link #recipientsPerBatch} sizes the batch so the
+ * state vectors stay resident in L2 from one SNP to the next.  The inner
+ * loop over states is a {@link ViterbiStep}, vectorised where possible.
+ * <p>
+ * Every state either stays on its own donor or jumps from the single
+ * reference maximum of the previous SNP, so the backpointers of a SNP are
+ * held as one bit per state (set for a stay) plus that reference index.
+ * By default every row is kept, L * N / 8 bytes per recipient.  With
+ * a checkpoint spacing of {@code s} only the state vector every {@code s}
+ * SNPs and the reference maximum of each SNP are kept; the backpointers of
+ * each segment are recomputed from its checkpoint while tracing back.
+ * Because the recomputation reuses the recorded reference maxima it makes
+ * exactly the decisions of the forward pass, so the path is identical.
+ * <p>
+ * Ties between maxima are broken at random.  After {@link #setTieSeed}
+ * each recipient draws them from its own generator seeded by the seed and
+ * its index, so a painting is reproducible whatever the threads and batches.
+ *
+ */
+class ViterbiKernel {
+	static final long L2_CACHE_BYTES = 1L << 20;
+	static final int MAXIMUM_BATCH = 64;
+
+	private static final ThreadLocal<ViterbiKernel> LOCAL = new ThreadLocal<ViterbiKernel>() {
+		@Override
+		protected ViterbiKernel initialValue () {
+			return new ViterbiKernel();
+		}
+	};
+
+	private static volatile boolean seededTies = false;
+	private static volatile long tieSeed;
+
+	private long[] donorColumn = new long[0];
+	private long[] matchOne = new long[0];
+	private long[] matchZero = new long[0];
+	private Lane[] lanes = new Lane[0];
+	private final ViterbiStep stepper = ViterbiStep.create();
+
+	/**
+	 * @param seed {@code long} seed of the generators breaking ties
+	 */
+	static void setTieSeed (long seed) {
+		tieSeed = seed;
+		seededTies = true;
+	}
+
+	/**
+	 * @return the calling thread's kernel
+	 */
+	static ViterbiKernel local () {
+		return LOCAL.get();
+	}
+
+	/**
+	 * @return {@code String} name of the {@link ViterbiStep} in use, for the log
+	 */
+	String describe () {
+		return stepper.describe();
+	}
+
+	/**
+	 * Number of recipients whose two state vectors and backpointer row
+	 * together fit in {@code cacheBytes}.
+	 * @param numberOfStates {@code int}
+	 * @param cacheBytes {@code long}
+	 * @return {@code int} between 1 and {@link #MAXIMUM_BATCH}
+	 */
+	static int recipientsPerBatch (int numberOfStates, long cacheBytes) {
+		long perRecipient = 16L * numberOfStates + 8L * PackedHaplotypeMatrix.wordsFor(numberOfStates);
+		return (int) Math.max(1, Math.min(MAXIMUM_BATCH, cacheBytes / perRecipient));
+	}
+
+	/**
+	 * Paints {@code recipient} against every haplotype of {@code donors}
+	 * outside {@code [excludedFrom, excludedTo)}.
+	 * @param donors {@link HaplotypeMatrix} whose haplotypes are the states
+	 * @param recipients {@link HaplotypeMatrix} holding the recipient, may be {@code donors}
+	 * @param recipient {@code int} index of the recipient in {@code recipients}
+	 * @param excludedFrom {@code int} first state that may not be copied
+	 * @param excludedTo {@code int} end (exclusive) of the excluded states
+	 * @param transitions {@link TransitionTable} for the number of allowed states
+	 * @param matchOnEquality {@code boolean} emit a match whenever alleles are equal,
+	 *  otherwise only where both carry the "1" allele
+	 * @param checkpointSpacing {@code int} SNPs between stored state vectors,
+	 *  0 keeps every backpointer row
+	 * @return {@code int[]} Viterbi path of 1-based state indexes
+	 */
+	int[] paint (HaplotypeMatrix donors, HaplotypeMatrix recipients, int recipient,
+			int excludedFrom, int excludedTo, TransitionTable transitions, boolean matchOnEquality,
+			int checkpointSpacing) {
+		return paint(donors, recipients, new int[] {recipient}, new int[] {excludedFrom},
+				new int[] {excludedTo}, new TransitionTable[] {transitions}, matchOnEquality,
+				checkpointSpacing)[0];
+	}
+
+	/**
+	 * Paints a batch of recipients together, sharing each donor column.
+	 * The arrays hold one entry per recipient, as for
+	 * {@link #paint(HaplotypeMatrix, HaplotypeMatrix, int, int, int, TransitionTable, boolean, int)}.
+	 * @return {@code int[][]} Viterbi path of each recipient
+	 */
+	int[][] paint (HaplotypeMatrix donors, HaplotypeMatrix recipients, int[] recipient,
+			int[] excludedFrom, int[] excludedTo, TransitionTable[] transitions, boolean matchOnEquality,
+			int checkpointSpacing) {
+		int batch = recipient.length;
+		int numberOfSnps = donors.numberOfSnps();
+		int numberOfStates = donors.numberOfHaplotypes();
+		boolean checkpointed = checkpointSpacing > 0 && checkpointSpacing < numberOfSnps - 1;
+		int rows = checkpointed ? checkpointSpacing : numberOfSnps - 1;
+		int numberOfCheckpoints = checkpointed ? (numberOfSnps - 2) / checkpointSpacing + 1 : 0;
+		int rowWords = PackedHaplotypeMatrix.wordsFor(numberOfStates);
+		ensureCapacity(batch, donors.wordsPerSnp());
+		for (int b = 0; b < batch; b++) {
+			lanes[b].reset(recipient[b], excludedFrom[b], excludedTo[b], transitions[b], numberOfStates);
+			lanes[b].ensureCapacity(numberOfSnps, rows, numberOfCheckpoints, rowWords);
+		}
+
+		loadColumn(donors, 0, matchOnEquality);
+		for (int b = 0; b < batch; b++) {
+			lanes[b].initialise(matchWords(donors, recipients, lanes[b].recipient, 0));
+		}
+
+		for (int snp = 1; snp < numberOfSnps; snp++) {
+			loadColumn(donors, snp, matchOnEquality);
+			for (int b = 0; b < batch; b++) {
+				Lane lane = lanes[b];
+				int referenceIndex = lane.chooseMaximum();
+				lane.references[snp] = referenceIndex;
+				long[] row;
+				if (checkpointed) {
+					if ((snp - 1) % checkpointSpacing == 0) {
+						System.arraycopy(lane.current, 0, lane.checkpoints[(snp - 1) / checkpointSpacing], 0,
+								numberOfStates);
+					}
+					row = lane.trace[0];
+				} else {
+					row = lane.trace[snp - 1];
+				}
+				lane.advance(stepper, snp, lane.max + lane.transitions.logTransition(snp),
+						matchWords(donors, recipients, lane.recipient, snp), row, rowWords);
+			}
+		}
+
+		int[][] vPath = new int[batch][numberOfSnps];
+		for (int b = 0; b < batch; b++) {
+			vPath[b][numberOfSnps - 1] = lanes[b].chooseMaximum();
+			if (!checkpointed) {
+				for (int l = numberOfSnps - 1; l > 0; l--) {
+					vPath[b][l - 1] = lanes[b].backpointer(lanes[b].trace[l - 1], l, vPath[b][l]);
+				}
+			}
+		}
+		if (!checkpointed) {
+			return vPath;
+		}
+		for (int start = (numberOfCheckpoints - 1) * checkpointSpacing; start >= 0; start -= checkpointSpacing) {
+			int end = Math.min(start + checkpointSpacing, numberOfSnps - 1);
+			for (int b = 0; b < batch; b++) {
+				System.arraycopy(lanes[b].checkpoints[start / checkpointSpacing], 0, lanes[b].current, 0,
+						numberOfStates);
+			}
+			for (int snp = start + 1; snp <= end; snp++) {
+				loadColumn(donors, snp, matchOnEquality);
+				for (int b = 0; b < batch; b++) {
+					Lane lane = lanes[b];
+					// The reference state held the maximum, so this is the forward pass's jump.
+					double jump = lane.current[lane.references[snp] - 1] + lane.transitions.logTransition(snp);
+					lane.advance(stepper, snp, jump, matchWords(donors, recipients, lane.recipient, snp),
+							lane.trace[snp - 1 - start], rowWords);
+				}
+			}
+			for (int b = 0; b < batch; b++) {
+				for (int l = end; l > start; l--) {
+					vPath[b][l - 1] = lanes[b].backpointer(lanes[b].trace[l - 1 - start], l, vPath[b][l]);
+				}
+			}
+		}
+		return vPath;
+	}
+
+	/**
+	 * Loads the donor column of {@code snp} and builds the masks of states
+	 * emitting a match for a recipient carrying each allele.
+	 */
+	private void loadColumn (HaplotypeMatrix donors, int snp, boolean matchOnEquality) {
+		donors.copyColumn(snp, donorColumn);
+		int words = donors.wordsPerSnp();
+		for (int word = 0; word < words; word++) {
+			matchOne[word] = donorColumn[word];
+			matchZero[word] = matchOnEquality ? ~donorColumn[word] : 0L;
+		}
+	}
+
+	private long[] matchWords (HaplotypeMatrix donors, HaplotypeMatrix recipients, int recipient, int snp) {
+		boolean allele;
+		if (recipients == donors) {
+			allele = PackedHaplotypeMatrix.isSet(donorColumn, recipient);
+		} else {
+			allele = recipients.get(snp, recipient);
+		}
+		return allele ? matchOne : matchZero;
+	}
+
+	private void ensureCapacity (int batch, int donorWords) {
+		if (donorColumn.length < donorWords) {
+			donorColumn = new long[donorWords];
+			matchOne = new long[donorWords];
+			matchZero = new long[donorWords];
+		}
+		if (lanes.length < batch) {
+			Lane[] grown = Arrays.copyOf(lanes, batch);
+			for (int b = lanes.length; b < batch; b++) {
+				grown[b] = new Lane();
+			}
+			lanes = grown;
+		}
+	}
+
+	/**
+	 * State of one recipient within a batch.
+	 */
+	private static final class Lane {
+		private double[] current = new double[0];
+		private double[] next = new double[0];
+		private long[][] trace = new long[0][];
+		private double[][] checkpoints = new double[0][];
+		private int[] references = new int[0];
+		private double max;
+		private int maxCount;
+		private int recipient;
+		private int excludedFrom;
+		private int excludedTo;
+		private int numberOfStates;
+		private TransitionTable transitions;
+		private final Random ties = new Random();
+		private boolean seeded;
+
+		private void reset (int recipient, int excludedFrom, int excludedTo, TransitionTable transitions,
+				int numberOfStates) {
+			this.recipient = recipient;
+			this.seeded = seededTies;
+			if (seeded) {
+				ties.setSeed(tieSeed * 1000003L + recipient);
+			}
+			this.excludedFrom = excludedFrom;
+			this.excludedTo = excludedTo;
+			this.transitions = transitions;
+			this.numberOfStates = numberOfStates;
+		}
+
+		private void initialise (long[] matchWords) {
+			max = Double.NEGATIVE_INFINITY;
+			maxCount = 0;
+			double logMatch = transitions.logMatch();
+			double logMismatch = transitions.logMismatch();
+			double logInitial = transitions.logInitial();
+			for (int i = 0; i < excludedFrom; i++) {
+				initialise(i, ScalarViterbiStep.emmision(matchWords, i, logMatch, logMismatch) + logInitial);
+			}
+			for (int i = excludedFrom; i < excludedTo; i++) {
+				current[i] = Double.NaN;
+			}
+			for (int i = excludedTo; i < numberOfStates; i++) {
+				initialise(i, ScalarViterbiStep.emmision(matchWords, i, logMatch, logMismatch) + logInitial);
+			}
+		}
+
+		private void initialise (int state, double value) {
+			current[state] = value;
+			track(value);
+		}
+
+		/**
+		 * @return {@code int} 1-based state at {@code snp - 1} leading to {@code state} at {@code snp}
+		 */
+		private int backpointer (long[] row, int snp, int state) {
+			return PackedHaplotypeMatrix.isSet(row, state - 1) ? state : references[snp];
+		}
+
+		/**
+		 * Moves {@code current} on to {@code snp}, recording which states stay
+		 * in {@code row}.
+		 */
+		private void advance (ViterbiStep stepper, int snp, double jump, long[] matchWords, long[] row,
+				int rowWords) {
+			double logStay = transitions.logStay(snp);
+			double logMatch = transitions.logMatch();
+			double logMismatch = transitions.logMismatch();
+			Arrays.fill(row, 0, rowWords, 0L);
+			stepper.reset();
+			stepper.step(current, next, 0, excludedFrom, jump, logStay, logMatch, logMismatch, matchWords, row);
+			stepper.step(current, next, excludedTo, numberOfStates, jump, logStay, logMatch, logMismatch,
+					matchWords, row);
+			max = stepper.getMax();
+			maxCount = stepper.getMaxCount();
+			for (int i = excludedFrom; i < excludedTo; i++) {
+				next[i] = Double.NaN;
+			}
+			double[] swap = current;
+			current = next;
+			next = swap;
+		}
+
+		private void track (double value) {
+			if (value > max) {
+				max = value;
+				maxCount = 1;
+			} else if (value == max) {
+				maxCount++;
+			}
+		}
+
+		/**
+		 * Picks uniformly among the states holding the tracked maximum of
+		 * {@code current}.
+		 * @return {@code int} 1-based state index
+		 */
+		private int chooseMaximum () {
+			int tie = (int) ((seeded ? ties.nextDouble() : Math.random()) * maxCount);
+			for (int i = 0; i < excludedFrom; i++) {
+				if (current[i] == max && tie-- == 0) {
+					return i + 1;
+				}
+			}
+			for (int i = excludedTo; i < numberOfStates; i++) {
+				if (current[i] == max && tie-- == 0) {
+					return i + 1;
+				}
+			}
+			throw new IllegalStateException("No state holds the maximum " + max);
+		}
+
+		private void ensureCapacity (int numberOfSnps, int rows, int numberOfCheckpoints, int rowWords) {
+			if (current.length < numberOfStates) {
+				current = new double[numberOfStates];
+				next = new double[numberOfStates];
+			}
+			if (references.length < numberOfSnps) {
+				references = new int[numberOfSnps];
+			}
+			long before = traceBytes();
+			if (trace.length < rows || (trace.length > 0 && trace[0].length < rowWords)) {
+				trace = new long[Math.max(rows, 1)][rowWords];
+			}
+			if (checkpoints.length < numberOfCheckpoints ||
+					(checkpoints.length > 0 && checkpoints[0].length < numberOfStates)) {
+				checkpoints = new double[numberOfCheckpoints][numberOfStates];
+			}
+			Metrics.add(Metrics.Counter.TRACE_BUFFER_BYTES, traceBytes() - before);
+		}
+
+		/**
+		 * @return {@code long} bytes held by the backpointer rows and checkpoints
+		 */
+		private long traceBytes () {
+			return 8L * trace.length * (trace.length > 0 ? trace[0].length : 0) +
+					8L * checkpoints.length * (checkpoints.length > 0 ? checkpoints[0].length : 0);
+		}
+	}
+}
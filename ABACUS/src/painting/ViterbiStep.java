@@ -0,0 +1,95 @@
+package painting;
+
+/**
+ * The inner loop of the Viterbi recursion: advances a range of states by
+ * one SNP, recording which states stay in a packed row, and tracks the
+ * maximum of the new values and how many states hold it.
+ * <p>
+ * {@link #create} returns the Vector API implementation,
+ * {@code VectorViterbiStep}, when it has been compiled (from
+ * {@code src-vector} by the {@code vector} module, which Maven builds on
+ * JDK 16 or later) and the JVM was started with
+ * {@code --add-modules jdk.incubator.vector}; otherwise it falls back to
+ * {@link ScalarViterbiStep}.  Both perform the same floating point
+ * operations on every state, so they paint identical paths.
+ *
+ */
+abstract class ViterbiStep {
+	private static final String VECTOR_CLASS = "painting.VectorViterbiStep";
+	private static volatile boolean vectorEnabled = true;
+
+	protected double max;
+	protected int maxCount;
+
+	/**
+	 * @param enabled {@code boolean} whether {@link #create} may use the Vector API
+	 */
+	static void setVectorEnabled (boolean enabled) {
+		vectorEnabled = enabled;
+	}
+
+	/**
+	 * @return the fastest available {@link ViterbiStep}
+	 */
+	static ViterbiStep create () {
+		if (vectorEnabled) {
+			try {
+				ViterbiStep vector = Class.forName(VECTOR_CLASS).asSubclass(ViterbiStep.class)
+						.getDeclaredConstructor().newInstance();
+				if (vector.isSupported()) {
+					return vector;
+				}
+			} catch (ReflectiveOperationException | LinkageError e) {
+				// Not compiled in, or the incubator module is not loaded.
+			}
+		}
+		return new ScalarViterbiStep();
+	}
+
+	/**
+	 * Clears the tracked maximum before the first range of a SNP.
+	 */
+	void reset () {
+		max = Double.NEGATIVE_INFINITY;
+		maxCount = 0;
+	}
+
+	double getMax () {
+		return max;
+	}
+
+	int getMaxCount () {
+		return maxCount;
+	}
+
+	protected void track (double value) {
+		if (value > max) {
+			max = value;
+			maxCount = 1;
+		} else if (value == max) {
+			maxCount++;
+		}
+	}
+
+	protected boolean isSupported () {
+		return true;
+	}
+
+	/**
+	 * @return {@code String} name of the implementation, for the log
+	 */
+	abstract String describe ();
+
+	/**
+	 * Advances states {@code [from, to)} by one SNP: each state either
+	 * stays on its own donor or jumps from the reference maximum,
+	 * whichever is more likely, then emits.  Bits of {@code row} are set
+	 * for the states that stay; {@code row} must be cleared beforehand.
+	 * @param current {@code double[]} log probabilities at the previous SNP
+	 * @param next {@code double[]} receives the log probabilities at this SNP
+	 * @param jump {@code double} reference maximum plus the log transition
+	 * @param matchWords {@code long[]} packed states emitting a match
+	 */
+	abstract void step (double[] current, double[] next, int from, int to, double jump, double logStay,
+			double logMatch, double logMismatch, long[] matchWords, long[] row);
+}
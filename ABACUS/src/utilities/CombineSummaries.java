@@ -1,80 +1,358 @@
 package utilities;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-
+/**
+ * Adds any number of summary matrices, e.g. the .viterbiLengths of every
+ * chromosome, in one streaming pass.  Row {@code i} of the output is the
+ * rows {@code i} of the inputs folded in order with {@link #getTRow}, so
+ * the result is exactly that of adding the inputs two at a time.
+ * <p>
+ * Binary {@link SummaryMatrix} inputs (given directly, or found beside
+ * the text paths) are mapped, and blocks of rows are combined in parallel;
+ * if any input is text the rows are combined in order as they are
+ * parsed.  Either way each thread holds only a couple of rows.  The sum
+ * is written as a binary matrix beside the output, and exported as text
+ * unless {@code -text:false}.  The binary matrix is written to a temporary
+ * file and renamed over the old one only once complete, so the output may
+ * be one of the inputs, e.g. {@code -first:total -second:chr2 -output:total}.
+ * @param -first:path -second:path inputs
+ * @param -inputs:glob inputs, e.g. -inputs:chr*.viterbiLengths
+ * @param -list:path file naming one input per line
+ * @param -output:path
+ * @param -text:true also write the output as text
+ * @param -threads:cores threads combining binary inputs
+ */
 public class CombineSummaries {
+	private static final int ROWS_PER_BLOCK = 64;
+
 	public static void main (String[] args) {
-		String first = "";
-		String second = "";
+		List<String> inputs = new ArrayList<String>();
 		String output = "";
-		for (String s : args) {
-			if (s.contains("-first")) {
-				first = s.split(":")[1];
+		boolean text = true;
+		int threads = Runtime.getRuntime().availableProcessors();
+		try {
+			for (String s : args) {
+				if (s.contains("-first") || s.contains("-second")) {
+					inputs.add(s.split(":")[1]);
+				}
+				if (s.contains("-inputs")) {
+					inputs.addAll(expand(s.split(":")[1]));
+				}
+				if (s.contains("-list")) {
+					inputs.addAll(readList(s.split(":")[1]));
+				}
+				if (s.contains("-output")) {
+					output = s.split(":")[1];
+				}
+				if (s.contains("-text")) {
+					text = Boolean.parseBoolean(s.split(":")[1]);
+				}
+				if (s.contains("-threads")) {
+					threads = Integer.parseInt(s.split(":")[1]);
+				}
 			}
-			if (s.contains("-second")) {
-				second = s.split(":")[1];
+			System.out.println("Combining " + inputs.size() + " summary matrices into " + output);
+			combine(inputs, output, text, threads);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Writes the sum of {@code inputs} to {@code output}'s binary matrix
+	 * and, if asked, to {@code output} as text.
+	 * @throws IOException if an input is not as many rows and columns as the
+	 *  first has haplotypes
+	 * @throws InterruptedException
+	 */
+	public static void combine (List<String> inputs, String output, boolean text, int threads)
+			throws IOException, InterruptedException {
+		if (inputs.isEmpty()) {
+			throw new IOException("No summary matrices to combine.");
+		}
+		List<SummaryMatrix> matrices = new ArrayList<SummaryMatrix>();
+		boolean allBinary = true;
+		for (String input : inputs) {
+			SummaryMatrix matrix = SummaryMatrix.find(input, -1);
+			matrices.add(matrix);
+			allBinary &= matrix != null;
+		}
+		int numberOfHaplotypes = matrices.get(0) != null ? matrices.get(0).rows() : countColumns(inputs.get(0));
+		for (int k = 0; k < inputs.size(); k++) {
+			SummaryMatrix matrix = matrices.get(k);
+			if (matrix != null && (matrix.rows() != numberOfHaplotypes || matrix.columns() != numberOfHaplotypes)) {
+				throw new IOException(inputs.get(k) + " is " + matrix.rows() + " x " + matrix.columns() +
+						", expected " + numberOfHaplotypes + " x " + numberOfHaplotypes + " as " +
+						inputs.get(0) + ".");
 			}
-			if (s.contains("-output")) {
-				output = s.split(":")[1];
+		}
+		// The inputs may include the output's own matrix, still mapped; it is only replaced at the end.
+		File path = new File(SummaryMatrix.pathFor(output));
+		File partial = new File(path.getPath() + ".tmp");
+		SummaryMatrix binary = SummaryMatrix.create(partial.getPath(), numberOfHaplotypes, numberOfHaplotypes);
+		if (allBinary) {
+			combineBinary(matrices, binary, threads);
+		} else {
+			combineStreams(inputs, matrices, binary);
+		}
+		if (text) {
+			writeText(binary, output);
+		}
+		// Marked complete after the text, so that it is at least as new.
+		binary.close();
+		if (!partial.renameTo(path) && !(path.delete() && partial.renameTo(path))) {
+			throw new IOException("Cannot replace " + path);
+		}
+	}
+
+	/**
+	 * Combines mapped matrices, blocks of rows in parallel.
+	 */
+	private static void combineBinary (final List<SummaryMatrix> matrices, final SummaryMatrix output, int threads)
+			throws IOException, InterruptedException {
+		final int numberOfHaplotypes = output.rows();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+		try {
+			List<Future<Void>> blocks = new ArrayList<Future<Void>>();
+			for (int from = 0; from < numberOfHaplotypes; from += ROWS_PER_BLOCK) {
+				final int start = from;
+				final int end = Math.min(numberOfHaplotypes, from + ROWS_PER_BLOCK);
+				blocks.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call () {
+						float[] T = new float[numberOfHaplotypes];
+						float[] row = new float[numberOfHaplotypes];
+						for (int i = start; i < end; i++) {
+							matrices.get(0).readRow(i, T);
+							for (int k = 1; k < matrices.size(); k++) {
+								matrices.get(k).readRow(i, row);
+								addRow(T, row);
+							}
+							output.writeRow(i, T);
+						}
+						return null;
+					}
+				}));
 			}
-		
-			
+			for (Future<Void> block : blocks) {
+				block.get();
+			}
+		} catch (ExecutionException e) {
+			throw new IOException("Combining summary matrices failed.", e.getCause());
+		} finally {
+			executor.shutdownNow();
 		}
-		
+	}
+
+	/**
+	 * Combines the inputs row by row in order, parsing the text ones as
+	 * they are read.
+	 */
+	private static void combineStreams (List<String> inputs, List<SummaryMatrix> matrices, SummaryMatrix output)
+			throws IOException {
+		int numberOfHaplotypes = output.rows();
+		List<BufferedReader> readers = new ArrayList<BufferedReader>();
 		try {
-			writeArray(output, getTArray(readArray(first), readArray(second)));
-		} catch (IOException e) {
-			e.printStackTrace();
+			for (int k = 0; k < inputs.size(); k++) {
+				readers.add(matrices.get(k) == null ? new BufferedReader(new FileReader(inputs.get(k))) : null);
+			}
+			float[] T = new float[numberOfHaplotypes];
+			float[] row = new float[numberOfHaplotypes];
+			for (int i = 0; i < numberOfHaplotypes; i++) {
+				for (int k = 0; k < inputs.size(); k++) {
+					float[] destination = k == 0 ? T : row;
+					if (matrices.get(k) != null) {
+						matrices.get(k).readRow(i, destination);
+					} else {
+						parseRow(readers.get(k).readLine(), destination, inputs.get(k), i);
+					}
+					if (k > 0) {
+						addRow(T, row);
+					}
+				}
+				output.writeRow(i, T);
+			}
+			for (int k = 0; k < inputs.size(); k++) {
+				String line = readers.get(k) == null ? null : readers.get(k).readLine();
+				if (line != null && !line.trim().isEmpty()) {
+					throw new IOException(inputs.get(k) + " has more than " + numberOfHaplotypes + " rows.");
+				}
+			}
+		} finally {
+			for (BufferedReader reader : readers) {
+				if (reader != null) {
+					reader.close();
+				}
+			}
+		}
+	}
+
+	private static void parseRow (String line, float[] row, String path, int index) throws IOException {
+		if (line == null) {
+			throw new IOException(path + " has fewer than " + row.length + " rows.");
+		}
+		String[] local = line.split(" ");
+		if (local.length != row.length) {
+			throw new IOException(path + " has " + local.length + " columns in row " + index + ", expected " +
+					row.length + ".");
+		}
+		for (int j = 0; j < row.length; j++) {
+			row[j] = Float.parseFloat(local[j]);
 		}
 	}
+
+	private static int countColumns (String path) throws IOException {
+		BufferedReader textReader = new BufferedReader(new FileReader(path));
+		try {
+			String line = textReader.readLine();
+			return line == null ? 0 : line.split(" ").length;
+		} finally {
+			textReader.close();
+		}
+	}
+
+	private static void writeText (SummaryMatrix matrix, String path) throws IOException {
+		BufferedWriter textWriter = new BufferedWriter(new FileWriter(path), 1 << 16);
+		try {
+			float[] row = new float[matrix.columns()];
+			for (int i = 0; i < matrix.rows(); i++) {
+				matrix.readRow(i, row);
+				writeRow(textWriter, row);
+			}
+		} finally {
+			textWriter.close();
+		}
+	}
+
+	/**
+	 * @param pattern {@code String} glob on file names, e.g. dir/chr*.viterbiLengths
+	 * @return {@code List<String>} matching files in name order; a binary
+	 *  matrix is dropped when its text path also matches
+	 * @throws IOException
+	 */
+	public static List<String> expand (String pattern) throws IOException {
+		Path glob = Paths.get(pattern);
+		Path directory = glob.getParent() == null ? Paths.get(".") : glob.getParent();
+		List<String> paths = new ArrayList<String>();
+		DirectoryStream<Path> stream = Files.newDirectoryStream(directory, glob.getFileName().toString());
+		try {
+			for (Path path : stream) {
+				paths.add(glob.getParent() == null ? path.getFileName().toString() : path.toString());
+			}
+		} finally {
+			stream.close();
+		}
+		Collections.sort(paths);
+		List<String> inputs = new ArrayList<String>();
+		for (String path : paths) {
+			if (!(path.endsWith(SummaryMatrix.EXTENSION) &&
+					paths.contains(path.substring(0, path.length() - SummaryMatrix.EXTENSION.length())))) {
+				inputs.add(path);
+			}
+		}
+		return inputs;
+	}
+
+	private static List<String> readList (String path) throws IOException {
+		List<String> inputs = new ArrayList<String>();
+		BufferedReader textReader = new BufferedReader(new FileReader(new File(path)));
+		try {
+			String strLine;
+			while ((strLine = textReader.readLine()) != null) {
+				if (!strLine.trim().isEmpty()) {
+					inputs.add(strLine.trim());
+				}
+			}
+		} finally {
+			textReader.close();
+		}
+		return inputs;
+	}
 	
 	public static float[][] readArray(String path) throws IOException {
 		BufferedReader textReader = new BufferedReader(new FileReader(path));
-		ArrayList<String[]> storage = new ArrayList<String[]>();
-		int numberOfHaplotypes = 0;
+		ArrayList<float[]> storage = new ArrayList<float[]>();
 		String strLine = "";
 		while ((strLine = textReader.readLine()) != null) {
-			storage.add(numberOfHaplotypes, strLine.split(" "));
-			numberOfHaplotypes++;
+			String[] local = strLine.split(" ");
+			float[] row = new float[local.length];
+			for (int j = 0; j < local.length; j++) {
+				row[j] = Float.parseFloat(local[j]);
+			}
+			storage.add(row);
 		}
+		textReader.close();
+		int numberOfHaplotypes = storage.size();
 		float[][] output = new float[numberOfHaplotypes][numberOfHaplotypes];
 		for (int i = 0; i < numberOfHaplotypes; i++) {
-			for (int j = 0; j < numberOfHaplotypes; j++) {
-				output[i][j] = Float.parseFloat(storage.get(i)[j]);
-			}
+			System.arraycopy(storage.get(i), 0, output[i], 0, numberOfHaplotypes);
 		}
-		textReader.close();
 		return output;
 	}
 	
 	public static void writeArray(String path, float[][] array) throws IOException {
 		BufferedWriter textReader = new BufferedWriter(new FileWriter(path));
 		for (float[] f : array) {
-			String str = "";
-			for (float fd : f) {
-				str += fd + " "; 
-			}
-			textReader.write(str);
-			textReader.newLine();
+			writeRow(textReader, f);
 		}
 		textReader.close();
 	}
+
+	private static void writeRow(BufferedWriter writer, float[] row) throws IOException {
+		for (float fd : row) {
+			writer.write(Float.toString(fd));
+			writer.write(' ');
+		}
+		writer.newLine();
+	}
 	
 	public static float[][] getTArray (float[][] A, float[][] B) {
-		float[][] T = new float[A.length][A.length];
+		float[][] T = new float[A.length][];
 		for (int i = 0; i < A.length; i++) {
-			for (int j = 0; j < A.length; j++) {
-				if (!Float.isNaN(A[i][j]) && !Float.isNaN(B[i][j])) {
-					T[i][j] = A[i][j] + B[i][j];
-				}
-			}
+			T[i] = getTRow(A[i], B[i]);
 		}
 		return T;
 	}
+
+	/**
+	 * @return {@code float[]} sum of two rows, 0 wherever either is NaN
+	 */
+	public static float[] getTRow (float[] A, float[] B) {
+		float[] T = A.clone();
+		addRow(T, B);
+		return T;
+	}
+
+	/**
+	 * Adds {@code B} into {@code T}, leaving 0 wherever either is NaN.
+	 */
+	private static void addRow (float[] T, float[] B) {
+		for (int j = 0; j < T.length; j++) {
+			if (!Float.isNaN(T[j]) && !Float.isNaN(B[j])) {
+				T[j] = T[j] + B[j];
+			} else {
+				T[j] = 0;
+			}
+		}
+	}
 	
-}
\ No newline at end of file
+}
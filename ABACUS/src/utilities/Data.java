@@ -1,10 +1,7 @@
 package utilities;
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
 
 
 
@@ -18,155 +15,112 @@ import java.util.List;
  *
  */
 public class Data {
-	private final boolean[][] haplotype;
-	private final List<Integer> snpMap;
-	private final List<Double> recombinationMap;
-	private final List<String> rsid;
-	private final int numberOfSnps;
-	private final int numberOfHaplotypes;
+	private final HaplotypeMatrix haplotype;
+	private final GeneticMap geneticMap;
 
-	public Data (boolean[][] haplotype, List<Integer> snpMap, List<Double> recombinationMap,
-			List<String> rsid, int numberOfSnps, int numberOfHaplotypes) {
+	public Data (HaplotypeMatrix haplotype, GeneticMap geneticMap) {
+		if (haplotype.numberOfSnps() != geneticMap.numberOfSnps()) {
+			throw new IllegalArgumentException("Haplotypes cover " + haplotype.numberOfSnps() +
+					" SNPs but the genetic map covers " + geneticMap.numberOfSnps() + ".");
+		}
 		this.haplotype = haplotype;
-		this.snpMap = snpMap;
-		this.recombinationMap = recombinationMap;
-		this.rsid = rsid;
-		this.numberOfSnps = numberOfSnps;
-		this.numberOfHaplotypes = numberOfHaplotypes;
+		this.geneticMap = geneticMap;
 	}
 
-	public boolean[][] getHaplotype () {
+	public HaplotypeMatrix getHaplotype () {
 		return haplotype;
 	}
 
-	public List<Integer> getSnps () {
-		return snpMap;
-	}
-
-	public List<Double> getMap () {
-		return recombinationMap;
-	}
-
-	public List<String> getRsid () {
-		return rsid;
+	public GeneticMap getGeneticMap () {
+		return geneticMap;
 	}
 
 	public int numberOfSnps () {
-		return numberOfSnps;
+		return haplotype.numberOfSnps();
 	}
 
 	public int numberOfHaplotypes () {
-		return numberOfHaplotypes;
+		return haplotype.numberOfHaplotypes();
 	}
 
+	/**
+	 * Loads the panel and genetic map.  A binary panel ({@link PanelFile})
+	 * is memory mapped rather than parsed, either when given directly as
+	 * {@code haplotypePath} or when an up to date one sits beside the .hap file.
+	 * @param haplotypePath {@code String} .hap or .panel file
+	 * @param recombinationPath {@code String} ignored for .panel input
+	 * @return {@link Data} or {@code null} if the input cannot be read
+	 */
 	public static Data read(String haplotypePath, String recombinationPath) {
-		Size size = determineSize(haplotypePath);
-		List<Double> recombinationMap = new ArrayList<>(size.getNumberOfSnps());
-		List<Integer> snpMap = new ArrayList<>(size.getNumberOfSnps());
-		List<String> rsid = new ArrayList<>(size.getNumberOfSnps());
-		boolean[][] haplotype = new boolean[size.getNumberOfSnps()][size.getNumberOfHaplotypes()];
-		String rawRow = "";
-		try {
-			BufferedReader recombinationReader = new BufferedReader(new FileReader(recombinationPath));
-			for (int snp = 0; snp < size.getNumberOfSnps(); snp++) {
-				rawRow = recombinationReader.readLine();
-				if (rawRow == null) {
-					throw new IOException("Miss-match between number of SNPs in haplotype file and genetic map.");
+		return read(haplotypePath, recombinationPath, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * As {@link #read(String, String)}, parsing text input on
+	 * {@code parallelism} threads.
+	 * @param parallelism {@code int} threads parsing the .hap file
+	 * @return {@link Data}
+	 */
+	public static Data read(String haplotypePath, String recombinationPath, int parallelism) {
+		File panel = haplotypePath.endsWith(PanelFile.EXTENSION) ?
+				new File(haplotypePath) : PanelFile.findCurrent(haplotypePath, recombinationPath);
+		if (panel != null) {
+			try {
+				System.out.println("Opening binary panel " + panel.getPath());
+				return PanelFile.open(panel.getPath());
+			} catch (IOException e) {
+				System.out.println("Cannot open binary panel " + panel.getPath() + ": " + e.getMessage());
+				if (haplotypePath.endsWith(PanelFile.EXTENSION)) {
+					return null;
 				}
-				recombinationMap.add(snp, Double.parseDouble(rawRow));
+				System.out.println("Falling back to text input.");
 			}
-			recombinationReader.close();
-		} catch (IOException e) {
-			System.out.println("Cannot locate recombination map file. Check input flags -map:./path/to/recombination/file.map");
 		}
-		try {
-			BufferedReader haplotypeReader = new BufferedReader(new FileReader(haplotypePath));
-			for (int snp = 0; snp < size.getNumberOfSnps(); snp++) {
-				Row row = processRawRowInput(haplotypeReader.readLine());
-				haplotype[snp] = row.getHaplotypes();
-				snpMap.add(snp, row.getSnpPosition());
-				rsid.add(snp, row.getRsid());
-			}
-			haplotypeReader.close();
-		} catch (IOException e) {
-			System.out.println("Cannot locate haplotype file. Check input flags -hap:./path/to/haplotype/file.hap");
-		}
-
-		return new Data(haplotype, snpMap, recombinationMap, rsid, size.getNumberOfSnps(), size.getNumberOfHaplotypes());
+		return readText(haplotypePath, recombinationPath, parallelism);
 	}
 
-	private static Size determineSize(String haplotypePath) {
-		int numberOfHaplotypes = 0;
-		int numberOfSnps = 0;
-		try {
-			BufferedReader haplotypeReader = new BufferedReader(new FileReader(haplotypePath));
-			String s = haplotypeReader.readLine();
-			Row row = processRawRowInput(s);
-			numberOfHaplotypes = row.getHaplotypes().length; 
-			numberOfSnps = 1;
-			while ((s = haplotypeReader.readLine()) != null) {
-				numberOfSnps++;
+	/**
+	 * Opens the panel as a stream of SNP windows with read-ahead, so only
+	 * a few windows of alleles are ever held on the heap.  A binary panel
+	 * is used in preference to the text input as in {@link #read}, falling
+	 * back to the text if a cached one cannot be opened.
+	 * @param haplotypePath {@code String} .hap or .panel file
+	 * @param recombinationPath {@code String}
+	 * @param windowSize {@code int} SNPs per window
+	 * @return {@link SnpSource} reading windows of {@code windowSize}
+	 * @throws IOException
+	 */
+	public static SnpSource stream(String haplotypePath, String recombinationPath, int windowSize) throws IOException {
+		File panel = haplotypePath.endsWith(PanelFile.EXTENSION) ?
+				new File(haplotypePath) : PanelFile.findCurrent(haplotypePath, recombinationPath);
+		SnpSource source = null;
+		if (panel != null) {
+			try {
+				System.out.println("Opening binary panel " + panel.getPath());
+				source = new MatrixSnpSource(PanelFile.open(panel.getPath()));
+			} catch (IOException e) {
+				if (haplotypePath.endsWith(PanelFile.EXTENSION)) {
+					throw e;
+				}
+				System.out.println("Cannot open binary panel " + panel.getPath() + ": " + e.getMessage());
+				System.out.println("Falling back to text input.");
 			}
-			haplotypeReader.close();
-		} catch (IOException e) {
-			System.out.println("Cannot locate haplotype file. Check input flags -hap:./path/to/haplotype/file.hap");
 		}
-		return new Size(numberOfHaplotypes, numberOfSnps);
-	}
-	
-	private static Row processRawRowInput(String rawRow) {
-		String[] row = rawRow.split(" ");
-		int numberOfHaplotypes = row.length - 5;
-		int snpPosition = Integer.parseInt(row[2]);
-		String rsid = row[0];
-		boolean[] haplotypes = new boolean[numberOfHaplotypes];
-		Arrays.fill(haplotypes, false);
-		for (int hap = 0; hap < numberOfHaplotypes; hap++) {
-			if (row[hap + 5].equals("1")) {
-				haplotypes[hap] = true;
-			}
+		if (source == null) {
+			source = new TextSnpSource(haplotypePath, recombinationPath);
 		}
-		return new Row(snpPosition, rsid, haplotypes);
+		return new ReadAheadSnpSource(source, windowSize, 2);
 	}
 
-	
-	private static class Row {
-			private final int snpPosition;
-			private final String rsid;
-			private final boolean[] haplotypes;
-			
-			public Row(int snpPosition, String rsid, boolean[] haplotypes) {
-				this.snpPosition = snpPosition;
-				this.rsid = rsid;
-				this.haplotypes = haplotypes;
-			}
-			
-			public int getSnpPosition() {
-				return snpPosition;
-			}
-			public String getRsid() {
-				return rsid;
-			}
-			public boolean[] getHaplotypes() {
-				return haplotypes;
-			}
-	}
-	
-	private static class Size {
-		private final int numberOfHaplotypes;
-		private final int numberOfSnps;
-		
-		public Size(int numberOfHaplotypes, int numberOfSnps) {
-			this.numberOfHaplotypes = numberOfHaplotypes;
-			this.numberOfSnps = numberOfSnps;
-		}
-		
-		public int getNumberOfHaplotypes() {
-			return numberOfHaplotypes;
-		}
-		
-		public int getNumberOfSnps() {
-			return numberOfSnps;
+	static Data readText(String haplotypePath, String recombinationPath, int parallelism) {
+		try {
+			return new HaplotypeFileParser(haplotypePath, recombinationPath, parallelism).parse();
+		} catch (FileNotFoundException e) {
+			System.out.println("Cannot locate input file " + e.getMessage() +
+					". Check input flags for the haplotype and recombination map files.");
+		} catch (IOException e) {
+			System.out.println("Cannot read haplotype or recombination map file: " + e.getMessage());
 		}
+		return null;
 	}
 }
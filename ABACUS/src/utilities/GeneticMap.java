@@ -0,0 +1,76 @@
+package utilities;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per SNP positions, cumulative genetic map (cM) and rsIDs held as
+ * primitive columns.  Repeated rsIDs (e.g. ".") share one instance.
+ * The painting transition tables derived from the map are built lazily
+ * and shared by every thread painting with the same parameters.
+ *
+ */
+public class GeneticMap {
+	private final int[] positions;
+	private final double[] centiMorgans;
+	private final String[] rsid;
+	private final Map<TransitionTable.Key, TransitionTable> transitions = new HashMap<>();
+
+	public GeneticMap (int[] positions, double[] centiMorgans, String[] rsid) {
+		if (positions.length != centiMorgans.length || positions.length != rsid.length) {
+			throw new IllegalArgumentException("Positions, genetic map and rsIDs differ in length.");
+		}
+		this.positions = positions;
+		this.centiMorgans = centiMorgans;
+		this.rsid = intern(rsid);
+	}
+
+	public int numberOfSnps () {
+		return positions.length;
+	}
+
+	public int position (int snp) {
+		return positions[snp];
+	}
+
+	public double centiMorgans (int snp) {
+		return centiMorgans[snp];
+	}
+
+	public String rsid (int snp) {
+		return rsid[snp];
+	}
+
+	/**
+	 * Returns the shared table of log transition, stay and emmission
+	 * values for painting against {@code sizeOfStateSpace} donors,
+	 * building it on first use.
+	 * @param sizeOfStateSpace {@code int}
+	 * @param effectivePopulation {@code double}
+	 * @param mutationParameter {@code double}
+	 * @return {@link TransitionTable}
+	 */
+	public synchronized TransitionTable transitions (int sizeOfStateSpace, double effectivePopulation,
+			double mutationParameter) {
+		TransitionTable.Key key = new TransitionTable.Key(sizeOfStateSpace, effectivePopulation, mutationParameter);
+		TransitionTable table = transitions.get(key);
+		if (table == null) {
+			table = TransitionTable.create(centiMorgans, sizeOfStateSpace, effectivePopulation, mutationParameter);
+			transitions.put(key, table);
+		}
+		return table;
+	}
+
+	private static String[] intern (String[] rsid) {
+		Map<String, String> seen = new HashMap<>();
+		for (int snp = 0; snp < rsid.length; snp++) {
+			String shared = seen.get(rsid[snp]);
+			if (shared == null) {
+				seen.put(rsid[snp], rsid[snp]);
+			} else {
+				rsid[snp] = shared;
+			}
+		}
+		return rsid;
+	}
+}
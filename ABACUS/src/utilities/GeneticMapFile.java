@@ -0,0 +1,140 @@
+package utilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Binary per SNP genetic map (cumulative cM), written by
+ * {@link GetRecombinationMap} beside the text .map so that {@link Data}
+ * reads it without parsing a {@code double} per line.
+ * <p>
+ * Layout (little endian):
+ * <pre>
+ *  0  magic "ABACUSGM", written last so an unfinished map never opens
+ *  8  int version
+ * 12  int number of SNPs (L)
+ * 64  double[L] cM
+ * </pre>
+ *
+ */
+public class GeneticMapFile {
+	public static final String EXTENSION = ".bin";
+	public static final int VERSION = 1;
+
+	private static final byte[] MAGIC = "ABACUSGM".getBytes(Charset.forName("US-ASCII"));
+	private static final int HEADER_BYTES = 64;
+
+	private GeneticMapFile () {
+	}
+
+	/**
+	 * @param textPath {@code String} path of a text .map
+	 * @return {@code String} path of its binary counterpart
+	 */
+	public static String pathFor (String textPath) {
+		return textPath + EXTENSION;
+	}
+
+	/**
+	 * Writes {@code centiMorgans} to {@code path}, marking it complete
+	 * only once every value is on disk.
+	 * @throws IOException
+	 */
+	public static void write (String path, double[] centiMorgans) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(path, "rw");
+		try {
+			file.setLength(0);
+			file.setLength(HEADER_BYTES + 8L * centiMorgans.length);
+			FileChannel channel = file.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 8).order(ByteOrder.LITTLE_ENDIAN);
+			header.position(MAGIC.length);
+			header.putInt(VERSION);
+			header.putInt(centiMorgans.length);
+			header.flip();
+			channel.write(header, 0);
+			MappedByteBuffer values = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES,
+					8L * centiMorgans.length);
+			values.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().put(centiMorgans);
+			values.force();
+			channel.write(ByteBuffer.wrap(MAGIC), 0);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Reads a complete map.
+	 * @return {@code double[]} cM of every SNP
+	 * @throws IOException if it is not a complete map of this version
+	 */
+	public static double[] read (String path) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 8).order(ByteOrder.LITTLE_ENDIAN);
+			channel.read(header, 0);
+			header.flip();
+			byte[] magic = new byte[MAGIC.length];
+			header.get(magic);
+			if (!Arrays.equals(magic, MAGIC)) {
+				throw new IOException(path + " is not a complete ABACUS genetic map.");
+			}
+			int version = header.getInt();
+			if (version != VERSION) {
+				throw new IOException(path + " is genetic map version " + version + ", expected " + VERSION + ".");
+			}
+			double[] centiMorgans = new double[header.getInt()];
+			channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES, 8L * centiMorgans.length)
+					.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().get(centiMorgans);
+			return centiMorgans;
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Reads {@code path} if it is itself a binary map, or else the
+	 * complete binary map beside it, if that is at least as new as the text.
+	 * @return {@code double[]} or {@code null} to read the text
+	 */
+	public static double[] find (String path) {
+		boolean direct = isMap(path);
+		String binary = direct ? path : pathFor(path);
+		if (!direct && (!isMap(binary) || new File(binary).lastModified() < new File(path).lastModified())) {
+			return null;
+		}
+		try {
+			return read(binary);
+		} catch (IOException e) {
+			System.out.println(e.getMessage() + " Reading the text instead.");
+			return null;
+		}
+	}
+
+	/**
+	 * @return {@code boolean} whether {@code path} starts like a complete map
+	 */
+	public static boolean isMap (String path) {
+		if (!new File(path).isFile()) {
+			return false;
+		}
+		try {
+			RandomAccessFile file = new RandomAccessFile(path, "r");
+			try {
+				byte[] magic = new byte[MAGIC.length];
+				return file.read(magic) == magic.length && Arrays.equals(magic, MAGIC);
+			} finally {
+				file.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+}
@@ -3,82 +3,131 @@ package utilities;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Functional Class to Process Recombination Map for each chromosome.
- * Holds the processed recombination map and snp map. 
+ * Holds the processed recombination map and snp map.
+ * <p>
+ * The HapMap format map ({@code position rate(cM/Mb) cumulative(cM)}
+ * after a header line) is streamed into primitive columns and merged
+ * against the SNP positions of the .snp file in one linear pass when
+ * they are sorted, or binary searched when they are not.  The result is
+ * written both as the text .map and as a binary {@link GeneticMapFile}
+ * beside it, which {@link Data} reads in preference.
+ * @param -hap:path .hap file, whose prefix names the .snp input and .map output
+ * @param -map:path HapMap format recombination map
+ * @param -list:path file of "hap map" pairs, one chromosome per line, processed in parallel
+ * @param -threads:cores chromosomes processed at once
  * @author Chris Gamble, DPhil Candidate in
  *  Statistical Genetics, University Of Oxford,
  *  Copyright 2014.
  *
  */
 public class GetRecombinationMap {
-	private ArrayList<Double> processedMap;
-	private ArrayList<Integer> snpMap;
+	private final double[] processedMap;
+	private final int[] snpMap;
 
-	public GetRecombinationMap (ArrayList<Double> processedMap, ArrayList<Integer> snpMap) {
+	public GetRecombinationMap (double[] processedMap, int[] snpMap) {
 		this.processedMap = processedMap;
 		this.snpMap = snpMap;
 	}
 
-	public ArrayList<Double> getRecombinationMap() {
+	public double[] getRecombinationMap() {
 		return processedMap;
 	}
 
-	public ArrayList<Integer> getSnpMap () {
+	public int[] getSnpMap () {
 		return snpMap;
 	}
 
-	private static class MappedRecombination {
-		private int snp;
-		private double interSnpRecombination;
-		private double cumulativeRecombination;
+	/**
+	 * HapMap format recombination map held as primitive columns.
+	 */
+	public static class MappedRecombination {
+		private final int[] snp;
+		private final double[] interSnpRecombination;
+		private final double[] cumulativeRecombination;
 
-		public MappedRecombination (int snp, double interSnpRecombination, double cumulativeRecombination) {
+		public MappedRecombination (int[] snp, double[] interSnpRecombination, double[] cumulativeRecombination) {
 			this.snp = snp;
 			this.interSnpRecombination = interSnpRecombination;
 			this.cumulativeRecombination = cumulativeRecombination;
 		}
 
-		public int getSnp () {
-			return snp;
+		public int size () {
+			return snp.length;
 		}
 
-		public double getInterSnpRecombination () {
-			return interSnpRecombination;
+		public int getSnp (int i) {
+			return snp[i];
 		}
 
-		public double getCumulativeRecombination () {
-			return cumulativeRecombination;
+		public double getInterSnpRecombination (int i) {
+			return interSnpRecombination[i];
 		}
-	}
 
-	public static class Interpolate {
-		private int lastInt;
-		private double value;
-
-		public Interpolate(int lastInt, double value) {
-			this.lastInt = lastInt;
-			this.value = value;
+		public double getCumulativeRecombination (int i) {
+			return cumulativeRecombination[i];
 		}
 
-		public int getLastInt () {
-			return lastInt;
-		}
-
-		public double getValue () {
-			return value;
+		/**
+		 * Streams a map, skipping its header line.  The final row is
+		 * dropped, as it always has been, so that maps processed before
+		 * are reproduced exactly.
+		 * @throws IOException if the map is empty or not in position order
+		 */
+		public static MappedRecombination read (String path) throws IOException {
+			int[] snp = new int[1 << 16];
+			double[] rate = new double[snp.length];
+			double[] cumulative = new double[snp.length];
+			int size = 0;
+			BufferedReader textReader = new BufferedReader(new FileReader(path), 1 << 16);
+			try {
+				String strLine = textReader.readLine();
+				while ((strLine = textReader.readLine()) != null) {
+					if (size == snp.length) {
+						snp = Arrays.copyOf(snp, 2 * size);
+						rate = Arrays.copyOf(rate, 2 * size);
+						cumulative = Arrays.copyOf(cumulative, 2 * size);
+					}
+					String[] local = strLine.trim().split("\\s+");
+					snp[size] = Integer.parseInt(local[0]);
+					rate[size] = Double.parseDouble(local[1]);
+					cumulative[size] = Double.parseDouble(local[2]);
+					if (size > 0 && snp[size] < snp[size - 1]) {
+						throw new IOException(path + " is not in position order at " + snp[size] + ".");
+					}
+					size++;
+				}
+			} finally {
+				textReader.close();
+			}
+			size--;
+			if (size <= 0) {
+				throw new IOException(path + " holds no mapped SNPs.");
+			}
+			return new MappedRecombination(Arrays.copyOf(snp, size), Arrays.copyOf(rate, size),
+					Arrays.copyOf(cumulative, size));
 		}
 	}
 
 	public static void main (String args[]) {
 		String hap = "/Users/chrisgamble/Downloads/chr19.sub.dom.haps";
 		String map = "/Users/chrisgamble/Downloads/dom_chr19_cleaned_cM.hapmapFormat.txt";
+		String list = "";
+		int threads = Runtime.getRuntime().availableProcessors();
 		for (String s : args) {
 			if (s.contains("-hap")) {
 				hap = s.split(":")[1];
@@ -86,187 +135,205 @@ public class GetRecombinationMap {
 			if (s.contains("-map")) {
 				map = s.split(":")[1];
 			}
+			if (s.contains("-list")) {
+				list = s.split(":")[1];
+			}
+			if (s.contains("-threads")) {
+				threads = Integer.parseInt(s.split(":")[1]);
+			}
 		}
 		try {
-			String prefix = hap.split(".hap")[0];
-			ArrayList<Integer> snps = readSnpMap(prefix + ".snp");
-			ArrayList<String> recombinationMap = read(map);
-			GetRecombinationMap processedRecombination = fixRecombinationMap(create(recombinationMap, snps));
-			ArrayList<Double> processedMap = processedRecombination.getRecombinationMap();
-			BufferedWriter recombPath = new BufferedWriter(new FileWriter(prefix + ".map"));
-			for (int i = 0; i < processedMap.size(); i++) {
-				recombPath.write(Double.toString(processedMap.get(i)));
-				recombPath.newLine();
+			if (list.isEmpty()) {
+				process(hap, map);
+			} else {
+				processAll(readList(list), threads);
 			}
-			recombPath.close();
 		} catch (IOException e) {
 			e.printStackTrace();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
 		}
 	}
 
-	public static ArrayList<MappedRecombination> make (ArrayList<Integer> snps, Map<Integer, Double> map) {
-		ArrayList<MappedRecombination> out = new ArrayList<MappedRecombination>();
-		ArrayList<Integer> mappedSnps = new ArrayList<Integer>(map.keySet());
-		int counter = 0;
-		for (int snp : snps) {
-			System.out.println(snp);
-			int s = 0;
-			while (mappedSnps.get(s) < snp && s < mappedSnps.size() - 1) {
-				s++;
+	/**
+	 * Interpolates the map of one chromosome at the SNPs of
+	 * {@code prefix.snp} and writes {@code prefix.map} and its binary
+	 * {@link GeneticMapFile}.
+	 * @param hap {@code String} .hap file
+	 * @param map {@code String} HapMap format recombination map
+	 * @return {@link GetRecombinationMap}
+	 * @throws IOException
+	 */
+	public static GetRecombinationMap process (String hap, String map) throws IOException {
+		String prefix = hap.split(".hap")[0];
+		GetRecombinationMap processedRecombination = fixRecombinationMap(
+				create(MappedRecombination.read(map), readSnpMap(prefix + ".snp")));
+		double[] processedMap = processedRecombination.getRecombinationMap();
+		BufferedWriter recombPath = new BufferedWriter(new FileWriter(prefix + ".map"), 1 << 16);
+		try {
+			for (double value : processedMap) {
+				recombPath.write(Double.toString(value));
+				recombPath.newLine();
 			}
-			out.add(counter, new MappedRecombination(snp, map.get(mappedSnps.get(s)), snp * map.get(mappedSnps.get(s)) / 1E6));
-			counter++;
+		} finally {
+			recombPath.close();
 		}
-		return out;
+		GeneticMapFile.write(GeneticMapFile.pathFor(prefix + ".map"), processedMap);
+		System.out.println(prefix + ": " + processedMap.length + " snps mapped.");
+		return processedRecombination;
 	}
 
 	/**
-	 * Fucntion creates the recombination map, and checks there
-	 *  are no leading zeros.  If there are it interpolates these
-	 *   values according to the first recombination distance and
-	 *    the relative distance of each SNP to the position of the
-	 *     first recombination distance. 
-	 * @param recombinationMap {@code ArrayList<String>}
-	 * @param haplotypeLegend {@code ArrayList<String>}
-	 * @return {@link GetRecombinationMap}
+	 * Processes every chromosome of a study, {@code threads} at a time.
+	 * @param chromosomes {@code List<String[]>} of {hap, map} pairs
+	 * @throws IOException
+	 * @throws InterruptedException
 	 */
-	public static GetRecombinationMap create (ArrayList<String> recombinationMap,
-			ArrayList<Integer> haplotypeLegend) {
+	public static void processAll (List<String[]> chromosomes, int threads) throws IOException, InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+		try {
+			List<Future<GetRecombinationMap>> processed = new ArrayList<Future<GetRecombinationMap>>();
+			for (final String[] chromosome : chromosomes) {
+				processed.add(executor.submit(new Callable<GetRecombinationMap>() {
+					@Override
+					public GetRecombinationMap call () throws IOException {
+						return process(chromosome[0], chromosome[1]);
+					}
+				}));
+			}
+			for (Future<GetRecombinationMap> chromosome : processed) {
+				chromosome.get();
+			}
+		} catch (ExecutionException e) {
+			throw new IOException("Processing recombination maps failed.", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
 
-		//		int numberOfSnps = haplotypeLegend.size() - 1;
-		int numberOfSnps = haplotypeLegend.size();
-		int numberOfMappedSnps = recombinationMap.size();
-		ArrayList<Integer> legend = new ArrayList<Integer>();
-		ArrayList<MappedRecombination> mappedRecombination = new ArrayList<MappedRecombination>();
-		ArrayList<Double> processedMap = new ArrayList<Double>();
-		for (int i = 1; i < numberOfMappedSnps - 1; i++) {
-			String[] mappedSnpIndexValue = recombinationMap.get(i).split(" ");
-			mappedRecombination.add(i - 1, new MappedRecombination(Integer.parseInt(mappedSnpIndexValue[0]),
-					Double.parseDouble(mappedSnpIndexValue[1]), Double.parseDouble(mappedSnpIndexValue[2])));
+	/**
+	 * Interpolates the recombination map at every SNP, merging the two
+	 * in one pass when the SNPs are in position order.
+	 * @param mappedRecombination {@link MappedRecombination}
+	 * @param haplotypeLegend {@code int[]} SNP positions
+	 * @return {@link GetRecombinationMap}
+	 */
+	public static GetRecombinationMap create (MappedRecombination mappedRecombination, int[] haplotypeLegend) {
+		double[] processedMap = new double[haplotypeLegend.length];
+		boolean sorted = true;
+		for (int i = 1; i < haplotypeLegend.length && sorted; i++) {
+			sorted = haplotypeLegend[i - 1] <= haplotypeLegend[i];
 		}
-		int lastInt = 0;
-		for (int i = 0; i < numberOfSnps; i++) {
-			int haplotypeKey = haplotypeLegend.get(i);
-			Interpolate values = getRecombinationValuesFixed(mappedRecombination, haplotypeKey, lastInt);
-			lastInt = values.getLastInt();
-			processedMap.add(values.getValue());
-			legend.add(haplotypeKey);
+		int last = mappedRecombination.size() - 1;
+		int interval = 0;
+		for (int i = 0; i < haplotypeLegend.length; i++) {
+			int snp = haplotypeLegend[i];
+			if (snp <= mappedRecombination.getSnp(0)) {
+				processedMap[i] = 0;
+			} else if (snp >= mappedRecombination.getSnp(last)) {
+				processedMap[i] = interpolate(mappedRecombination, last, last, snp);
+			} else {
+				if (sorted) {
+					while (mappedRecombination.getSnp(interval + 1) <= snp) {
+						interval++;
+					}
+				} else {
+					interval = findInterval(mappedRecombination, snp);
+				}
+				processedMap[i] = interpolate(mappedRecombination, interval, interval + 1, snp);
+			}
 		}
-		System.out.println("Number of snps in legend : " + legend.size());
-		System.out.println("Number of snps in map : " + processedMap.size());
-		return new GetRecombinationMap(processedMap, legend);
-
+		return new GetRecombinationMap(processedMap, haplotypeLegend);
 	}
 
 	/**
-	 * Generic holding class to help speed up interpolation.
-	 * @author Chris Gamble, DPhil Candidate in
-	 *  Statistical Genetics, University Of Oxford,
-	 *  Copyright 2012.
-	 *
+	 * @return {@code double} cM at {@code snp}, from the cumulative value at
+	 *  mapped SNP {@code from} and the rate of mapped SNP {@code rate}
 	 */
+	private static double interpolate (MappedRecombination mappedRecombination, int from, int rate, int snp) {
+		return (snp - mappedRecombination.getSnp(from)) / 1000000.0 *
+				mappedRecombination.getInterSnpRecombination(rate) + mappedRecombination.getCumulativeRecombination(from);
+	}
 
+	/**
+	 * @return {@code int} the last mapped SNP at or before {@code snp}, which
+	 *  lies strictly between the first and last mapped SNPs
+	 */
+	private static int findInterval (MappedRecombination mappedRecombination, int snp) {
+		int low = 0;
+		int high = mappedRecombination.size() - 1;
+		while (high - low > 1) {
+			int middle = (low + high) >>> 1;
+			if (mappedRecombination.getSnp(middle) <= snp) {
+				low = middle;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
 
 	/**
-	 * Method to interpolate leading zeros.
-	 * @param originalValues {@code ProbabilityData}
-	 * @return return {@code ProbabilityData}
+	 * Method to interpolate leading zeros, according to the first
+	 * recombination distance and the relative distance of each SNP to
+	 * the position of the first recombination distance.
+	 * @param originalValues {@link GetRecombinationMap}
+	 * @return {@link GetRecombinationMap}
 	 */
 	public static GetRecombinationMap fixRecombinationMap (GetRecombinationMap originalValues) {
+		double[] map = originalValues.getRecombinationMap();
+		int[] snps = originalValues.getSnpMap();
 		int i;
-		for (i = 0; i < originalValues.getRecombinationMap().size(); i++) {
-			if (originalValues.getRecombinationMap().get(i) > 0.0) {
+		for (i = 0; i < map.length; i++) {
+			if (map[i] > 0.0) {
 				break;
 			}
 		}
-		if (i > 0) {
-			int firstNonZeroSnp = originalValues.getSnpMap().get(i);
-			double firstNonZeroValue = originalValues.getRecombinationMap().get(i);
+		if (i > 0 && i < map.length) {
+			int firstNonZeroSnp = snps[i];
+			double firstNonZeroValue = map[i];
 			for (int j = 0; j < i; j++) {
-				double interpolatedValue = originalValues.getSnpMap().get(j) / (double) firstNonZeroSnp * firstNonZeroValue;
-				originalValues.getRecombinationMap().set(j, interpolatedValue);
+				map[j] = snps[j] / (double) firstNonZeroSnp * firstNonZeroValue;
 			}
 		}
 		return originalValues;
 	}
 
-	/**
-	 * Method to interpolate between mapped SNPs
-	 * @param mappedSnps {@code ArrayList<Integer>}
-	 * @param mappedRecombination {@code ArrayList<Double>}
-	 * @param currentSnpOfInterest {@code int}
-	 * @param lastIndex {@code int}
-	 * @return {@link Interpolate}
-	 */
-	public static Interpolate getRecombinationValuesFixed (ArrayList<MappedRecombination> mappedRecombination,
-			int currentSnpOfInterest, int lastIndex) {
-		double value = 0.0;
-		int lastInt = 0;
-		if (currentSnpOfInterest <= mappedRecombination.get(0).getSnp()) {
-			lastInt = 0;
-			value = 0;
-			return new Interpolate(lastInt, value);
-		} else {
-			if (currentSnpOfInterest >= mappedRecombination.get(mappedRecombination.size() - 1).getSnp()) {
-				lastInt = mappedRecombination.size() - 1;
-				value = (currentSnpOfInterest - mappedRecombination.get(lastInt).getSnp()) / 1000000.0 *
-						mappedRecombination.get(lastInt).getInterSnpRecombination() + mappedRecombination.get(lastInt).getCumulativeRecombination();
-				return new Interpolate(lastInt, value);
-			} else {
-				int start = lastIndex - 10;
-				if (start <= 0) {
-					start = 0;
-				}
-				for (int i = start; i < mappedRecombination.size() - 1; i++) { 
-					if (mappedRecombination.get(i).getSnp() <= currentSnpOfInterest &&
-							mappedRecombination.get(i + 1).getSnp() > currentSnpOfInterest){
-						lastInt = i;
-						int recStart = i - 1;
-						if (recStart <= 0) {
-							recStart = 0;
-						}
-						value = (currentSnpOfInterest - mappedRecombination.get(i).getSnp()) / 1000000.0 *
-								mappedRecombination.get(i + 1).getInterSnpRecombination() + mappedRecombination.get(i).getCumulativeRecombination();
-						return new Interpolate(lastInt, value);
-					}
+	public static int[] readSnpMap (String path) throws IOException {
+		BufferedReader recombPath = new BufferedReader(new FileReader(path), 1 << 16);
+		int[] map = new int[1 << 16];
+		int size = 0;
+		try {
+			String strLine;
+			while ((strLine = recombPath.readLine()) != null) {
+				if (size == map.length) {
+					map = Arrays.copyOf(map, 2 * size);
 				}
+				map[size++] = Integer.parseInt(strLine);
 			}
+		} finally {
+			recombPath.close();
 		}
-		return new Interpolate(lastInt, value);
-	}
-
-	public static ArrayList<Double> readProcessedMap (String path) throws IOException {
-		BufferedReader recombPath = new BufferedReader(new FileReader(path));
-		ArrayList<Double> map = new ArrayList<Double>();
-		String strLine;
-		while ((strLine = recombPath.readLine()) != null) {
-			map.add(Double.parseDouble(strLine));
-		}
-		recombPath.close();
-		return map;
-	}
-
-	public static ArrayList<Integer> readSnpMap (String path) throws IOException {
-		BufferedReader recombPath = new BufferedReader(new FileReader(path));
-		ArrayList<Integer> map = new ArrayList<Integer>();
-		String strLine;
-		while ((strLine = recombPath.readLine()) != null) {
-			map.add(Integer.parseInt(strLine));
-		}
-		recombPath.close();
-		return map;
+		return Arrays.copyOf(map, size);
 	}
 
-	public static ArrayList<String> read(String path) throws IOException {
-
-		BufferedReader textReader = new BufferedReader(new FileReader(path));
-
-		String strLine;
-		ArrayList<String> output = new ArrayList<String>();
-		while ((strLine = textReader.readLine()) != null) {
-			output.add(strLine);
+	private static List<String[]> readList (String path) throws IOException {
+		List<String[]> chromosomes = new ArrayList<String[]>();
+		BufferedReader textReader = new BufferedReader(new FileReader(new File(path)));
+		try {
+			String strLine;
+			while ((strLine = textReader.readLine()) != null) {
+				if (!strLine.trim().isEmpty()) {
+					String[] local = strLine.trim().split("\\s+");
+					if (local.length < 2) {
+						throw new IOException(path + " should list a .hap and a map per line: " + strLine);
+					}
+					chromosomes.add(new String[] {local[0], local[1]});
+				}
+			}
+		} finally {
+			textReader.close();
 		}
-		textReader.close();
-		return output;
+		return chromosomes;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,206 @@
+package utilities;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Byte level reader for the lines of a text .hap file
+ * ({@code rsid id position a0 a1 allele_0 ... allele_N-1}, space separated)
+ * falling within {@code [start, end)} of the file.  Alleles are set
+ * straight into packed columns; no {@code String} is created per allele.
+ * Tokens are separated by runs of spaces, both when the haplotypes are
+ * counted and when lines are parsed, and every allele must be 0 or 1.
+ *
+ */
+class HapLineReader {
+	static final int LEADING_COLUMNS = 5;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int BUFFER_BYTES = 1 << 22;
+
+	private final FileChannel channel;
+	private final long end;
+	private final int numberOfHaplotypes;
+	private byte[] buffer = new byte[BUFFER_BYTES];
+	private int lineStart = 0;
+	private int filled = 0;
+	private long position;
+	/** {@code [from, to)} of the line found by {@link #nextLine}, without its line ending */
+	private int from;
+	private int to;
+	private String rsid;
+	private int snpPosition;
+
+	HapLineReader (FileChannel channel, long start, long end, int numberOfHaplotypes) {
+		this.channel = channel;
+		this.position = start;
+		this.end = end;
+		this.numberOfHaplotypes = numberOfHaplotypes;
+	}
+
+	String rsid () {
+		return rsid;
+	}
+
+	int snpPosition () {
+		return snpPosition;
+	}
+
+	/**
+	 * Parses the next non-empty line, setting its alleles into the
+	 * (already cleared) column starting at {@code columns[offset]}.
+	 * @return {@code false} once the range is exhausted
+	 */
+	boolean next (long[] columns, int offset) throws IOException {
+		while (nextLine()) {
+			if (parseLine(columns, offset)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Finds the next line, reading more of the range as needed.
+	 * @return {@code false} once the range is exhausted
+	 */
+	private boolean nextLine () throws IOException {
+		while (true) {
+			int newline = -1;
+			for (int i = lineStart; i < filled; i++) {
+				if (buffer[i] == '\n') {
+					newline = i;
+					break;
+				}
+			}
+			if (newline >= 0 || position >= end) {
+				if (newline < 0 && lineStart == filled) {
+					return false;
+				}
+				from = lineStart;
+				to = newline >= 0 ? newline : filled;
+				lineStart = newline >= 0 ? newline + 1 : filled;
+				if (to > from && buffer[to - 1] == '\r') {
+					to--;
+				}
+				return true;
+			}
+			if (lineStart > 0) {
+				System.arraycopy(buffer, lineStart, buffer, 0, filled - lineStart);
+				filled -= lineStart;
+				lineStart = 0;
+			}
+			if (filled == buffer.length) {
+				byte[] grown = new byte[buffer.length * 2];
+				System.arraycopy(buffer, 0, grown, 0, filled);
+				buffer = grown;
+			}
+			int length = (int) Math.min(buffer.length - filled, end - position);
+			int read = channel.read(ByteBuffer.wrap(buffer, filled, length), position);
+			if (read < 0) {
+				position = end;
+			} else {
+				position += read;
+				filled += read;
+			}
+		}
+	}
+
+	/**
+	 * @return {@code false} if the line has no tokens
+	 * @throws IOException if it has the wrong number of alleles, or one
+	 *  that is not 0 or 1
+	 */
+	private boolean parseLine (long[] columns, int offset) throws IOException {
+		byte[] line = buffer;
+		int token = 0;
+		for (int i = skipSpaces(line, from, to); i < to; i = skipSpaces(line, i, to)) {
+			int tokenStart = i;
+			i = tokenEnd(line, i, to);
+			if (token == 0) {
+				rsid = new String(line, tokenStart, i - tokenStart, UTF8);
+			} else if (token == 2) {
+				snpPosition = parseInt(line, tokenStart, i);
+			} else if (token >= LEADING_COLUMNS) {
+				int haplotype = token - LEADING_COLUMNS;
+				if (haplotype >= numberOfHaplotypes) {
+					throw new IOException("SNP " + rsid + " has more than " + numberOfHaplotypes + " haplotypes.");
+				}
+				if (i - tokenStart != 1 || (line[tokenStart] != '0' && line[tokenStart] != '1')) {
+					throw new IOException("SNP " + rsid + " has allele " + new String(line, tokenStart,
+							i - tokenStart, UTF8) + " for haplotype " + haplotype + ", expected 0 or 1.");
+				}
+				if (line[tokenStart] == '1') {
+					columns[offset + (haplotype >>> 6)] |= 1L << haplotype;
+				}
+			}
+			token++;
+		}
+		if (token == 0) {
+			return false;
+		}
+		if (token - LEADING_COLUMNS < numberOfHaplotypes) {
+			throw new IOException("SNP " + rsid + " has " + Math.max(0, token - LEADING_COLUMNS) +
+					" haplotypes, expected " + numberOfHaplotypes + ".");
+		}
+		return true;
+	}
+
+	/**
+	 * @return {@code int} tokens on the line found by {@link #nextLine}
+	 */
+	private int countTokens () {
+		int tokens = 0;
+		for (int i = skipSpaces(buffer, from, to); i < to; i = skipSpaces(buffer, i, to)) {
+			i = tokenEnd(buffer, i, to);
+			tokens++;
+		}
+		return tokens;
+	}
+
+	private static int skipSpaces (byte[] line, int i, int to) {
+		while (i < to && line[i] == ' ') {
+			i++;
+		}
+		return i;
+	}
+
+	private static int tokenEnd (byte[] line, int i, int to) {
+		while (i < to && line[i] != ' ') {
+			i++;
+		}
+		return i;
+	}
+
+	private static int parseInt (byte[] line, int from, int to) throws IOException {
+		boolean negative = from < to && line[from] == '-';
+		int value = 0;
+		for (int i = negative ? from + 1 : from; i < to; i++) {
+			int digit = line[i] - '0';
+			if (digit < 0 || digit > 9) {
+				throw new IOException("Invalid SNP position " + new String(line, from, to - from, UTF8));
+			}
+			value = value * 10 + digit;
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Counts the alleles on the first non-empty line of the file, split
+	 * into tokens as {@link #next} splits every line.
+	 * @throws IOException if the file has no such line, or it has no alleles
+	 */
+	static int countHaplotypes (FileChannel channel) throws IOException {
+		HapLineReader reader = new HapLineReader(channel, 0, channel.size(), 0);
+		while (reader.nextLine()) {
+			int tokens = reader.countTokens();
+			if (tokens > LEADING_COLUMNS) {
+				return tokens - LEADING_COLUMNS;
+			} else if (tokens > 0) {
+				throw new IOException("The first SNP of the .hap file has no haplotypes.");
+			}
+		}
+		throw new IOException("The .hap file has no SNPs.");
+	}
+}
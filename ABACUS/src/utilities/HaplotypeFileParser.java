@@ -0,0 +1,222 @@
+package utilities;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Single pass, byte level parser for the text .hap format
+ * ({@code rsid id position a0 a1 allele_0 ... allele_N-1}, space separated).
+ * The file is cut into newline aligned chunks that are parsed in parallel
+ * on a fork-join pool straight into packed columns, while the genetic map
+ * is read concurrently.  No {@code String} is created per allele.
+ *
+ */
+public class HaplotypeFileParser {
+	private static final int BUFFER_BYTES = 1 << 22;
+	private static final long MINIMUM_CHUNK_BYTES = 1L << 20;
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	private final String haplotypePath;
+	private final String recombinationPath;
+	private final int parallelism;
+
+	public HaplotypeFileParser (String haplotypePath, String recombinationPath, int parallelism) {
+		this.haplotypePath = haplotypePath;
+		this.recombinationPath = recombinationPath;
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	public Data parse () throws IOException {
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		RandomAccessFile file = new RandomAccessFile(haplotypePath, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			Future<double[]> mapFuture = pool.submit(new MapReader(recombinationPath));
+			int numberOfHaplotypes = HapLineReader.countHaplotypes(channel);
+			List<Callable<Chunk>> chunks = new ArrayList<>();
+			long[] boundaries = chunkBoundaries(channel);
+			for (int i = 0; i < boundaries.length - 1; i++) {
+				chunks.add(new ChunkParser(channel, boundaries[i], boundaries[i + 1], numberOfHaplotypes));
+			}
+			List<Future<Chunk>> parsed = pool.invokeAll(chunks);
+
+			int numberOfSnps = 0;
+			for (Future<Chunk> chunk : parsed) {
+				numberOfSnps += get(chunk).size();
+			}
+			PackedHaplotypeMatrix haplotype = new PackedHaplotypeMatrix(numberOfSnps, numberOfHaplotypes);
+			int[] positions = new int[numberOfSnps];
+			String[] rsid = new String[numberOfSnps];
+			int snp = 0;
+			for (Future<Chunk> future : parsed) {
+				Chunk chunk = get(future);
+				for (int row = 0; row < chunk.size(); row++) {
+					haplotype.setColumn(snp, chunk.columns.get(row));
+					positions[snp] = chunk.positions[row];
+					rsid[snp] = chunk.rsid.get(row);
+					snp++;
+				}
+			}
+			double[] recombinationMap = get(mapFuture);
+			if (recombinationMap.length < numberOfSnps) {
+				throw new IOException("Miss-match between number of SNPs in haplotype file and genetic map.");
+			}
+			double[] centiMorgans = recombinationMap.length == numberOfSnps ?
+					recombinationMap : Arrays.copyOf(recombinationMap, numberOfSnps);
+			return new Data(haplotype, new GeneticMap(positions, centiMorgans, rsid));
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while reading " + haplotypePath, e);
+		} finally {
+			pool.shutdownNow();
+			file.close();
+		}
+	}
+
+	private static <T> T get (Future<T> future) throws IOException, InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Splits the file into roughly equal ranges, each starting on a new line.
+	 */
+	private long[] chunkBoundaries (FileChannel channel) throws IOException {
+		long size = channel.size();
+		int numberOfChunks = (int) Math.max(1, Math.min(parallelism * CHUNKS_PER_THREAD,
+				size / MINIMUM_CHUNK_BYTES));
+		List<Long> boundaries = new ArrayList<>();
+		boundaries.add(0L);
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+		for (int chunk = 1; chunk < numberOfChunks; chunk++) {
+			long position = Math.max(size * chunk / numberOfChunks, boundaries.get(boundaries.size() - 1));
+			long lineStart = -1;
+			while (lineStart < 0 && position < size) {
+				buffer.clear();
+				int read = channel.read(buffer, position);
+				for (int i = 0; i < read; i++) {
+					if (buffer.get(i) == '\n') {
+						lineStart = position + i + 1;
+						break;
+					}
+				}
+				position += read;
+			}
+			if (lineStart < 0 || lineStart >= size) {
+				break;
+			}
+			if (lineStart > boundaries.get(boundaries.size() - 1)) {
+				boundaries.add(lineStart);
+			}
+		}
+		boundaries.add(size);
+		long[] out = new long[boundaries.size()];
+		for (int i = 0; i < out.length; i++) {
+			out[i] = boundaries.get(i);
+		}
+		return out;
+	}
+
+	private static class Chunk {
+		private final List<long[]> columns = new ArrayList<>();
+		private final List<String> rsid = new ArrayList<>();
+		private int[] positions = new int[64];
+
+		private void add (String id, int position, long[] column) {
+			if (columns.size() == positions.length) {
+				int[] grown = new int[positions.length * 2];
+				System.arraycopy(positions, 0, grown, 0, positions.length);
+				positions = grown;
+			}
+			positions[columns.size()] = position;
+			rsid.add(id);
+			columns.add(column);
+		}
+
+		private int size () {
+			return columns.size();
+		}
+	}
+
+	/**
+	 * Parses every line in {@code [start, end)} of the haplotype file.
+	 */
+	private static class ChunkParser implements Callable<Chunk> {
+		private final FileChannel channel;
+		private final long start;
+		private final long end;
+		private final int numberOfHaplotypes;
+		private final int wordsPerSnp;
+
+		public ChunkParser (FileChannel channel, long start, long end, int numberOfHaplotypes) {
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+			this.numberOfHaplotypes = numberOfHaplotypes;
+			this.wordsPerSnp = PackedHaplotypeMatrix.wordsFor(numberOfHaplotypes);
+		}
+
+		@Override
+		public Chunk call () throws IOException {
+			Chunk chunk = new Chunk();
+			HapLineReader reader = new HapLineReader(channel, start, end, numberOfHaplotypes);
+			long[] column = new long[wordsPerSnp];
+			while (reader.next(column, 0)) {
+				chunk.add(reader.rsid(), reader.snpPosition(), column);
+				column = new long[wordsPerSnp];
+			}
+			return chunk;
+		}
+	}
+
+	/**
+	 * Reads the one value per line genetic map, or its binary
+	 * {@link GeneticMapFile} when there is a current one.
+	 */
+	private static class MapReader implements Callable<double[]> {
+		private final String path;
+
+		public MapReader (String path) {
+			this.path = path;
+		}
+
+		@Override
+		public double[] call () throws IOException {
+			double[] map = GeneticMapFile.find(path);
+			if (map != null) {
+				return map;
+			}
+			map = new double[1 << 16];
+			int size = 0;
+			BufferedReader reader = new BufferedReader(new FileReader(path), BUFFER_BYTES);
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (size == map.length) {
+						map = Arrays.copyOf(map, 2 * size);
+					}
+					map[size++] = Double.parseDouble(line);
+				}
+			} finally {
+				reader.close();
+			}
+			return Arrays.copyOf(map, size);
+		}
+	}
+}
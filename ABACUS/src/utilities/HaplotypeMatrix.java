@@ -0,0 +1,25 @@
+package utilities;
+
+/**
+ * Read access to a bit-packed panel of alleles.  Each SNP is stored as
+ * a column of {@code long} words with haplotype {@code k} held in bit
+ * {@code k % 64} of word {@code k / 64}; a set bit is the "1" allele.
+ * Bits beyond the last haplotype in the final word are always zero.
+ *
+ */
+public interface HaplotypeMatrix {
+
+	public int numberOfSnps();
+
+	public int numberOfHaplotypes();
+
+	public int wordsPerSnp();
+
+	public boolean get(int snp, int haplotype);
+
+	/**
+	 * Copies the packed column for {@code snp} into {@code destination},
+	 * which must hold at least {@link #wordsPerSnp()} words.
+	 */
+	public void copyColumn(int snp, long[] destination);
+}
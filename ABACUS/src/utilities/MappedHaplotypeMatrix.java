@@ -0,0 +1,86 @@
+package utilities;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link HaplotypeMatrix} read straight out of the packed allele section
+ * of a binary panel (see {@link PanelFile}).  The section is mapped in
+ * blocks of whole SNP columns so that no single mapping exceeds 1GB, and
+ * the pages are shared through the OS page cache by every process
+ * that maps the same panel.
+ *
+ */
+public class MappedHaplotypeMatrix implements HaplotypeMatrix {
+	private static final long MAX_BLOCK_BYTES = 1L << 30;
+
+	private final LongBuffer[] blocks;
+	private final int snpsPerBlock;
+	private final int numberOfSnps;
+	private final int numberOfHaplotypes;
+	private final int wordsPerSnp;
+
+	private MappedHaplotypeMatrix (LongBuffer[] blocks, int snpsPerBlock, int numberOfSnps,
+			int numberOfHaplotypes, int wordsPerSnp) {
+		this.blocks = blocks;
+		this.snpsPerBlock = snpsPerBlock;
+		this.numberOfSnps = numberOfSnps;
+		this.numberOfHaplotypes = numberOfHaplotypes;
+		this.wordsPerSnp = wordsPerSnp;
+	}
+
+	@Override
+	public int numberOfSnps () {
+		return numberOfSnps;
+	}
+
+	@Override
+	public int numberOfHaplotypes () {
+		return numberOfHaplotypes;
+	}
+
+	@Override
+	public int wordsPerSnp () {
+		return wordsPerSnp;
+	}
+
+	@Override
+	public boolean get (int snp, int haplotype) {
+		long word = blocks[snp / snpsPerBlock].get((snp % snpsPerBlock) * wordsPerSnp + (haplotype >>> 6));
+		return (word & (1L << haplotype)) != 0;
+	}
+
+	@Override
+	public void copyColumn (int snp, long[] destination) {
+		LongBuffer block = blocks[snp / snpsPerBlock];
+		int offset = (snp % snpsPerBlock) * wordsPerSnp;
+		for (int word = 0; word < wordsPerSnp; word++) {
+			destination[word] = block.get(offset + word);
+		}
+	}
+
+	/**
+	 * Maps {@code numberOfSnps} packed columns starting at {@code offset}.
+	 * The channel may be closed once this returns.
+	 * @param channel {@link FileChannel}
+	 * @param offset {@code long} start of the allele section
+	 * @return {@link MappedHaplotypeMatrix}
+	 * @throws IOException
+	 */
+	public static MappedHaplotypeMatrix map (FileChannel channel, long offset, int numberOfSnps,
+			int numberOfHaplotypes, int wordsPerSnp) throws IOException {
+		long bytesPerSnp = 8L * wordsPerSnp;
+		int snpsPerBlock = (int) Math.max(1, Math.min(numberOfSnps, MAX_BLOCK_BYTES / bytesPerSnp));
+		int numberOfBlocks = (numberOfSnps + snpsPerBlock - 1) / snpsPerBlock;
+		LongBuffer[] blocks = new LongBuffer[numberOfBlocks];
+		for (int block = 0; block < numberOfBlocks; block++) {
+			int snps = Math.min(snpsPerBlock, numberOfSnps - block * snpsPerBlock);
+			blocks[block] = channel.map(FileChannel.MapMode.READ_ONLY,
+					offset + block * snpsPerBlock * bytesPerSnp, snps * bytesPerSnp)
+					.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+		}
+		return new MappedHaplotypeMatrix(blocks, snpsPerBlock, numberOfSnps, numberOfHaplotypes, wordsPerSnp);
+	}
+}
@@ -0,0 +1,52 @@
+package utilities;
+
+/**
+ * {@link SnpSource} over an already opened {@link Data}, typically a
+ * memory mapped panel, copying one window of columns at a time.
+ *
+ */
+public class MatrixSnpSource implements SnpSource {
+	private final Data data;
+	private int nextSnp = 0;
+
+	public MatrixSnpSource (Data data) {
+		this.data = data;
+	}
+
+	@Override
+	public int numberOfHaplotypes () {
+		return data.numberOfHaplotypes();
+	}
+
+	@Override
+	public int wordsPerSnp () {
+		return data.getHaplotype().wordsPerSnp();
+	}
+
+	@Override
+	public int numberOfSnps () {
+		return data.numberOfSnps();
+	}
+
+	@Override
+	public boolean read (SnpWindow window) {
+		HaplotypeMatrix haplotype = data.getHaplotype();
+		long[] columns = window.columns();
+		int wordsPerSnp = haplotype.wordsPerSnp();
+		long[] column = new long[wordsPerSnp];
+		window.reset(nextSnp);
+		while (!window.isFull() && nextSnp < data.numberOfSnps()) {
+			int offset = window.prepare();
+			haplotype.copyColumn(nextSnp, column);
+			System.arraycopy(column, 0, columns, offset, wordsPerSnp);
+			GeneticMap map = data.getGeneticMap();
+			window.commit(map.position(nextSnp), map.rsid(nextSnp), map.centiMorgans(nextSnp));
+			nextSnp++;
+		}
+		return window.size() > 0;
+	}
+
+	@Override
+	public void close () {
+	}
+}
@@ -0,0 +1,335 @@
+package utilities;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Run time metrics of painting and ABACUS.  Once {@link #start}ed, the
+ * run is divided into named phases, each counting its progress towards a
+ * known total, and the workers add to a set of {@link Counter}s and to
+ * latency histograms of painting (per recipient) and testing (per SNP).
+ * Every interval, and when the run stops, one JSON object per line is
+ * appended to the metrics file: the phase, its throughput and ETA, the
+ * counters and their rates over the interval, the latency quantiles, and
+ * the heap and garbage collection so far.  The same phases, batches and
+ * runs are recorded as Java Flight Recorder events when
+ * {@code src-jfr} is compiled in (see {@link MetricsRecorder}).
+ * <p>
+ * Until {@link #start} every method returns after one volatile read, and
+ * callers check {@link #enabled} before reading the clock, so a run
+ * without metrics pays nothing else.
+ *
+ */
+public final class Metrics {
+
+	public enum Counter {
+		HAPLOTYPES_PAINTED("haplotypes_painted", 1),
+		SNPS_PAINTED("snps_painted", 1),
+		TRACE_BUFFER_BYTES("trace_buffer_bytes", 1),
+		SNPS_TESTED("snps_tested", 1),
+		NEWTON_ITERATIONS("newton_iterations", 1),
+		BYTES_READ("bytes_read", 1),
+		BYTES_WRITTEN("bytes_written", 1),
+		/** Summed over threads, so its rate is the number of threads writing. */
+		WRITE_NANOS("write_seconds", 1E-9);
+
+		private final String key;
+		private final double scale;
+
+		private Counter (String key, double scale) {
+			this.key = key;
+			this.scale = scale;
+		}
+	}
+
+	private static volatile Metrics active;
+
+	private final BufferedWriter writer;
+	private final MetricsRecorder recorder;
+	private final ScheduledExecutorService scheduler;
+	private final AtomicLongArray counters = new AtomicLongArray(Counter.values().length);
+	private final long[] lastCounters = new long[Counter.values().length];
+	private final Histogram paintLatency = new Histogram();
+	private final Histogram bayesFactorLatency = new Histogram();
+	private final Map<String, Double> phaseSeconds = new LinkedHashMap<String, Double>();
+	private final long start = System.nanoTime();
+	private long lastSnapshot = start;
+	private volatile String phase = "start";
+	private volatile long phaseStart = start;
+	private volatile Counter progress;
+	private volatile long progressFrom;
+	private volatile long total;
+
+	private Metrics (String path, int intervalSeconds) throws IOException {
+		this.writer = new BufferedWriter(new FileWriter(path));
+		this.recorder = MetricsRecorder.create();
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread (Runnable runnable) {
+				Thread thread = new Thread(runnable, "metrics");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run () {
+				snapshot(false);
+			}
+		}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Starts writing metrics to {@code path} every {@code intervalSeconds};
+	 * does nothing if they are already being written.
+	 * @param path {@code String} metrics file, overwritten
+	 * @throws IOException
+	 */
+	public static synchronized void start (String path, int intervalSeconds) throws IOException {
+		if (active == null) {
+			active = new Metrics(path, Math.max(1, intervalSeconds));
+			System.out.println("Writing metrics to " + path + " every " + Math.max(1, intervalSeconds) +
+					"s, with " + active.recorder.describe() + " flight recorder events");
+		}
+	}
+
+	/**
+	 * Ends the last phase, writes the final line and closes the file.
+	 */
+	public static synchronized void stop () {
+		Metrics metrics = active;
+		if (metrics != null) {
+			metrics.finish();
+			active = null;
+		}
+	}
+
+	public static boolean enabled () {
+		return active != null;
+	}
+
+	/**
+	 * Ends the current phase and starts {@code name}, whose progress is
+	 * measured by {@code progress} (from its value now) out of
+	 * {@code total}.
+	 * @param progress {@link Counter} or {@code null} if there is no total
+	 * @param total {@code long} or -1 if unknown
+	 */
+	public static void phase (String name, Counter progress, long total) {
+		Metrics metrics = active;
+		if (metrics != null) {
+			metrics.beginPhase(name, progress, total);
+		}
+	}
+
+	public static void add (Counter counter, long value) {
+		Metrics metrics = active;
+		if (metrics != null) {
+			metrics.counters.addAndGet(counter.ordinal(), value);
+		}
+	}
+
+	/**
+	 * Records a batch of recipients painted together, each taking an equal
+	 * share of {@code nanos}.
+	 */
+	public static void painted (int firstHaplotype, int haplotypes, int snps, long nanos) {
+		Metrics metrics = active;
+		if (metrics != null) {
+			metrics.counters.addAndGet(Counter.HAPLOTYPES_PAINTED.ordinal(), haplotypes);
+			metrics.counters.addAndGet(Counter.SNPS_PAINTED.ordinal(), (long) haplotypes * snps);
+			metrics.paintLatency.record(nanos / Math.max(1, haplotypes), haplotypes);
+			metrics.recorder.painted(firstHaplotype, haplotypes, snps, nanos);
+		}
+	}
+
+	/**
+	 * Records a run of SNPs tested together, each taking an equal share of
+	 * {@code nanos}.
+	 */
+	public static void tested (int firstSnp, int snps, long newtonIterations, long nanos) {
+		Metrics metrics = active;
+		if (metrics != null) {
+			metrics.counters.addAndGet(Counter.SNPS_TESTED.ordinal(), snps);
+			metrics.counters.addAndGet(Counter.NEWTON_ITERATIONS.ordinal(), newtonIterations);
+			metrics.bayesFactorLatency.record(nanos / Math.max(1, snps), snps);
+			metrics.recorder.tested(firstSnp, snps, newtonIterations, nanos);
+		}
+	}
+
+	/**
+	 * Records {@code bytes} written to disk in {@code nanos}.
+	 */
+	public static void wrote (long bytes, long nanos) {
+		Metrics metrics = active;
+		if (metrics != null) {
+			metrics.counters.addAndGet(Counter.BYTES_WRITTEN.ordinal(), bytes);
+			metrics.counters.addAndGet(Counter.WRITE_NANOS.ordinal(), nanos);
+		}
+	}
+
+	private synchronized void beginPhase (String name, Counter progress, long total) {
+		endPhase();
+		this.phase = name;
+		this.phaseStart = System.nanoTime();
+		this.progress = progress;
+		this.progressFrom = progress == null ? 0 : counters.get(progress.ordinal());
+		this.total = total;
+		recorder.beginPhase(name);
+	}
+
+	private synchronized void endPhase () {
+		if (!phase.equals("start")) {
+			Double before = phaseSeconds.get(phase);
+			phaseSeconds.put(phase, (before == null ? 0 : before) + (System.nanoTime() - phaseStart) / 1E9);
+			recorder.endPhase();
+		}
+	}
+
+	private synchronized void finish () {
+		scheduler.shutdownNow();
+		endPhase();
+		phase = "done";
+		phaseStart = System.nanoTime();
+		progress = null;
+		snapshot(true);
+	}
+
+	private synchronized void snapshot (boolean close) {
+		long now = System.nanoTime();
+		double intervalSeconds = Math.max(1E-9, (now - lastSnapshot) / 1E9);
+		double phaseElapsed = (now - phaseStart) / 1E9;
+		lastSnapshot = now;
+		Json line = new Json();
+		line.put("time", System.currentTimeMillis());
+		line.put("elapsed_seconds", (now - start) / 1E9);
+		line.put("phase", phase);
+		line.put("phase_seconds", phaseElapsed);
+		Counter progress = this.progress;
+		if (progress != null) {
+			long done = counters.get(progress.ordinal()) - progressFrom;
+			double perSecond = done / Math.max(1E-9, phaseElapsed);
+			line.put("done", done);
+			line.put("total", total);
+			line.put("per_second", perSecond);
+			line.put("eta_seconds", total < 0 || done == 0 ? -1 : Math.max(0, total - done) / perSecond);
+		}
+		for (Counter counter : Counter.values()) {
+			long value = counters.get(counter.ordinal());
+			line.put(counter.key, counter.scale == 1 ? (Object) value : (Object) (value * counter.scale));
+			line.put(counter.key + "_per_second",
+					(value - lastCounters[counter.ordinal()]) * counter.scale / intervalSeconds);
+			lastCounters[counter.ordinal()] = value;
+		}
+		line.put("paint_latency_ms", paintLatency.summary());
+		line.put("bayes_factor_latency_ms", bayesFactorLatency.summary());
+		Runtime runtime = Runtime.getRuntime();
+		line.put("heap_used_mb", (runtime.totalMemory() - runtime.freeMemory()) / 1048576.0);
+		long gcMillis = 0;
+		long gcCollections = 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			gcMillis += Math.max(0, collector.getCollectionTime());
+			gcCollections += Math.max(0, collector.getCollectionCount());
+		}
+		line.put("gc_seconds", gcMillis / 1E3);
+		line.put("gc_collections", gcCollections);
+		Json phases = new Json();
+		for (Map.Entry<String, Double> entry : phaseSeconds.entrySet()) {
+			phases.put(entry.getKey(), entry.getValue());
+		}
+		line.put("phases", phases);
+		try {
+			writer.write(line.toString());
+			writer.newLine();
+			writer.flush();
+			if (close) {
+				writer.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Counts of values in power of two buckets, bucket {@code b} holding
+	 * those below {@code 2^b} nanoseconds; a quantile is reported as the
+	 * upper bound of its bucket, so to within a factor of two.
+	 */
+	private static final class Histogram {
+		private final AtomicLongArray buckets = new AtomicLongArray(64);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		void record (long nanos, long weight) {
+			buckets.addAndGet(64 - Long.numberOfLeadingZeros(Math.max(0, nanos)), weight);
+			count.addAndGet(weight);
+			sum.addAndGet(nanos * weight);
+			long before;
+			while (nanos > (before = max.get()) && !max.compareAndSet(before, nanos)) {
+				// Raced with another maximum; try again.
+			}
+		}
+
+		Json summary () {
+			long n = count.get();
+			Json summary = new Json();
+			summary.put("count", n);
+			summary.put("mean", n == 0 ? 0 : sum.get() / 1E6 / n);
+			summary.put("p50", quantile(n, 0.5));
+			summary.put("p90", quantile(n, 0.9));
+			summary.put("p99", quantile(n, 0.99));
+			summary.put("max", max.get() / 1E6);
+			return summary;
+		}
+
+		private double quantile (long n, double q) {
+			long rank = (long) Math.ceil(q * n);
+			long seen = 0;
+			for (int b = 0; b < 64 && n > 0; b++) {
+				seen += buckets.get(b);
+				if (seen >= rank) {
+					return Math.min(max.get(), 1L << b) / 1E6;
+				}
+			}
+			return 0;
+		}
+	}
+
+	/**
+	 * A JSON object of numbers, strings and objects, in insertion order.
+	 */
+	private static final class Json {
+		private final StringBuilder text = new StringBuilder("{");
+
+		void put (String key, Object value) {
+			if (text.length() > 1) {
+				text.append(", ");
+			}
+			text.append('"').append(key).append("\": ");
+			if (value instanceof String) {
+				text.append('"').append(((String) value).replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+			} else if (value instanceof Double && (((Double) value).isNaN() || ((Double) value).isInfinite())) {
+				text.append("null");
+			} else {
+				text.append(value);
+			}
+		}
+
+		@Override
+		public String toString () {
+			return text.toString() + "}";
+		}
+	}
+}
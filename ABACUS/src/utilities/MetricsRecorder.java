@@ -0,0 +1,61 @@
+package utilities;
+
+/**
+ * Where {@link Metrics} mirrors the phases and units of work of a run as
+ * they happen.  This one discards them; {@link #create} returns the Java
+ * Flight Recorder implementation, {@code JfrMetricsRecorder}, when it has
+ * been compiled (from {@code src-jfr} by the {@code jfr} module, which
+ * Maven builds on JDK 11 or later), its jar is on the class path and the
+ * JVM has the {@code jdk.jfr} module.
+ *
+ */
+class MetricsRecorder {
+	private static final String JFR_CLASS = "utilities.JfrMetricsRecorder";
+
+	/**
+	 * @return the Flight Recorder {@link MetricsRecorder} if it is available
+	 */
+	static MetricsRecorder create () {
+		try {
+			return Class.forName(JFR_CLASS).asSubclass(MetricsRecorder.class)
+					.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			// Not compiled in, or no jdk.jfr.
+			return new MetricsRecorder();
+		}
+	}
+
+	/**
+	 * @return {@code String} name of the implementation, for the log
+	 */
+	String describe () {
+		return "no";
+	}
+
+	/**
+	 * @param phase {@code String} the phase starting, after any before it ended
+	 */
+	void beginPhase (String phase) {
+	}
+
+	void endPhase () {
+	}
+
+	/**
+	 * @param firstHaplotype {@code int} first recipient of a batch
+	 * @param haplotypes {@code int} recipients in the batch
+	 * @param snps {@code int} SNPs painted per recipient
+	 * @param nanos {@code long} time to paint the batch
+	 */
+	void painted (int firstHaplotype, int haplotypes, int snps, long nanos) {
+	}
+
+	/**
+	 * @param firstSnp {@code int} first SNP of a run
+	 * @param snps {@code int} SNPs in the run
+	 * @param newtonIterations {@code long} Newton steps over all of them
+	 * @param nanos {@code long} time to test the run
+	 */
+	void tested (int firstSnp, int snps, long newtonIterations, long nanos) {
+	}
+}
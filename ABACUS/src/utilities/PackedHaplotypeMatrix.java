@@ -0,0 +1,70 @@
+package utilities;
+
+/**
+ * Heap backed {@link HaplotypeMatrix} holding one {@code long[]} per SNP,
+ * i.e. 64 haplotypes per word rather than one byte per allele.
+ *
+ */
+public class PackedHaplotypeMatrix implements HaplotypeMatrix {
+	private final long[][] words;
+	private final int numberOfSnps;
+	private final int numberOfHaplotypes;
+	private final int wordsPerSnp;
+
+	public PackedHaplotypeMatrix (int numberOfSnps, int numberOfHaplotypes) {
+		this.numberOfSnps = numberOfSnps;
+		this.numberOfHaplotypes = numberOfHaplotypes;
+		this.wordsPerSnp = wordsFor(numberOfHaplotypes);
+		this.words = new long[numberOfSnps][];
+	}
+
+	@Override
+	public int numberOfSnps () {
+		return numberOfSnps;
+	}
+
+	@Override
+	public int numberOfHaplotypes () {
+		return numberOfHaplotypes;
+	}
+
+	@Override
+	public int wordsPerSnp () {
+		return wordsPerSnp;
+	}
+
+	@Override
+	public boolean get (int snp, int haplotype) {
+		return isSet(words[snp], haplotype);
+	}
+
+	@Override
+	public void copyColumn (int snp, long[] destination) {
+		System.arraycopy(words[snp], 0, destination, 0, wordsPerSnp);
+	}
+
+	/**
+	 * Stores an already packed column, taking ownership of the array.
+	 * @param snp {@code int}
+	 * @param column {@code long[]} of length {@link #wordsPerSnp()}
+	 */
+	public void setColumn (int snp, long[] column) {
+		if (column.length != wordsPerSnp) {
+			throw new IllegalArgumentException("Column for SNP " + snp + " has " + column.length +
+					" words, expected " + wordsPerSnp + ".");
+		}
+		words[snp] = column;
+	}
+
+	public static int wordsFor (int numberOfHaplotypes) {
+		return (numberOfHaplotypes + 63) >>> 6;
+	}
+
+	public static boolean isSet (long[] column, int haplotype) {
+		return (column[haplotype >>> 6] & (1L << haplotype)) != 0;
+	}
+
+	public static void set (long[] column, int haplotype) {
+		column[haplotype >>> 6] |= 1L << haplotype;
+	}
+}
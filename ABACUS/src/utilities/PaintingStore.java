@@ -0,0 +1,300 @@
+package utilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Binary, SNP major store of a whole painting: for every SNP the donor
+ * (1-based Viterbi state) and block length of every haplotype.  It
+ * replaces opening one .viterbi reader per haplotype; any SNP, or range
+ * of SNPs, is read straight out of the mapping without parsing, so
+ * ranges can be processed in parallel.
+ * <p>
+ * Layout (little endian):
+ * <pre>
+ *  0  magic "ABACUSVS", written last so an unfinished store never opens
+ *  8  int version
+ * 12  int number of SNPs (L)
+ * 16  int number of haplotypes (N)
+ * 20  int SNPs per block
+ * 24  int number of blocks (B)
+ * 64  long[B] offset of each block, 4096 byte aligned
+ * </pre>
+ * Each block holds its SNPs one after another, each as {@code int[N]}
+ * donors followed by {@code float[N]} block lengths.  Blocks are mapped
+ * separately so that no single mapping exceeds 1GB.
+ * <p>
+ * A painting fed straight to ABACUS in the same process uses the same
+ * layout, either on the heap ({@link #allocate}) or spilled to a
+ * temporary file ({@link #temporary}).
+ *
+ */
+public class PaintingStore {
+	public static final String EXTENSION = ".painting";
+	public static final int VERSION = 1;
+
+	private static final byte[] MAGIC = "ABACUSVS".getBytes(Charset.forName("US-ASCII"));
+	private static final int HEADER_BYTES = 64;
+	private static final long PAGE_BYTES = 4096;
+	private static final long MAX_BLOCK_BYTES = 1L << 30;
+
+	private final String path;
+	private final ByteBuffer[] blocks;
+	private final int snpsPerBlock;
+	private final int numberOfSnps;
+	private final int numberOfHaplotypes;
+	private final boolean writable;
+
+	private PaintingStore (String path, ByteBuffer[] blocks, int snpsPerBlock, int numberOfSnps,
+			int numberOfHaplotypes, boolean writable) {
+		this.path = path;
+		this.blocks = blocks;
+		this.snpsPerBlock = snpsPerBlock;
+		this.numberOfSnps = numberOfSnps;
+		this.numberOfHaplotypes = numberOfHaplotypes;
+		this.writable = writable;
+	}
+
+	/**
+	 * @param prefix {@code String} output prefix of a painting
+	 * @return {@code String} path of its store
+	 */
+	public static String pathFor (String prefix) {
+		return prefix + EXTENSION;
+	}
+
+	public int numberOfSnps () {
+		return numberOfSnps;
+	}
+
+	public int numberOfHaplotypes () {
+		return numberOfHaplotypes;
+	}
+
+	/**
+	 * Stores the painting of one haplotype.  Safe to call from several
+	 * threads at once for different haplotypes.
+	 * @param haplotype {@code int} recipient index
+	 * @param donors {@code int[]} Viterbi path, one 1-based state per SNP
+	 * @param lengths {@code float[]} length of the block covering each SNP
+	 */
+	public void write (int haplotype, int[] donors, float[] lengths) {
+		for (int snp = 0; snp < numberOfSnps; snp++) {
+			ByteBuffer block = blocks[snp / snpsPerBlock];
+			int offset = offset(snp) + 4 * haplotype;
+			block.putInt(offset, donors[snp]);
+			block.putFloat(offset + 4 * numberOfHaplotypes, lengths[snp]);
+		}
+	}
+
+	/**
+	 * Reads the donors and block lengths of every haplotype at {@code snp}.
+	 * Safe to call from several threads at once.
+	 * @param snp {@code int}
+	 * @param donors {@code int[]} receives the 1-based Viterbi states
+	 * @param lengths {@code double[]} receives the block lengths
+	 */
+	public void read (int snp, int[] donors, double[] lengths) {
+		ByteBuffer block = blocks[snp / snpsPerBlock];
+		int offset = offset(snp);
+		int lengthsOffset = offset + 4 * numberOfHaplotypes;
+		for (int haplotype = 0; haplotype < numberOfHaplotypes; haplotype++) {
+			donors[haplotype] = block.getInt(offset + 4 * haplotype);
+			lengths[haplotype] = block.getFloat(lengthsOffset + 4 * haplotype);
+		}
+	}
+
+	private int offset (int snp) {
+		return (snp % snpsPerBlock) * 8 * numberOfHaplotypes;
+	}
+
+	/**
+	 * Flushes a store being written and marks it complete.
+	 * @throws IOException
+	 */
+	public void close () throws IOException {
+		if (!writable || path == null) {
+			return;
+		}
+		for (ByteBuffer block : blocks) {
+			((MappedByteBuffer) block).force();
+		}
+		RandomAccessFile file = new RandomAccessFile(path, "rw");
+		try {
+			file.getChannel().write(ByteBuffer.wrap(MAGIC), 0);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Creates an empty store sized for {@code numberOfSnps} by
+	 * {@code numberOfHaplotypes}, to be filled by {@link #write}.
+	 * @throws IOException
+	 */
+	public static PaintingStore create (String path, int numberOfSnps, int numberOfHaplotypes) throws IOException {
+		int snpsPerBlock = snpsPerBlock(numberOfSnps, numberOfHaplotypes);
+		int numberOfBlocks = (numberOfSnps + snpsPerBlock - 1) / snpsPerBlock;
+		long bytesPerSnp = 8L * numberOfHaplotypes;
+		long[] offsets = new long[numberOfBlocks];
+		long end = align(HEADER_BYTES + 8L * numberOfBlocks);
+		for (int block = 0; block < numberOfBlocks; block++) {
+			offsets[block] = end;
+			end = align(end + snps(block, snpsPerBlock, numberOfSnps) * bytesPerSnp);
+		}
+
+		RandomAccessFile file = new RandomAccessFile(path, "rw");
+		try {
+			file.setLength(0);
+			file.setLength(end);
+			FileChannel channel = file.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES + 8 * numberOfBlocks).order(ByteOrder.LITTLE_ENDIAN);
+			header.position(MAGIC.length);
+			header.putInt(VERSION);
+			header.putInt(numberOfSnps);
+			header.putInt(numberOfHaplotypes);
+			header.putInt(snpsPerBlock);
+			header.putInt(numberOfBlocks);
+			header.position(HEADER_BYTES);
+			for (long offset : offsets) {
+				header.putLong(offset);
+			}
+			header.flip();
+			channel.write(header, 0);
+			MappedByteBuffer[] blocks = new MappedByteBuffer[numberOfBlocks];
+			for (int block = 0; block < numberOfBlocks; block++) {
+				blocks[block] = channel.map(FileChannel.MapMode.READ_WRITE, offsets[block],
+						snps(block, snpsPerBlock, numberOfSnps) * bytesPerSnp);
+				blocks[block].order(ByteOrder.LITTLE_ENDIAN);
+			}
+			return new PaintingStore(path, blocks, snpsPerBlock, numberOfSnps, numberOfHaplotypes, true);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Creates an empty store on the heap.
+	 */
+	public static PaintingStore allocate (int numberOfSnps, int numberOfHaplotypes) {
+		int snpsPerBlock = snpsPerBlock(numberOfSnps, numberOfHaplotypes);
+		int numberOfBlocks = (numberOfSnps + snpsPerBlock - 1) / snpsPerBlock;
+		ByteBuffer[] blocks = new ByteBuffer[numberOfBlocks];
+		for (int block = 0; block < numberOfBlocks; block++) {
+			blocks[block] = ByteBuffer.allocate(snps(block, snpsPerBlock, numberOfSnps) * 8 * numberOfHaplotypes)
+					.order(ByteOrder.LITTLE_ENDIAN);
+		}
+		return new PaintingStore(null, blocks, snpsPerBlock, numberOfSnps, numberOfHaplotypes, true);
+	}
+
+	/**
+	 * Creates an empty store in a file of {@code directory} that is deleted
+	 * when the JVM exits.
+	 * @throws IOException
+	 */
+	public static PaintingStore temporary (File directory, int numberOfSnps, int numberOfHaplotypes) throws IOException {
+		File file = File.createTempFile("abacus", EXTENSION, directory);
+		file.deleteOnExit();
+		return create(file.getPath(), numberOfSnps, numberOfHaplotypes);
+	}
+
+	/**
+	 * @return {@code long} bytes held by a store of this size
+	 */
+	public static long bytesFor (int numberOfSnps, int numberOfHaplotypes) {
+		return 8L * numberOfSnps * numberOfHaplotypes;
+	}
+
+	/**
+	 * Maps a complete store read only.
+	 * @throws IOException if it is not a complete store of this version
+	 */
+	public static PaintingStore open (String path) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			channel.read(header, 0);
+			header.flip();
+			byte[] magic = new byte[MAGIC.length];
+			header.get(magic);
+			if (!Arrays.equals(magic, MAGIC)) {
+				throw new IOException(path + " is not a complete ABACUS painting store.");
+			}
+			int version = header.getInt();
+			if (version != VERSION) {
+				throw new IOException(path + " is painting store version " + version + ", expected " + VERSION + ".");
+			}
+			int numberOfSnps = header.getInt();
+			int numberOfHaplotypes = header.getInt();
+			int snpsPerBlock = header.getInt();
+			int numberOfBlocks = header.getInt();
+			ByteBuffer offsets = ByteBuffer.allocate(8 * numberOfBlocks).order(ByteOrder.LITTLE_ENDIAN);
+			channel.read(offsets, HEADER_BYTES);
+			offsets.flip();
+			long bytesPerSnp = 8L * numberOfHaplotypes;
+			MappedByteBuffer[] blocks = new MappedByteBuffer[numberOfBlocks];
+			for (int block = 0; block < numberOfBlocks; block++) {
+				blocks[block] = channel.map(FileChannel.MapMode.READ_ONLY, offsets.getLong(),
+						snps(block, snpsPerBlock, numberOfSnps) * bytesPerSnp);
+				blocks[block].order(ByteOrder.LITTLE_ENDIAN);
+			}
+			return new PaintingStore(path, blocks, snpsPerBlock, numberOfSnps, numberOfHaplotypes, false);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Opens the store written beside a painting, if there is a complete one
+	 * of the expected size that is at least as new as every one of
+	 * {@code inputs} that exists; a painting or panel rewritten since the
+	 * store was leaves it stale.
+	 * @param numberOfSnps {@code int} expected SNPs, or -1 if not yet known
+	 * @param inputs {@code String...} panel, map and summaries of the painting
+	 * @return {@link PaintingStore} or {@code null}
+	 */
+	public static PaintingStore find (String prefix, int numberOfHaplotypes, int numberOfSnps, String... inputs) {
+		File file = new File(pathFor(prefix));
+		if (!file.isFile()) {
+			return null;
+		}
+		for (String input : inputs) {
+			if (file.lastModified() < new File(input).lastModified()) {
+				System.out.println(file.getPath() + " is older than " + input + ", ignoring it.");
+				return null;
+			}
+		}
+		try {
+			PaintingStore store = open(file.getPath());
+			if (store.numberOfHaplotypes() == numberOfHaplotypes &&
+					(numberOfSnps < 0 || store.numberOfSnps() == numberOfSnps)) {
+				return store;
+			}
+			System.out.println(file.getPath() + " holds " + store.numberOfHaplotypes() + " haplotypes and " +
+					store.numberOfSnps() + " SNPs, ignoring it.");
+		} catch (IOException e) {
+			System.out.println(e.getMessage() + " Reading the .viterbi files instead.");
+		}
+		return null;
+	}
+
+	private static int snpsPerBlock (int numberOfSnps, int numberOfHaplotypes) {
+		return (int) Math.max(1, Math.min(numberOfSnps, MAX_BLOCK_BYTES / (8L * numberOfHaplotypes)));
+	}
+
+	private static int snps (int block, int snpsPerBlock, int numberOfSnps) {
+		return Math.min(snpsPerBlock, numberOfSnps - block * snpsPerBlock);
+	}
+
+	private static long align (long offset) {
+		return (offset + PAGE_BYTES - 1) / PAGE_BYTES * PAGE_BYTES;
+	}
+}
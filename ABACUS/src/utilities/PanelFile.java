@@ -0,0 +1,335 @@
+package utilities;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Versioned binary form of a haplotype panel and its genetic map, written
+ * once from the text .hap/.map pair and then opened by {@link Data} with
+ * {@link FileChannel#map} so start up does not re-parse the text.
+ * <p>
+ * Layout (little endian):
+ * <pre>
+ *  0  magic "ABACUSPN"
+ *  8  int version
+ * 12  int number of SNPs (L)
+ * 16  int number of haplotypes (N)
+ * 20  int words per SNP (W)
+ * 24  long offset of SNP positions, int[L]
+ * 32  long offset of genetic map, double[L]
+ * 40  long offset of rsID table, int[L + 1] byte offsets then UTF-8 bytes
+ * 48  long offset of packed alleles, long[L * W], 8 byte aligned
+ * </pre>
+ * Panels are written with the alleles directly after the header so they
+ * can be streamed; readers must only rely on the offsets.
+ * Usage: -hap:./path/to/file.hap -map:./path/to/file.map [-output:./path/to/file.panel]
+ *
+ */
+public class PanelFile {
+	public static final String EXTENSION = ".panel";
+	public static final int VERSION = 1;
+
+	private static final byte[] MAGIC = "ABACUSPN".getBytes(Charset.forName("US-ASCII"));
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int HEADER_BYTES = 64;
+	private static final int WRITE_BUFFER_BYTES = 1 << 20;
+	private static final int WINDOW_SNPS = 1024;
+
+	public static void main (String[] args) {
+		String hap = "./genotypes_test.hap";
+		String map = "./genotypes_test.map";
+		String output = "";
+		for (String s : args) {
+			if (s.contains("-hap")) {
+				hap = s.split(":")[1];
+			}
+			if (s.contains("-map")) {
+				map = s.split(":")[1];
+			}
+			if (s.contains("-output")) {
+				output = s.split(":")[1];
+			}
+		}
+		if (output.isEmpty()) {
+			output = hap.split(".hap")[0] + EXTENSION;
+		}
+		try {
+			SnpSource source = new ReadAheadSnpSource(new TextSnpSource(hap, map), WINDOW_SNPS, 2);
+			try {
+				write(source, WINDOW_SNPS, output);
+			} finally {
+				source.close();
+			}
+			System.out.println("Wrote " + source.numberOfHaplotypes() + " haplotypes to " + output);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @param haplotypePath {@code String} .hap file
+	 * @param directory {@code String} directory of the panel, or empty for
+	 *  the directory of {@code haplotypePath}
+	 * @return {@link File} where the panel of {@code haplotypePath} is cached
+	 */
+	public static File pathFor (String haplotypePath, String directory) {
+		if (directory.isEmpty()) {
+			return new File(haplotypePath.split(".hap")[0] + EXTENSION);
+		}
+		return new File(directory, new File(haplotypePath).getName().split(".hap")[0] + EXTENSION);
+	}
+
+	/**
+	 * Returns the panel cached beside {@code haplotypePath} if it is a
+	 * complete panel of this version and newer than both text inputs,
+	 * otherwise {@code null}.
+	 * @param haplotypePath {@code String}
+	 * @param recombinationPath {@code String}
+	 * @return {@link File} or {@code null}
+	 */
+	public static File findCurrent (String haplotypePath, String recombinationPath) {
+		return findCurrent(pathFor(haplotypePath, ""), haplotypePath, recombinationPath);
+	}
+
+	private static File findCurrent (File panel, String haplotypePath, String recombinationPath) {
+		if (!isPanel(panel.getPath())) {
+			return null;
+		}
+		long modified = panel.lastModified();
+		if (modified < new File(haplotypePath).lastModified() ||
+				modified < new File(recombinationPath).lastModified()) {
+			return null;
+		}
+		return panel;
+	}
+
+	/**
+	 * @return {@code boolean} whether {@code path} starts like a complete
+	 * panel of this version; the header is written last, so a conversion
+	 * that did not finish has none
+	 */
+	public static boolean isPanel (String path) {
+		if (!new File(path).isFile()) {
+			return false;
+		}
+		try {
+			RandomAccessFile file = new RandomAccessFile(path, "r");
+			try {
+				byte[] magic = new byte[MAGIC.length];
+				if (file.read(magic) != magic.length || !Arrays.equals(magic, MAGIC)) {
+					return false;
+				}
+				return Integer.reverseBytes(file.readInt()) == VERSION;
+			} finally {
+				file.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns a current binary panel for the text inputs, streaming one
+	 * from {@code haplotypePath} first if there is none.  The panel is
+	 * written beside its final path and renamed into place once complete;
+	 * if writing fails nothing is left behind.
+	 * @param directory {@code String} directory of the panel, or empty for
+	 *  the directory of {@code haplotypePath}
+	 * @return {@code String} path of the panel
+	 * @throws IOException
+	 */
+	public static String ensure (String haplotypePath, String recombinationPath, int windowSize, String directory)
+			throws IOException {
+		if (haplotypePath.endsWith(EXTENSION)) {
+			return haplotypePath;
+		}
+		File path = pathFor(haplotypePath, directory);
+		File current = findCurrent(path, haplotypePath, recombinationPath);
+		if (current != null) {
+			return current.getPath();
+		}
+		File partial = new File(path.getPath() + ".tmp");
+		System.out.println("Writing binary panel " + path);
+		SnpSource source = new ReadAheadSnpSource(new TextSnpSource(haplotypePath, recombinationPath), windowSize, 2);
+		boolean written = false;
+		try {
+			write(source, windowSize, partial.getPath());
+			written = true;
+		} finally {
+			source.close();
+			if (!written) {
+				partial.delete();
+			}
+		}
+		if (!partial.renameTo(path) && !(path.delete() && partial.renameTo(path))) {
+			throw new IOException("Cannot replace " + path);
+		}
+		return path.getPath();
+	}
+
+	/**
+	 * Streams {@code source} into a panel.  Only a window of alleles is held
+	 * at once; the packed alleles are written first, directly after the
+	 * header, and the per SNP tables are appended once their size is known.
+	 * @param source {@link SnpSource}
+	 * @param windowSize {@code int} SNPs per window read from {@code source}
+	 * @param path {@code String}
+	 * @throws IOException
+	 */
+	public static void write (SnpSource source, int windowSize, String path) throws IOException {
+		int wordsPerSnp = source.wordsPerSnp();
+		int[] positions = new int[1024];
+		double[] geneticMap = new double[1024];
+		ByteArrayOutputStream rsidBytes = new ByteArrayOutputStream();
+		int[] rsidOffsets = new int[1025];
+		int numberOfSnps = 0;
+
+		RandomAccessFile file = new RandomAccessFile(path, "rw");
+		try {
+			file.setLength(0);
+			FileChannel channel = file.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			pad(buffer, channel, HEADER_BYTES);
+			long allelesOffset = HEADER_BYTES;
+			SnpWindow window = new SnpWindow(windowSize, wordsPerSnp);
+			long[] column = new long[wordsPerSnp];
+			while (source.read(window)) {
+				for (int i = 0; i < window.size(); i++) {
+					window.copyColumn(i, column);
+					for (long word : column) {
+						ensure(buffer, channel, 8);
+						buffer.putLong(word);
+					}
+					if (numberOfSnps == positions.length) {
+						positions = Arrays.copyOf(positions, 2 * numberOfSnps);
+						geneticMap = Arrays.copyOf(geneticMap, 2 * numberOfSnps);
+						rsidOffsets = Arrays.copyOf(rsidOffsets, 2 * numberOfSnps + 1);
+					}
+					positions[numberOfSnps] = window.position(i);
+					geneticMap[numberOfSnps] = window.geneticMap(i);
+					byte[] id = window.rsid(i).getBytes(UTF8);
+					rsidBytes.write(id, 0, id.length);
+					rsidOffsets[numberOfSnps + 1] = rsidBytes.size();
+					numberOfSnps++;
+				}
+			}
+			long positionsOffset = allelesOffset + 8L * wordsPerSnp * numberOfSnps;
+			for (int snp = 0; snp < numberOfSnps; snp++) {
+				ensure(buffer, channel, 4);
+				buffer.putInt(positions[snp]);
+			}
+			long mapOffset = positionsOffset + 4L * numberOfSnps;
+			for (int snp = 0; snp < numberOfSnps; snp++) {
+				ensure(buffer, channel, 8);
+				buffer.putDouble(geneticMap[snp]);
+			}
+			long rsidOffset = mapOffset + 8L * numberOfSnps;
+			for (int snp = 0; snp <= numberOfSnps; snp++) {
+				ensure(buffer, channel, 4);
+				buffer.putInt(rsidOffsets[snp]);
+			}
+			flush(buffer, channel);
+			channel.write(ByteBuffer.wrap(rsidBytes.toByteArray()));
+
+			buffer.put(MAGIC);
+			buffer.putInt(VERSION);
+			buffer.putInt(numberOfSnps);
+			buffer.putInt(source.numberOfHaplotypes());
+			buffer.putInt(wordsPerSnp);
+			buffer.putLong(positionsOffset);
+			buffer.putLong(mapOffset);
+			buffer.putLong(rsidOffset);
+			buffer.putLong(allelesOffset);
+			buffer.flip();
+			channel.write(buffer, 0);
+		} finally {
+			file.close();
+		}
+	}
+
+	public static Data open (String path) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			byte[] magic = new byte[MAGIC.length];
+			header.get(magic);
+			if (!Arrays.equals(magic, MAGIC)) {
+				throw new IOException(path + " is not an ABACUS panel file.");
+			}
+			int version = header.getInt();
+			if (version != VERSION) {
+				throw new IOException(path + " is panel version " + version +
+						", expected " + VERSION + ". Regenerate it with utilities.PanelFile.");
+			}
+			int numberOfSnps = header.getInt();
+			int numberOfHaplotypes = header.getInt();
+			int wordsPerSnp = header.getInt();
+			long positionsOffset = header.getLong();
+			long mapOffset = header.getLong();
+			long rsidOffset = header.getLong();
+			long allelesOffset = header.getLong();
+
+			int[] positions = new int[numberOfSnps];
+			section(channel, positionsOffset, 4L * numberOfSnps).asIntBuffer().get(positions);
+			double[] centiMorgans = new double[numberOfSnps];
+			section(channel, mapOffset, 8L * numberOfSnps).asDoubleBuffer().get(centiMorgans);
+			String[] rsid = new String[numberOfSnps];
+			int bytesOffset = 4 * (numberOfSnps + 1);
+			int totalBytes = section(channel, rsidOffset + 4L * numberOfSnps, 4).getInt();
+			ByteBuffer rsidTable = section(channel, rsidOffset, bytesOffset + (long) totalBytes);
+			for (int snp = 0; snp < numberOfSnps; snp++) {
+				int start = rsidTable.getInt(4 * snp);
+				int end = rsidTable.getInt(4 * (snp + 1));
+				byte[] bytes = new byte[end - start];
+				rsidTable.position(bytesOffset + start);
+				rsidTable.get(bytes);
+				rsid[snp] = new String(bytes, UTF8);
+			}
+			HaplotypeMatrix haplotype = MappedHaplotypeMatrix.map(channel, allelesOffset,
+					numberOfSnps, numberOfHaplotypes, wordsPerSnp);
+			return new Data(haplotype, new GeneticMap(positions, centiMorgans, rsid));
+		} finally {
+			file.close();
+		}
+	}
+
+	private static MappedByteBuffer section (FileChannel channel, long offset, long size) throws IOException {
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		return buffer;
+	}
+
+	private static void pad (ByteBuffer buffer, FileChannel channel, int bytes) throws IOException {
+		for (int i = 0; i < bytes; i++) {
+			ensure(buffer, channel, 1);
+			buffer.put((byte) 0);
+		}
+	}
+
+	private static void ensure (ByteBuffer buffer, FileChannel channel, int bytes) throws IOException {
+		if (buffer.remaining() < bytes) {
+			flush(buffer, channel);
+			if (buffer.remaining() < bytes) {
+				throw new IOException("Record of " + bytes + " bytes exceeds the write buffer.");
+			}
+		}
+	}
+
+	private static void flush (ByteBuffer buffer, FileChannel channel) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+}
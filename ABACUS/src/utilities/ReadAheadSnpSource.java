@@ -0,0 +1,109 @@
+package utilities;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Wraps a {@link SnpSource} so the next {@code depth} windows are read on
+ * a background thread while the consumer works on the current one.
+ * Windows are recycled, so at most {@code depth + 1} are ever allocated.
+ *
+ */
+public class ReadAheadSnpSource implements SnpSource {
+	private static final SnpWindow END = new SnpWindow(0, 0);
+
+	private final SnpSource source;
+	private final BlockingQueue<SnpWindow> free;
+	private final BlockingQueue<SnpWindow> filled;
+	private final Thread reader;
+	private volatile IOException failure;
+	private boolean finished = false;
+
+	public ReadAheadSnpSource (SnpSource source, int windowSize, int depth) {
+		this.source = source;
+		this.free = new ArrayBlockingQueue<>(depth);
+		this.filled = new ArrayBlockingQueue<>(depth + 1);
+		for (int i = 0; i < depth; i++) {
+			free.add(new SnpWindow(windowSize, source.wordsPerSnp()));
+		}
+		this.reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				readAhead();
+			}
+		}, "snp-read-ahead");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	private void readAhead () {
+		try {
+			while (true) {
+				SnpWindow window = free.take();
+				if (!source.read(window)) {
+					break;
+				}
+				filled.put(window);
+			}
+		} catch (IOException e) {
+			failure = e;
+		} catch (InterruptedException e) {
+			return;
+		}
+		try {
+			filled.put(END);
+		} catch (InterruptedException e) {
+			return;
+		}
+	}
+
+	@Override
+	public int numberOfHaplotypes () {
+		return source.numberOfHaplotypes();
+	}
+
+	@Override
+	public int wordsPerSnp () {
+		return source.wordsPerSnp();
+	}
+
+	@Override
+	public int numberOfSnps () {
+		return source.numberOfSnps();
+	}
+
+	@Override
+	public boolean read (SnpWindow window) throws IOException {
+		if (finished) {
+			return false;
+		}
+		SnpWindow next;
+		try {
+			next = filled.take();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while waiting for SNP data.", e);
+		}
+		if (next == END) {
+			finished = true;
+			if (failure != null) {
+				throw failure;
+			}
+			return false;
+		}
+		window.swap(next);
+		free.add(next);
+		return true;
+	}
+
+	@Override
+	public void close () throws IOException {
+		reader.interrupt();
+		try {
+			reader.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		source.close();
+	}
+}
@@ -0,0 +1,212 @@
+package utilities;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Writes a synthetic .hap/.map pair with realistic haplotype sharing, for
+ * testing at scale without real genotypes.  Every haplotype is a mosaic
+ * of a pool of founder haplotypes: it copies one founder until a switch,
+ * switches arriving along the genetic map at one per
+ * {@code segment_length} cM, and each copied allele mutates with
+ * probability {@code mutation}.  Founder allele frequencies are drawn
+ * from the U-shaped arcsine distribution.
+ * <p>
+ * The genetic map has a background rate, plus recombination hot spots
+ * of {@value #HOTSPOT_BASES} bases scattered at {@code hotspots} per Mb,
+ * each {@code hotspot_intensity} times the background rate.  The same
+ * arguments and seed always write the same files, and the panel is
+ * streamed a SNP at a time, so any number of haplotypes can be written.
+ * @param -output:./simulated writes output.hap and output.map
+ * @param -haplotypes:1000
+ * @param -snps:5000
+ * @param -founders:100
+ * @param -spacing:1000 mean bases between SNPs
+ * @param -background_rate:0.5 cM per Mb
+ * @param -hotspots:0.5 per Mb
+ * @param -hotspot_intensity:100
+ * @param -segment_length:1.0 mean cM copied from one founder
+ * @param -mutation:0.001
+ * @param -seed:1
+ */
+public class SimulatePanel {
+	static final int HOTSPOT_BASES = 2000;
+
+	private final int numberOfHaplotypes;
+	private final int numberOfSnps;
+	private final int founders;
+	private final double spacing;
+	private final double backgroundRate;
+	private final double hotspots;
+	private final double hotspotIntensity;
+	private final double segmentLength;
+	private final double mutation;
+	private final long seed;
+
+	public SimulatePanel (int numberOfHaplotypes, int numberOfSnps, int founders, double spacing,
+			double backgroundRate, double hotspots, double hotspotIntensity, double segmentLength,
+			double mutation, long seed) {
+		this.numberOfHaplotypes = numberOfHaplotypes;
+		this.numberOfSnps = numberOfSnps;
+		this.founders = Math.max(1, Math.min(founders, numberOfHaplotypes));
+		this.spacing = spacing;
+		this.backgroundRate = backgroundRate;
+		this.hotspots = hotspots;
+		this.hotspotIntensity = hotspotIntensity;
+		this.segmentLength = segmentLength;
+		this.mutation = mutation;
+		this.seed = seed;
+	}
+
+	/**
+	 * A panel with the default founders, map and mutation rate.
+	 */
+	public static SimulatePanel of (int numberOfHaplotypes, int numberOfSnps, long seed) {
+		return new SimulatePanel(numberOfHaplotypes, numberOfSnps, 100, 1000, 0.5, 0.5, 100, 1.0, 0.001, seed);
+	}
+
+	public static void main (String[] args) {
+		String output = "./simulated";
+		int numberOfHaplotypes = 1000;
+		int numberOfSnps = 5000;
+		int founders = 100;
+		double spacing = 1000;
+		double backgroundRate = 0.5;
+		double hotspots = 0.5;
+		double hotspotIntensity = 100;
+		double segmentLength = 1.0;
+		double mutation = 0.001;
+		long seed = 1;
+		for (String s : args) {
+			String value = s.split(":")[1];
+			if (s.contains("-output")) {
+				output = value;
+			} else if (s.contains("-haplotypes")) {
+				numberOfHaplotypes = Integer.parseInt(value);
+			} else if (s.contains("-snps")) {
+				numberOfSnps = Integer.parseInt(value);
+			} else if (s.contains("-founders")) {
+				founders = Integer.parseInt(value);
+			} else if (s.contains("-spacing")) {
+				spacing = Double.parseDouble(value);
+			} else if (s.contains("-background_rate")) {
+				backgroundRate = Double.parseDouble(value);
+			} else if (s.contains("-hotspot_intensity")) {
+				hotspotIntensity = Double.parseDouble(value);
+			} else if (s.contains("-hotspots")) {
+				hotspots = Double.parseDouble(value);
+			} else if (s.contains("-segment_length")) {
+				segmentLength = Double.parseDouble(value);
+			} else if (s.contains("-mutation")) {
+				mutation = Double.parseDouble(value);
+			} else if (s.contains("-seed")) {
+				seed = Long.parseLong(value);
+			}
+		}
+		try {
+			new SimulatePanel(numberOfHaplotypes, numberOfSnps, founders, spacing, backgroundRate, hotspots,
+					hotspotIntensity, segmentLength, mutation, seed).write(output);
+			System.out.println("Wrote " + numberOfHaplotypes + " haplotypes at " + numberOfSnps + " SNPs to " +
+					output + ".hap and " + output + ".map");
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Writes {@code prefix.hap} and {@code prefix.map}.
+	 * @return {@code String[]} the .hap and .map paths
+	 * @throws IOException
+	 */
+	public String[] write (String prefix) throws IOException {
+		String hapPath = prefix + ".hap";
+		String mapPath = prefix + ".map";
+		Random random = new Random(seed);
+		int[] copying = new int[numberOfHaplotypes];
+		double[] nextSwitch = new double[numberOfHaplotypes];
+		for (int haplotype = 0; haplotype < numberOfHaplotypes; haplotype++) {
+			copying[haplotype] = random.nextInt(founders);
+			nextSwitch[haplotype] = exponential(random, segmentLength);
+		}
+		boolean[] founderAlleles = new boolean[founders];
+		boolean[] alleles = new boolean[numberOfHaplotypes];
+		char[] line = new char[2 * numberOfHaplotypes];
+
+		BufferedWriter hapWriter = new BufferedWriter(new FileWriter(hapPath), 1 << 20);
+		BufferedWriter mapWriter = new BufferedWriter(new FileWriter(mapPath), 1 << 16);
+		try {
+			int position = 0;
+			double centiMorgans = 0;
+			for (int snp = 0; snp < numberOfSnps; snp++) {
+				int gap = snp == 0 ? 1 + random.nextInt((int) spacing) : 1 + (int) exponential(random, spacing);
+				position += gap;
+				centiMorgans += gap / 1E6 * backgroundRate;
+				for (int hotspot = poisson(random, gap / 1E6 * hotspots); hotspot > 0; hotspot--) {
+					centiMorgans += HOTSPOT_BASES / 1E6 * backgroundRate * hotspotIntensity;
+				}
+
+				double frequency = Math.pow(Math.sin(random.nextDouble() * Math.PI / 2), 2);
+				for (int founder = 0; founder < founders; founder++) {
+					founderAlleles[founder] = random.nextDouble() < frequency;
+				}
+				for (int haplotype = 0; haplotype < numberOfHaplotypes; haplotype++) {
+					while (nextSwitch[haplotype] <= centiMorgans) {
+						copying[haplotype] = random.nextInt(founders);
+						nextSwitch[haplotype] += exponential(random, segmentLength);
+					}
+					alleles[haplotype] = founderAlleles[copying[haplotype]];
+				}
+				// Mutations are placed by geometric skips rather than a draw per allele.
+				if (mutation > 0) {
+					for (long haplotype = geometric(random, mutation); haplotype < numberOfHaplotypes;
+							haplotype += 1L + geometric(random, mutation)) {
+						alleles[(int) haplotype] = !alleles[(int) haplotype];
+					}
+				}
+
+				for (int haplotype = 0; haplotype < numberOfHaplotypes; haplotype++) {
+					line[2 * haplotype] = ' ';
+					line[2 * haplotype + 1] = alleles[haplotype] ? '1' : '0';
+				}
+				String rsid = "rs" + (snp + 1);
+				hapWriter.write(rsid + " " + rsid + " " + position + " A G");
+				hapWriter.write(line);
+				hapWriter.newLine();
+				mapWriter.write(Double.toString(centiMorgans));
+				mapWriter.newLine();
+			}
+		} finally {
+			hapWriter.close();
+			mapWriter.close();
+		}
+		return new String[] {hapPath, mapPath};
+	}
+
+	private static double exponential (Random random, double mean) {
+		return -mean * Math.log(1 - random.nextDouble());
+	}
+
+	/**
+	 * @return {@code int} failures before the first success of probability {@code p}
+	 */
+	private static int geometric (Random random, double p) {
+		if (p >= 1) {
+			return 0;
+		}
+		double skip = Math.floor(Math.log(1 - random.nextDouble()) / Math.log(1 - p));
+		return skip > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) skip;
+	}
+
+	private static int poisson (Random random, double mean) {
+		double limit = Math.exp(-mean);
+		double product = random.nextDouble();
+		int count = 0;
+		while (product > limit) {
+			product *= random.nextDouble();
+			count++;
+		}
+		return count;
+	}
+}
@@ -0,0 +1,32 @@
+package utilities;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Streams the panel in SNP order as bounded windows of packed columns,
+ * so consumers never hold more than a window of alleles on the heap.
+ *
+ */
+public interface SnpSource extends Closeable {
+
+	public int numberOfHaplotypes();
+
+	public int wordsPerSnp();
+
+	/**
+	 * @return total number of SNPs, or -1 when not known until the
+	 * source is exhausted (e.g. text input)
+	 */
+	public int numberOfSnps();
+
+	/**
+	 * Fills {@code window} with the next run of SNPs, replacing its
+	 * previous contents.
+	 * @param window {@link SnpWindow} created with this source's
+	 * {@link #wordsPerSnp()}
+	 * @return {@code false} once every SNP has been read
+	 * @throws IOException
+	 */
+	public boolean read(SnpWindow window) throws IOException;
+}
@@ -0,0 +1,128 @@
+package utilities;
+
+import java.util.Arrays;
+
+/**
+ * A reusable block of consecutive SNPs read from a {@link SnpSource}:
+ * packed allele columns laid out back to back, plus each SNP's
+ * position, rsID and genetic map value.
+ *
+ */
+public class SnpWindow {
+	private final int capacity;
+	private final int wordsPerSnp;
+	private long[] columns;
+	private int[] positions;
+	private double[] geneticMap;
+	private String[] rsid;
+	private int firstSnp;
+	private int size;
+
+	public SnpWindow (int capacity, int wordsPerSnp) {
+		this.capacity = capacity;
+		this.wordsPerSnp = wordsPerSnp;
+		this.columns = new long[capacity * wordsPerSnp];
+		this.positions = new int[capacity];
+		this.geneticMap = new double[capacity];
+		this.rsid = new String[capacity];
+	}
+
+	public int capacity () {
+		return capacity;
+	}
+
+	public int wordsPerSnp () {
+		return wordsPerSnp;
+	}
+
+	/**
+	 * @return chromosome wide index of the first SNP in the window
+	 */
+	public int firstSnp () {
+		return firstSnp;
+	}
+
+	public int size () {
+		return size;
+	}
+
+	public boolean isFull () {
+		return size == capacity;
+	}
+
+	public int position (int index) {
+		return positions[index];
+	}
+
+	public double geneticMap (int index) {
+		return geneticMap[index];
+	}
+
+	public String rsid (int index) {
+		return rsid[index];
+	}
+
+	public boolean get (int index, int haplotype) {
+		return (columns[index * wordsPerSnp + (haplotype >>> 6)] & (1L << haplotype)) != 0;
+	}
+
+	public void copyColumn (int index, long[] destination) {
+		System.arraycopy(columns, index * wordsPerSnp, destination, 0, wordsPerSnp);
+	}
+
+	/**
+	 * Empties the window ready to be refilled from {@code firstSnp}.
+	 */
+	void reset (int firstSnp) {
+		this.firstSnp = firstSnp;
+		this.size = 0;
+	}
+
+	/**
+	 * Clears the column for the next SNP and returns its offset into
+	 * {@link #columns()}; the SNP is only added by {@link #commit}.
+	 */
+	int prepare () {
+		int offset = size * wordsPerSnp;
+		Arrays.fill(columns, offset, offset + wordsPerSnp, 0L);
+		return offset;
+	}
+
+	void commit (int position, String id, double map) {
+		positions[size] = position;
+		rsid[size] = id;
+		geneticMap[size] = map;
+		size++;
+	}
+
+	long[] columns () {
+		return columns;
+	}
+
+	/**
+	 * Exchanges contents with a window of the same shape without copying.
+	 */
+	void swap (SnpWindow other) {
+		if (other.capacity != capacity || other.wordsPerSnp != wordsPerSnp) {
+			throw new IllegalArgumentException("Cannot swap windows of different shape.");
+		}
+		long[] columns = this.columns;
+		this.columns = other.columns;
+		other.columns = columns;
+		int[] positions = this.positions;
+		this.positions = other.positions;
+		other.positions = positions;
+		double[] geneticMap = this.geneticMap;
+		this.geneticMap = other.geneticMap;
+		other.geneticMap = geneticMap;
+		String[] rsid = this.rsid;
+		this.rsid = other.rsid;
+		other.rsid = rsid;
+		int firstSnp = this.firstSnp;
+		this.firstSnp = other.firstSnp;
+		other.firstSnp = firstSnp;
+		int size = this.size;
+		this.size = other.size;
+		other.size = size;
+	}
+}
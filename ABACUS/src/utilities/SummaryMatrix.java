@@ -0,0 +1,253 @@
+package utilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Binary, row major pairwise summary matrix (.viterbiLengths or
+ * .viterbiCounts), written by painting beside the text matrices and
+ * memory mapped by {@code CombineSummaries} and ABACUS, so that no
+ * {@code float} is ever printed or parsed.
+ * <p>
+ * Layout (little endian):
+ * <pre>
+ *    0  magic "ABACUSSM", written last so an unfinished matrix never opens
+ *    8  int version
+ *   12  int rows
+ *   16  int columns
+ * 4096  float[rows][columns]
+ * </pre>
+ * Rows are mapped in blocks so that no single mapping exceeds 1GB.
+ *
+ */
+public class SummaryMatrix {
+	public static final String EXTENSION = ".bin";
+	public static final int VERSION = 1;
+
+	private static final byte[] MAGIC = "ABACUSSM".getBytes(Charset.forName("US-ASCII"));
+	private static final int HEADER_BYTES = 4096;
+	private static final long MAX_BLOCK_BYTES = 1L << 30;
+
+	private final String path;
+	private final MappedByteBuffer[] mappings;
+	private final FloatBuffer[] blocks;
+	private final int rowsPerBlock;
+	private final int rows;
+	private final int columns;
+	private final boolean writable;
+
+	private SummaryMatrix (String path, MappedByteBuffer[] mappings, int rowsPerBlock, int rows, int columns,
+			boolean writable) {
+		this.path = path;
+		this.mappings = mappings;
+		this.blocks = new FloatBuffer[mappings.length];
+		for (int block = 0; block < mappings.length; block++) {
+			blocks[block] = mappings[block].asFloatBuffer();
+		}
+		this.rowsPerBlock = rowsPerBlock;
+		this.rows = rows;
+		this.columns = columns;
+		this.writable = writable;
+	}
+
+	/**
+	 * @param textPath {@code String} path of a text summary matrix
+	 * @return {@code String} path of its binary counterpart
+	 */
+	public static String pathFor (String textPath) {
+		return textPath + EXTENSION;
+	}
+
+	public int rows () {
+		return rows;
+	}
+
+	public int columns () {
+		return columns;
+	}
+
+	/**
+	 * Safe to call from several threads at once for different rows.
+	 * @param row {@code int}
+	 * @param values {@code float[]} of {@link #columns()}
+	 */
+	public void writeRow (int row, float[] values) {
+		FloatBuffer block = blocks[row / rowsPerBlock].duplicate();
+		block.position((row % rowsPerBlock) * columns);
+		block.put(values, 0, columns);
+	}
+
+	/**
+	 * Safe to call from several threads at once.
+	 * @param row {@code int}
+	 * @param values {@code float[]} receives the row, of {@link #columns()}
+	 */
+	public void readRow (int row, float[] values) {
+		FloatBuffer block = blocks[row / rowsPerBlock].duplicate();
+		block.position((row % rowsPerBlock) * columns);
+		block.get(values, 0, columns);
+	}
+
+	/**
+	 * @return {@code float[]} a copy of {@code row}
+	 */
+	public float[] row (int row) {
+		float[] values = new float[columns];
+		readRow(row, values);
+		return values;
+	}
+
+	/**
+	 * @return {@code float[][]} a copy of the whole matrix
+	 */
+	public float[][] toArray () {
+		float[][] array = new float[rows][];
+		for (int row = 0; row < rows; row++) {
+			array[row] = row(row);
+		}
+		return array;
+	}
+
+	/**
+	 * Marks a matrix being written complete.  A matrix left unclosed, for
+	 * example because painting failed, never opens.
+	 * @throws IOException
+	 */
+	public void close () throws IOException {
+		if (!writable) {
+			return;
+		}
+		for (MappedByteBuffer mapping : mappings) {
+			mapping.force();
+		}
+		RandomAccessFile file = new RandomAccessFile(path, "rw");
+		try {
+			file.getChannel().write(ByteBuffer.wrap(MAGIC), 0);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Creates an empty matrix, to be filled by {@link #writeRow}.
+	 * @throws IOException
+	 */
+	public static SummaryMatrix create (String path, int rows, int columns) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(path, "rw");
+		try {
+			file.setLength(0);
+			file.setLength(HEADER_BYTES + 4L * rows * columns);
+			FileChannel channel = file.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 12).order(ByteOrder.LITTLE_ENDIAN);
+			header.position(MAGIC.length);
+			header.putInt(VERSION);
+			header.putInt(rows);
+			header.putInt(columns);
+			header.flip();
+			channel.write(header, 0);
+			return map(path, channel, FileChannel.MapMode.READ_WRITE, rows, columns);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Maps a complete matrix read only.
+	 * @throws IOException if it is not a complete matrix of this version
+	 */
+	public static SummaryMatrix open (String path) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 12).order(ByteOrder.LITTLE_ENDIAN);
+			channel.read(header, 0);
+			header.flip();
+			byte[] magic = new byte[MAGIC.length];
+			header.get(magic);
+			if (!Arrays.equals(magic, MAGIC)) {
+				throw new IOException(path + " is not a complete ABACUS summary matrix.");
+			}
+			int version = header.getInt();
+			if (version != VERSION) {
+				throw new IOException(path + " is summary matrix version " + version + ", expected " + VERSION + ".");
+			}
+			int rows = header.getInt();
+			int columns = header.getInt();
+			return map(path, channel, FileChannel.MapMode.READ_ONLY, rows, columns);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Opens {@code path} if it is itself a binary matrix, or else the
+	 * complete binary matrix beside it, if there is one with
+	 * {@code numberOfHaplotypes} rows at least as new as the text.
+	 * @param numberOfHaplotypes {@code int} expected rows, or -1 for any
+	 * @return {@link SummaryMatrix} or {@code null} to read the text
+	 */
+	public static SummaryMatrix find (String path, int numberOfHaplotypes) {
+		for (String candidate : new String[] {path, pathFor(path)}) {
+			if (!isMatrix(candidate)) {
+				continue;
+			}
+			if (!candidate.equals(path) && new File(candidate).lastModified() < new File(path).lastModified()) {
+				System.out.println(candidate + " is older than " + path + ", ignoring it.");
+				continue;
+			}
+			try {
+				SummaryMatrix matrix = open(candidate);
+				if (numberOfHaplotypes < 0 || matrix.rows() == numberOfHaplotypes) {
+					return matrix;
+				}
+				System.out.println(candidate + " holds " + matrix.rows() + " haplotypes, ignoring it.");
+			} catch (IOException e) {
+				System.out.println(e.getMessage() + " Reading the text instead.");
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return {@code boolean} whether {@code path} starts like a complete matrix
+	 */
+	public static boolean isMatrix (String path) {
+		if (!new File(path).isFile()) {
+			return false;
+		}
+		try {
+			RandomAccessFile file = new RandomAccessFile(path, "r");
+			try {
+				byte[] magic = new byte[MAGIC.length];
+				return file.read(magic) == magic.length && Arrays.equals(magic, MAGIC);
+			} finally {
+				file.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private static SummaryMatrix map (String path, FileChannel channel, FileChannel.MapMode mode, int rows,
+			int columns) throws IOException {
+		long bytesPerRow = 4L * columns;
+		int rowsPerBlock = (int) Math.max(1, Math.min(rows, MAX_BLOCK_BYTES / Math.max(1, bytesPerRow)));
+		int numberOfBlocks = rows == 0 ? 0 : (rows + rowsPerBlock - 1) / rowsPerBlock;
+		MappedByteBuffer[] mappings = new MappedByteBuffer[numberOfBlocks];
+		for (int block = 0; block < numberOfBlocks; block++) {
+			int blockRows = Math.min(rowsPerBlock, rows - block * rowsPerBlock);
+			mappings[block] = channel.map(mode, HEADER_BYTES + block * rowsPerBlock * bytesPerRow,
+					blockRows * bytesPerRow);
+			mappings[block].order(ByteOrder.LITTLE_ENDIAN);
+		}
+		return new SummaryMatrix(path, mappings, rowsPerBlock, rows, columns, mode == FileChannel.MapMode.READ_WRITE);
+	}
+}
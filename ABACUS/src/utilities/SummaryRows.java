@@ -0,0 +1,78 @@
+package utilities;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Reads the rows of a summary matrix in order, from its mapped
+ * {@link SummaryMatrix} when there is one and from the text otherwise,
+ * so that a matrix is never held whole.
+ *
+ */
+public class SummaryRows implements Closeable {
+	private final String path;
+	private final SummaryMatrix matrix;
+	private final BufferedReader reader;
+	private int row = 0;
+
+	private SummaryRows (String path, SummaryMatrix matrix, BufferedReader reader) {
+		this.path = path;
+		this.matrix = matrix;
+		this.reader = reader;
+	}
+
+	/**
+	 * @param path {@code String} text or binary summary matrix
+	 * @param numberOfHaplotypes {@code int} expected rows
+	 * @throws IOException
+	 */
+	public static SummaryRows open (String path, int numberOfHaplotypes) throws IOException {
+		SummaryMatrix matrix = SummaryMatrix.find(path, numberOfHaplotypes);
+		if (matrix != null) {
+			return new SummaryRows(path, matrix, null);
+		}
+		return new SummaryRows(path, null, new BufferedReader(new FileReader(path)));
+	}
+
+	public static SummaryRows of (SummaryMatrix matrix) {
+		return new SummaryRows(null, matrix, null);
+	}
+
+	public boolean isBinary () {
+		return matrix != null;
+	}
+
+	/**
+	 * Reads the next row; a short text row is padded with zeros.
+	 * @param values {@code float[]} receives the row
+	 * @throws IOException if there are no more rows
+	 */
+	public void next (float[] values) throws IOException {
+		if (matrix != null) {
+			matrix.readRow(row++, values);
+			return;
+		}
+		String strLine = reader.readLine();
+		if (strLine == null) {
+			throw new IOException(path + " has only " + row + " rows.");
+		}
+		String[] local = strLine.split(" ");
+		int columns = Math.min(local.length, values.length);
+		for (int i = 0; i < columns; i++) {
+			values[i] = Float.parseFloat(local[i]);
+		}
+		for (int i = columns; i < values.length; i++) {
+			values[i] = 0;
+		}
+		row++;
+	}
+
+	@Override
+	public void close () throws IOException {
+		if (reader != null) {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package utilities;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * {@link SnpSource} streaming a text .hap file alongside its genetic map,
+ * one line of each per SNP.  A current binary {@link GeneticMapFile} is
+ * read instead of the text map when there is one.
+ *
+ */
+public class TextSnpSource implements SnpSource {
+	private final RandomAccessFile haplotypeFile;
+	private final BufferedReader recombinationReader;
+	private final double[] centiMorgans;
+	private final HapLineReader reader;
+	private final int numberOfHaplotypes;
+	private final int wordsPerSnp;
+	private int nextSnp = 0;
+
+	public TextSnpSource (String haplotypePath, String recombinationPath) throws IOException {
+		this.haplotypeFile = new RandomAccessFile(haplotypePath, "r");
+		try {
+			this.numberOfHaplotypes = HapLineReader.countHaplotypes(haplotypeFile.getChannel());
+			this.wordsPerSnp = PackedHaplotypeMatrix.wordsFor(numberOfHaplotypes);
+			this.reader = new HapLineReader(haplotypeFile.getChannel(), 0,
+					haplotypeFile.getChannel().size(), numberOfHaplotypes);
+			this.centiMorgans = GeneticMapFile.find(recombinationPath);
+			this.recombinationReader = centiMorgans != null ? null :
+					new BufferedReader(new FileReader(recombinationPath));
+		} catch (IOException e) {
+			haplotypeFile.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public int numberOfHaplotypes () {
+		return numberOfHaplotypes;
+	}
+
+	@Override
+	public int wordsPerSnp () {
+		return wordsPerSnp;
+	}
+
+	@Override
+	public int numberOfSnps () {
+		return -1;
+	}
+
+	@Override
+	public boolean read (SnpWindow window) throws IOException {
+		window.reset(nextSnp);
+		while (!window.isFull() && reader.next(window.columns(), window.prepare())) {
+			window.commit(reader.snpPosition(), reader.rsid(), nextCentiMorgans(nextSnp + window.size()));
+		}
+		nextSnp += window.size();
+		return window.size() > 0;
+	}
+
+	private double nextCentiMorgans (int snp) throws IOException {
+		if (centiMorgans != null) {
+			if (snp >= centiMorgans.length) {
+				throw new IOException("Miss-match between number of SNPs in haplotype file and genetic map.");
+			}
+			return centiMorgans[snp];
+		}
+		String map = recombinationReader.readLine();
+		if (map == null) {
+			throw new IOException("Miss-match between number of SNPs in haplotype file and genetic map.");
+		}
+		return Double.parseDouble(map);
+	}
+
+	@Override
+	public void close () throws IOException {
+		try {
+			if (recombinationReader != null) {
+				recombinationReader.close();
+			}
+		} finally {
+			haplotypeFile.close();
+		}
+	}
+}
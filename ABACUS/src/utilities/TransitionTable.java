@@ -0,0 +1,110 @@
+package utilities;
+
+/**
+ * Li and Stephens [2003] log probabilities for one painting state space,
+ * precomputed per inter-SNP interval from the {@link GeneticMap}: the
+ * probability of switching to a given donor, of staying on the current
+ * donor, and the constant match / mismatch emmissions.  Obtain through
+ * {@link GeneticMap#transitions}.
+ *
+ */
+public class TransitionTable {
+	private final double[] logTransition;
+	private final double[] logStay;
+	private final double logMatch;
+	private final double logMismatch;
+	private final double logInitial;
+
+	private TransitionTable (double[] logTransition, double[] logStay, double logMatch,
+			double logMismatch, double logInitial) {
+		this.logTransition = logTransition;
+		this.logStay = logStay;
+		this.logMatch = logMatch;
+		this.logMismatch = logMismatch;
+		this.logInitial = logInitial;
+	}
+
+	/**
+	 * @return log probability of jumping to a particular donor between
+	 * {@code snp - 1} and {@code snp}
+	 */
+	public double logTransition (int snp) {
+		return logTransition[snp];
+	}
+
+	/**
+	 * @return log probability of copying the same donor between
+	 * {@code snp - 1} and {@code snp}
+	 */
+	public double logStay (int snp) {
+		return logStay[snp];
+	}
+
+	public double logMatch () {
+		return logMatch;
+	}
+
+	public double logMismatch () {
+		return logMismatch;
+	}
+
+	/**
+	 * @return log of the uniform prior over donors at the first SNP
+	 */
+	public double logInitial () {
+		return logInitial;
+	}
+
+	static TransitionTable create (double[] centiMorgans, int numberOfDonors, double effectivePopulation,
+			double mutationParameter) {
+		int numberOfSnps = centiMorgans.length;
+		double sizeOfStateSpace = (double) numberOfDonors;
+		double[] logTransition = new double[numberOfSnps];
+		double[] logStay = new double[numberOfSnps];
+		for (int snp = 1; snp < numberOfSnps; snp++) {
+			double localRecombination = (centiMorgans[snp] - centiMorgans[snp - 1]) / 100.0;
+			if (localRecombination < 0) localRecombination = 1E-15;
+			double p = -1 * localRecombination * 4 * effectivePopulation / sizeOfStateSpace;
+			double probabilityOfTransition = (1 - Math.exp(p)) / sizeOfStateSpace;
+			double probabilityOfNotTransitioning = probabilityOfTransition + Math.exp(p);
+			logTransition[snp] = Math.log(probabilityOfTransition);
+			logStay[snp] = Math.log(probabilityOfNotTransitioning);
+		}
+		double logMatch = Math.log1p((numberOfDonors + 0.5 * mutationParameter) /
+				(numberOfDonors + mutationParameter) - 1);
+		double logMismatch = Math.log1p((0.5 * mutationParameter) /
+				(numberOfDonors - 1.0 + mutationParameter) - 1);
+		return new TransitionTable(logTransition, logStay, logMatch, logMismatch,
+				-Math.log(sizeOfStateSpace));
+	}
+
+	static class Key {
+		private final int numberOfDonors;
+		private final double effectivePopulation;
+		private final double mutationParameter;
+
+		Key (int numberOfDonors, double effectivePopulation, double mutationParameter) {
+			this.numberOfDonors = numberOfDonors;
+			this.effectivePopulation = effectivePopulation;
+			this.mutationParameter = mutationParameter;
+		}
+
+		@Override
+		public boolean equals (Object other) {
+			if (!(other instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) other;
+			return numberOfDonors == key.numberOfDonors &&
+					Double.compare(effectivePopulation, key.effectivePopulation) == 0 &&
+					Double.compare(mutationParameter, key.mutationParameter) == 0;
+		}
+
+		@Override
+		public int hashCode () {
+			long bits = Double.doubleToLongBits(effectivePopulation) * 31 +
+					Double.doubleToLongBits(mutationParameter);
+			return numberOfDonors * 31 + (int) (bits ^ (bits >>> 32));
+		}
+	}
+}
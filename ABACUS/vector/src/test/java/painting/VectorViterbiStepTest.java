@@ -0,0 +1,115 @@
+package painting;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * {@link VectorViterbiStep} against {@link ScalarViterbiStep}: over ranges
+ * of every alignment, either side of an excluded band as the kernel calls
+ * them, the new values, stay bits, maximum and tie count must be bit for
+ * bit the same.
+ *
+ */
+public class VectorViterbiStepTest {
+	private static final int[] STATES = {1, 2, 7, 63, 64, 65, 127, 200, 1031};
+	private static final int TRIALS = 20;
+	private static final double LOG_STAY = Math.log(0.99);
+	private static final double LOG_MATCH = Math.log(0.999);
+	private static final double LOG_MISMATCH = Math.log(0.001);
+
+	@Test
+	public void randomValues () {
+		compareAll(new Random(1), false);
+	}
+
+	/**
+	 * Values on a coarse grid, so that states tie for the maximum and stay
+	 * exactly level with the jump.
+	 */
+	@Test
+	public void tiedValues () {
+		compareAll(new Random(2), true);
+	}
+
+	@Test
+	public void unreachableStates () {
+		Random random = new Random(3);
+		for (int numberOfStates : STATES) {
+			double[] current = values(random, numberOfStates, true);
+			for (int i = 0; i < numberOfStates; i += 3) {
+				current[i] = Double.NEGATIVE_INFINITY;
+			}
+			compare(current, matchWords(random, numberOfStates), 0, numberOfStates, -4.0);
+		}
+	}
+
+	private static void compareAll (Random random, boolean tied) {
+		for (int numberOfStates : STATES) {
+			for (int trial = 0; trial < TRIALS; trial++) {
+				double[] current = values(random, numberOfStates, tied);
+				int excludedFrom = random.nextInt(numberOfStates + 1);
+				int excludedTo = excludedFrom + random.nextInt(numberOfStates - excludedFrom + 1);
+				// When tied, states level with this one neither stay nor jump by a margin.
+				double jump = current[random.nextInt(numberOfStates)] +
+						(tied ? LOG_STAY : -2.0 * random.nextDouble());
+				compare(current, matchWords(random, numberOfStates), excludedFrom, excludedTo, jump);
+			}
+		}
+	}
+
+	private static void compare (double[] current, long[] matchWords, int excludedFrom, int excludedTo,
+			double jump) {
+		int numberOfStates = current.length;
+		String range = numberOfStates + " states excluding [" + excludedFrom + ", " + excludedTo + ")";
+		ViterbiStep scalar = new ScalarViterbiStep();
+		ViterbiStep vector = new VectorViterbiStep();
+		double[] scalarNext = new double[numberOfStates];
+		double[] vectorNext = new double[numberOfStates];
+		long[] scalarRow = new long[(numberOfStates + 63) >>> 6];
+		long[] vectorRow = new long[(numberOfStates + 63) >>> 6];
+		step(scalar, current, scalarNext, excludedFrom, excludedTo, jump, matchWords, scalarRow);
+		step(vector, current, vectorNext, excludedFrom, excludedTo, jump, matchWords, vectorRow);
+
+		assertArrayEquals("values of " + range, bits(scalarNext), bits(vectorNext));
+		assertArrayEquals("stay bits of " + range, scalarRow, vectorRow);
+		assertEquals("maximum of " + range, Double.doubleToRawLongBits(scalar.getMax()),
+				Double.doubleToRawLongBits(vector.getMax()));
+		assertEquals("ties of " + range, scalar.getMaxCount(), vector.getMaxCount());
+	}
+
+	private static void step (ViterbiStep stepper, double[] current, double[] next, int excludedFrom,
+			int excludedTo, double jump, long[] matchWords, long[] row) {
+		stepper.reset();
+		stepper.step(current, next, 0, excludedFrom, jump, LOG_STAY, LOG_MATCH, LOG_MISMATCH, matchWords, row);
+		stepper.step(current, next, excludedTo, current.length, jump, LOG_STAY, LOG_MATCH, LOG_MISMATCH,
+				matchWords, row);
+	}
+
+	private static double[] values (Random random, int numberOfStates, boolean tied) {
+		double[] values = new double[numberOfStates];
+		for (int i = 0; i < numberOfStates; i++) {
+			values[i] = tied ? -random.nextInt(4) - 1.0 : -50.0 * random.nextDouble() - 1E-3;
+		}
+		return values;
+	}
+
+	private static long[] matchWords (Random random, int numberOfStates) {
+		long[] words = new long[(numberOfStates + 63) >>> 6];
+		for (int i = 0; i < words.length; i++) {
+			words[i] = random.nextLong();
+		}
+		return words;
+	}
+
+	private static long[] bits (double[] values) {
+		long[] bits = new long[values.length];
+		for (int i = 0; i < values.length; i++) {
+			bits[i] = Double.doubleToRawLongBits(values[i]);
+		}
+		return bits;
+	}
+}